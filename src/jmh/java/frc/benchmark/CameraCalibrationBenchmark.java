@@ -0,0 +1,144 @@
+package frc.benchmark;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import frc.calibration.CameraCalibration;
+import frc.calibration.ImageConverter;
+
+/**
+ * Times the BufferedImage/Mat conversions the calibration tool runs on every
+ * image it loads and shows, at the calibration photos' full size, for each
+ * common image type, into new and reused destinations. The JPEG round trip the
+ * viewer used to make is kept as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CameraCalibrationBenchmark {
+
+    @Param({ "cc_final/chess_test01.jpg", "cc_evelyn/chess_test01.jpg" })
+    public String fixture;
+
+    // BufferedImage type the photo is redrawn as (ImageIO reads it as 3BYTE_BGR)
+    @Param({ "3BYTE_BGR", "BYTE_GRAY", "USHORT_GRAY", "INT_RGB", "4BYTE_ABGR" })
+    public String imageType;
+
+    private BufferedImage image;
+    private Mat mat;
+    private Mat gray;
+
+    // destinations reused across invocations
+    private Mat reusedMat;
+    private BufferedImage reusedImage;
+
+    @Setup
+    public void setup() throws IOException {
+        Fixtures.loadNatives();
+        image = redraw(ImageIO.read(new File(Fixtures.CALIBRATION_DIR + fixture)), imageType(imageType));
+        mat = CameraCalibration.fromBufferedImage(image);
+        reusedMat = ImageConverter.toMat(image, null);
+        reusedImage = ImageConverter.toBufferedImage(mat, null);
+
+        // corner detection needs 8-bit grayscale whatever the image type was
+        gray = ImageConverter.toGray(mat, new Mat());
+        if (gray.type() != CvType.CV_8UC1 || gray.cols() != image.getWidth() || gray.rows() != image.getHeight()) {
+            throw new IllegalStateException("Grayscale conversion of " + imageType + " gave type " + gray.type()
+                    + ", " + gray.size() + ".");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mat.release();
+        reusedMat.release();
+        gray.release();
+    }
+
+    private static int imageType(String name) {
+        switch (name) {
+        case "BYTE_GRAY":
+            return BufferedImage.TYPE_BYTE_GRAY;
+        case "USHORT_GRAY":
+            return BufferedImage.TYPE_USHORT_GRAY;
+        case "INT_RGB":
+            return BufferedImage.TYPE_INT_RGB;
+        case "4BYTE_ABGR":
+            return BufferedImage.TYPE_4BYTE_ABGR;
+        default:
+            return BufferedImage.TYPE_3BYTE_BGR;
+        }
+    }
+
+    private static BufferedImage redraw(BufferedImage source, int type) {
+        BufferedImage copy = new BufferedImage(source.getWidth(), source.getHeight(), type);
+        Graphics2D graphics = copy.createGraphics();
+        graphics.drawImage(source, 0, 0, null);
+        graphics.dispose();
+        return copy;
+    }
+
+    @Benchmark
+    public int fromBufferedImage() {
+        Mat converted = CameraCalibration.fromBufferedImage(image);
+        int rows = converted.rows();
+        converted.release();
+        return rows;
+    }
+
+    @Benchmark
+    public int fromBufferedImageReused() {
+        return ImageConverter.toMat(image, reusedMat).rows();
+    }
+
+    @Benchmark
+    public BufferedImage fromMat() {
+        return CameraCalibration.fromMat(mat);
+    }
+
+    @Benchmark
+    public BufferedImage fromMatReused() {
+        return ImageConverter.toBufferedImage(mat, reusedImage);
+    }
+
+    @Benchmark
+    public Mat toGray() {
+        return ImageConverter.toGray(mat, gray);
+    }
+
+    @Benchmark
+    public BufferedImage jpegRoundTrip() throws IOException {
+        MatOfByte encoded = new MatOfByte();
+        // JPEG is 8-bit only, so 16-bit images go through their grayscale copy
+        Imgcodecs.imencode(".jpg", mat.depth() == CvType.CV_8U ? mat : gray, encoded);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoded.toArray()));
+        encoded.release();
+        return decoded;
+    }
+}
@@ -0,0 +1,202 @@
+package frc.benchmark;
+
+import java.util.List;
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import frc.robot.commands.vision.FixedHsvRange;
+import frc.robot.commands.vision.Target;
+import frc.robot.commands.vision.TrackTargetCommand;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Frames the benchmarks run on: the calibration photos in the repo (real camera
+ * frames with no lemons, so every stage pays for a cluttered background) and
+ * synthetic frames with lemons at known centers, for measuring accuracy as well
+ * as speed. Every frame is the size of the robot's camera stream.
+ */
+final class Fixtures {
+
+    // fixture name for the synthetic frames
+    static final String SYNTHETIC = "synthetic";
+
+    // the calibration photos, relative to the project directory (where gradle runs
+    // the benchmarks)
+    static final String CALIBRATION_DIR = "src/main/java/frc/calibration/";
+
+    // lemon color in BGR, inside the default HSV range, and the spread of the
+    // background and per-pixel noise
+    private static final Scalar LEMON_COLOR = new Scalar(30, 220, 240);
+    private static final double BACKGROUND_MEAN = 100;
+    private static final double BACKGROUND_STDDEV = 30;
+    private static final double NOISE_STDDEV = 8;
+
+    // semi-axes of the synthetic lemons, in pixels
+    private static final int MIN_AXIS = 12;
+    private static final int MAX_AXIS = 40;
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private Fixtures() {
+    }
+
+    /**
+     * Makes sure the OpenCV natives are loaded. Call before touching any Mat.
+     */
+    static void loadNatives() {
+        // loaded by the static initializer
+    }
+
+    /**
+     * Reads the HSV range the robot starts with.
+     * 
+     * @return the range from lemon_config.json
+     */
+    static FixedHsvRange hsvRange() {
+        return FixedHsvRange.load(TrackTargetCommand.HSV_CONFIG_FILE_PATH);
+    }
+
+    /**
+     * Reads a calibration photo and shrinks it to the camera stream's size.
+     * 
+     * @param name photo path relative to the calibration directory, e.g.
+     *             "cc_final/chess_test01.jpg"
+     * @return the BGR frame
+     */
+    static Mat calibrationFrame(String name) {
+        Mat photo = Imgcodecs.imread(CALIBRATION_DIR + name);
+        if (photo.empty()) {
+            throw new IllegalArgumentException("Could not read fixture " + CALIBRATION_DIR + name);
+        }
+        Mat frame = new Mat();
+        Imgproc.resize(photo, frame, new Size(VisionSubsystem.STREAM_WIDTH, VisionSubsystem.STREAM_HEIGHT), 0, 0,
+                Imgproc.INTER_AREA);
+        photo.release();
+        return frame;
+    }
+
+    /**
+     * Reads a calibration photo, or draws a synthetic frame.
+     * 
+     * @param name {@link #SYNTHETIC} or a photo path relative to the calibration
+     *             directory
+     * @return the BGR frame
+     */
+    static Mat frame(String name) {
+        return SYNTHETIC.equals(name) ? synthetic(1, 3).image : calibrationFrame(name);
+    }
+
+    /**
+     * Draws a frame of lemons (filled, rotated ellipses, kept apart from each
+     * other and the border) on a noisy background.
+     * 
+     * @param seed   seed for the placement and noise, so runs are repeatable
+     * @param lemons number of lemons to draw
+     * @return the frame and the lemons' centers
+     */
+    static SyntheticFrame synthetic(long seed, int lemons) {
+        Random random = new Random(seed);
+        int width = VisionSubsystem.STREAM_WIDTH;
+        int height = VisionSubsystem.STREAM_HEIGHT;
+
+        Mat image = new Mat(height, width, CvType.CV_8UC3);
+        Core.setRNGSeed((int) seed);
+        Core.randn(image, BACKGROUND_MEAN, BACKGROUND_STDDEV);
+        Imgproc.GaussianBlur(image, image, new Size(15, 15), 0);
+
+        double[] centers = new double[lemons * 2];
+        double[] radii = new double[lemons];
+        int placed = 0;
+        while (placed < lemons) {
+            int a = MIN_AXIS + random.nextInt(MAX_AXIS - MIN_AXIS);
+            int b = (int) (a * (0.6 + 0.3 * random.nextDouble()));
+            double x = a + 2 + random.nextInt(width - 2 * a - 4);
+            double y = a + 2 + random.nextInt(height - 2 * a - 4);
+
+            // keep lemons from touching, so each is one blob with a known center
+            boolean overlaps = false;
+            for (int i = 0; i < placed; i++) {
+                double dx = centers[i * 2] - x;
+                double dy = centers[i * 2 + 1] - y;
+                double gap = radii[i] + a + 8;
+                if (dx * dx + dy * dy < gap * gap) {
+                    overlaps = true;
+                    break;
+                }
+            }
+            if (overlaps) {
+                continue;
+            }
+
+            Imgproc.ellipse(image, new Point(x, y), new Size(a, b), random.nextInt(180), 0, 360, LEMON_COLOR, -1,
+                    Imgproc.LINE_AA, 0);
+            centers[placed * 2] = x;
+            centers[placed * 2 + 1] = y;
+            radii[placed] = a;
+            placed++;
+        }
+
+        // sensor noise on top of everything
+        Mat noise = new Mat(height, width, CvType.CV_16SC3);
+        Core.randn(noise, 0, NOISE_STDDEV);
+        Mat noisy = new Mat();
+        Core.add(image, noise, noisy, new Mat(), CvType.CV_8UC3);
+        noise.release();
+        image.release();
+
+        return new SyntheticFrame(noisy, centers);
+    }
+
+    /**
+     * Compares found targets to the true lemon centers: each true center is
+     * matched to the nearest target.
+     * 
+     * @param truth    true centers, x/y pairs
+     * @param found    the targets found in the frame
+     * @param maxError farthest a target can be and still count, in pixels
+     * @param errors   summed error and the number of lemons matched are added to
+     *                 elements 0 and 1
+     */
+    static void accumulateErrors(double[] truth, List<Target> found, double maxError, double[] errors) {
+        for (int i = 0; i < truth.length; i += 2) {
+            double best = Double.MAX_VALUE;
+            for (Target target : found) {
+                double dx = target.getX() - truth[i];
+                double dy = target.getY() - truth[i + 1];
+                best = Math.min(best, Math.sqrt(dx * dx + dy * dy));
+            }
+            if (best <= maxError) {
+                errors[0] += best;
+                errors[1]++;
+            }
+        }
+    }
+
+    /**
+     * A synthetic frame and where its lemons are.
+     */
+    static final class SyntheticFrame {
+        final Mat image;
+        // lemon centers, x/y pairs
+        final double[] centers;
+
+        SyntheticFrame(Mat image, double[] centers) {
+            this.image = image;
+            this.centers = centers;
+        }
+
+        int getLemonCount() {
+            return centers.length / 2;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package frc.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import frc.calibration.Undistorter;
+import frc.robot.commands.vision.FixedHsvRange;
+import frc.robot.commands.vision.HsvLookupTable;
+import frc.robot.commands.vision.LemonDetector;
+import frc.robot.commands.vision.PreprocessChain;
+import frc.robot.commands.vision.PreprocessStage;
+import frc.robot.commands.vision.PreprocessStages;
+import frc.robot.commands.vision.VisionFrame;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Times each stage of the lemon detector, and the whole chain, on one frame.
+ * Each stage runs on buffers the earlier stages already filled, so its time is
+ * only its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LemonDetectorBenchmark {
+
+    // how long to wait for the lookup table to build
+    private static final long LOOKUP_TABLE_TIMEOUT_MS = 30_000;
+
+    @Param({ Fixtures.SYNTHETIC, "cc_final/chess_test01.jpg", "cc_evelyn/chess_test01.jpg" })
+    public String fixture;
+
+    @Param({ "true", "false" })
+    public boolean blobAnalysis;
+
+    @Param({ "false", "true" })
+    public boolean hsvLookup;
+
+    // the dilate, erode and dilate as one fused stage instead of three
+    @Param({ "false", "true" })
+    public boolean fusedMorphology;
+
+    private Mat source;
+    private LemonDetector detector;
+    private VisionFrame frame;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        Fixtures.loadNatives();
+        source = Fixtures.frame(fixture);
+
+        FixedHsvRange hsvRange = Fixtures.hsvRange();
+        detector = new LemonDetector(hsvRange, null, new Undistorter(Undistorter.Mode.NONE, null, null,
+                VisionSubsystem.STREAM_WIDTH, VisionSubsystem.STREAM_HEIGHT));
+        detector.setBlobAnalysis(blobAnalysis);
+        if (fusedMorphology) {
+            detector.setPreprocessChain(fusedChain(blobAnalysis));
+        }
+        frame = new VisionFrame(detector.createBuffers());
+
+        if (hsvLookup) {
+            HsvLookupTable lookupTable = new HsvLookupTable();
+            waitForTable(lookupTable, hsvRange);
+            detector.setHsvLookupTable(lookupTable);
+        }
+
+        // fill every buffer once, so each stage starts from a processed frame
+        source.copyTo(frame.buffers.image);
+        frame.reset();
+        frame.annotate = false;
+        frame.maskColor = false;
+        detector.process(frame);
+    }
+
+    /**
+     * Returns the default chain with its morphology fused into one stage.
+     */
+    private static PreprocessChain fusedChain(boolean blobAnalysis) {
+        List<PreprocessStage> stages = new ArrayList<PreprocessStage>();
+        stages.add(new PreprocessStages.Blur(3, 0));
+        stages.add(new PreprocessStages.Threshold());
+        if (!blobAnalysis) {
+            stages.add(new PreprocessStages.ColorMask());
+        }
+        stages.add(new PreprocessStages.FusedMorphology(1, 6, 1));
+        if (!blobAnalysis) {
+            stages.add(new PreprocessStages.Canny(200, 300, 3));
+        }
+        return new PreprocessChain(stages, blobAnalysis);
+    }
+
+    /**
+     * Waits for the lookup table to build, since the detector falls back to
+     * cvtColor + inRange until it's ready.
+     */
+    private static void waitForTable(HsvLookupTable lookupTable, FixedHsvRange hsvRange)
+            throws InterruptedException {
+        Mat pixel = new Mat(1, 1, CvType.CV_8UC3);
+        Mat mask = new Mat(1, 1, CvType.CV_8UC1);
+        long deadline = System.currentTimeMillis() + LOOKUP_TABLE_TIMEOUT_MS;
+        Scalar low = hsvRange.getLowScalar(new Scalar(0, 0, 0));
+        Scalar high = hsvRange.getHighScalar(new Scalar(0, 0, 0));
+        while (!lookupTable.apply(pixel, low, high, mask)) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("HSV lookup table did not build in time.");
+            }
+            Thread.sleep(50);
+        }
+        pixel.release();
+        mask.release();
+    }
+
+    @TearDown
+    public void tearDown() {
+        frame.release();
+        source.release();
+    }
+
+    /**
+     * Blur, threshold, morphology, and (without blob analysis) edges, without the
+     * masked color image for the original stream.
+     */
+    @Benchmark
+    public VisionFrame preprocess() {
+        frame.reset();
+        frame.maskColor = false;
+        detector.preprocess(frame);
+        return frame;
+    }
+
+    /**
+     * Labelling or contour finding, filtering, and target positions, on the
+     * preprocessed buffers.
+     */
+    @Benchmark
+    public int findTargets() {
+        frame.targets.clear();
+        detector.findTargets(frame);
+        return frame.targets.size();
+    }
+
+    /**
+     * Drawing the search windows and targets. Drawing changes the frame, so the
+     * source frame is copied in first; {@link #copyFrame()} measures that copy on
+     * its own.
+     */
+    @Benchmark
+    public Mat annotate() {
+        source.copyTo(frame.buffers.image);
+        detector.annotate(frame);
+        return frame.buffers.image;
+    }
+
+    /**
+     * The frame copy included in {@link #annotate()}.
+     */
+    @Benchmark
+    public Mat copyFrame() {
+        source.copyTo(frame.buffers.image);
+        return frame.buffers.image;
+    }
+
+    /**
+     * Every stage except annotation, as the robot runs while nobody watches the
+     * annotated stream.
+     */
+    @Benchmark
+    public int process() {
+        frame.reset();
+        frame.annotate = false;
+        frame.maskColor = false;
+        detector.process(frame);
+        return frame.targets.size();
+    }
+}
@@ -0,0 +1,115 @@
+package frc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import frc.calibration.Undistorter;
+import frc.robot.commands.vision.LemonDetector;
+import frc.robot.commands.vision.VisionFrame;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Compares coarse-to-fine pyramid detection with the full-resolution search:
+ * the score is frames per second over a set of synthetic frames, and the
+ * centroid error against the frames' true lemon centers is printed at the end
+ * of each trial. A pyramid scale of 1 is the full-resolution search.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PyramidBenchmark {
+
+    // number of distinct frames cycled through, and lemons in each
+    private static final int FRAME_COUNT = 16;
+    private static final int LEMONS_PER_FRAME = 3;
+
+    // farthest a target can be from a lemon and still count as finding it, in
+    // pixels
+    private static final double MAX_CENTROID_ERROR = 10;
+
+    @Param({ "1", "2", "4" })
+    public int pyramidScale;
+
+    @Param({ "true", "false" })
+    public boolean blobAnalysis;
+
+    private Fixtures.SyntheticFrame[] frames;
+    private LemonDetector detector;
+    private VisionFrame frame;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Fixtures.loadNatives();
+        frames = new Fixtures.SyntheticFrame[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            frames[i] = Fixtures.synthetic(i + 1, LEMONS_PER_FRAME);
+        }
+
+        detector = new LemonDetector(Fixtures.hsvRange(), null, new Undistorter(Undistorter.Mode.NONE, null, null,
+                VisionSubsystem.STREAM_WIDTH, VisionSubsystem.STREAM_HEIGHT));
+        detector.setBlobAnalysis(blobAnalysis);
+        detector.setPyramidScale(pyramidScale);
+        frame = new VisionFrame(detector.createBuffers());
+    }
+
+    /**
+     * Runs one frame through every stage except annotation.
+     */
+    private void processFrame(Fixtures.SyntheticFrame synthetic) {
+        synthetic.image.copyTo(frame.buffers.image);
+        frame.reset();
+        frame.annotate = false;
+        frame.maskColor = false;
+        detector.process(frame);
+    }
+
+    @Benchmark
+    public int process() {
+        processFrame(frames[next]);
+        next = (next + 1) % FRAME_COUNT;
+        return frame.targets.size();
+    }
+
+    /**
+     * Prints how close the found centers are to the true ones, and how many
+     * lemons were missed or targets were false.
+     */
+    @TearDown
+    public void reportAccuracy() {
+        double[] errors = new double[2];
+        int lemons = 0;
+        int targets = 0;
+        for (Fixtures.SyntheticFrame synthetic : frames) {
+            processFrame(synthetic);
+            Fixtures.accumulateErrors(synthetic.centers, frame.targets, MAX_CENTROID_ERROR, errors);
+            lemons += synthetic.getLemonCount();
+            targets += frame.targets.size();
+        }
+
+        int found = (int) errors[1];
+        System.out.printf("%nPyramid x%d (%s): mean centroid error %.3f px, found %d of %d lemons, %d false targets%n",
+                pyramidScale, blobAnalysis ? "blobs" : "contours", found > 0 ? errors[0] / found : Double.NaN, found,
+                lemons, Math.max(0, targets - found));
+
+        frame.release();
+        for (Fixtures.SyntheticFrame synthetic : frames) {
+            synthetic.image.release();
+        }
+    }
+}
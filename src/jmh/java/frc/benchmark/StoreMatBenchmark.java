@@ -0,0 +1,95 @@
+package frc.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import frc.calibration.StoreMat;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Times writing and reading mats through {@link StoreMat}, for the sizes it is
+ * used with: a camera matrix, and the two undistortion remap tables for a
+ * camera-stream-sized frame, plus a BGR frame for the 8-bit path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreMatBenchmark {
+
+    @Param({ "camera_matrix", "remap_map1", "remap_map2", "frame" })
+    public String mat;
+
+    private Mat source;
+    private File readFile;
+    private File writeFile;
+
+    @Setup
+    public void setup() throws IOException {
+        Fixtures.loadNatives();
+        int width = VisionSubsystem.STREAM_WIDTH;
+        int height = VisionSubsystem.STREAM_HEIGHT;
+
+        switch (mat) {
+        case "camera_matrix":
+            source = new Mat(3, 3, CvType.CV_64FC1);
+            break;
+        case "remap_map1":
+            source = new Mat(height, width, CvType.CV_16SC2);
+            break;
+        case "remap_map2":
+            source = new Mat(height, width, CvType.CV_16UC1);
+            break;
+        case "frame":
+            source = new Mat(height, width, CvType.CV_8UC3);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown mat: " + mat);
+        }
+        Core.randu(source, 0, 1000);
+
+        readFile = File.createTempFile("storemat_read", StoreMat.EXTENSION);
+        writeFile = File.createTempFile("storemat_write", StoreMat.EXTENSION);
+        StoreMat.storeMat(readFile.getPath(), source);
+    }
+
+    @TearDown
+    public void tearDown() {
+        source.release();
+        readFile.delete();
+        writeFile.delete();
+    }
+
+    @Benchmark
+    public File storeMat() {
+        StoreMat.storeMat(writeFile.getPath(), source);
+        return writeFile;
+    }
+
+    @Benchmark
+    public int readMat() {
+        Mat read = StoreMat.readMat(readFile.getPath());
+        int rows = read.rows();
+        read.release();
+        return rows;
+    }
+}
@@ -0,0 +1,218 @@
+package frc.calibration;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+
+/**
+ * Remembers what the last calibration was computed from, and the corners found
+ * in every calibration image, keyed by hashes of their contents. A calibration
+ * is only redone when the config or an image actually changed, and then only
+ * the new or changed images are searched for corners again.
+ *
+ * <p>
+ * JSON structure: { calibration_key: "___", images: { image key: { found:
+ * true/false, corners: [x, y, x, y, ...] }, ... } }
+ */
+public class CalibrationCache {
+
+    // the key of the calibration the matrix files were written for
+    private String calibrationKey;
+
+    // the corners of each image, by image key (an empty array if the pattern
+    // wasn't found)
+    private final JSONObject images;
+
+    private CalibrationCache(String calibrationKey, JSONObject images) {
+        this.calibrationKey = calibrationKey;
+        this.images = images;
+    }
+
+    /**
+     * Reads the cache from a file. A missing or unreadable file gives an empty
+     * cache.
+     *
+     * @param filepath the cache file
+     * @return the cache
+     */
+    public static CalibrationCache load(String filepath) {
+        File file = new File(filepath);
+        if (!file.isFile()) {
+            return new CalibrationCache(null, new JSONObject());
+        }
+
+        JSONParser parser = new JSONParser();
+        try (FileReader reader = new FileReader(file)) {
+            JSONObject obj = (JSONObject) parser.parse(reader);
+            Object key = obj.get("calibration_key");
+            JSONObject images = (JSONObject) obj.get("images");
+            return new CalibrationCache(key != null ? key.toString() : null,
+                    images != null ? images : new JSONObject());
+        } catch (IOException e) {
+            System.out.println("IO error while reading calibration cache, recalibrating.");
+            e.printStackTrace();
+        } catch (ParseException | ClassCastException e) {
+            System.out.println("Could not parse calibration cache, recalibrating.");
+            e.printStackTrace();
+        }
+        return new CalibrationCache(null, new JSONObject());
+    }
+
+    /**
+     * Writes the cache to a file.
+     *
+     * @param filepath the cache file
+     */
+    @SuppressWarnings("unchecked")
+    public void save(String filepath) {
+        JSONObject obj = new JSONObject();
+        obj.put("calibration_key", calibrationKey);
+        obj.put("images", images);
+        try (FileWriter file = new FileWriter(filepath)) {
+            file.write(obj.toJSONString());
+        } catch (IOException e) {
+            System.out.println("Failed to write calibration cache.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns a SHA-256 hash of some byte arrays, one after the other.
+     *
+     * @param parts the data to hash
+     * @return the hash, as hex
+     */
+    public static String hash(byte[]... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+        for (byte[] part : parts) {
+            // the length keeps ("ab", "c") and ("a", "bc") apart
+            digest.update(Integer.toString(part.length).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) ':');
+            digest.update(part);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Returns a hash of some strings, one after the other.
+     *
+     * @param parts the strings to hash
+     * @return the hash, as hex
+     */
+    public static String hash(String... parts) {
+        byte[][] bytes = new byte[parts.length][];
+        for (int i = 0; i < parts.length; i++) {
+            bytes[i] = parts[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return hash(bytes);
+    }
+
+    /**
+     * Returns the key of the calibration the matrix files were written for.
+     *
+     * @return the key, or null if nothing was calibrated with the cache yet
+     */
+    public String getCalibrationKey() {
+        return calibrationKey;
+    }
+
+    public void setCalibrationKey(String calibrationKey) {
+        this.calibrationKey = calibrationKey;
+    }
+
+    /**
+     * Returns whether an image has been searched for corners.
+     *
+     * @param imageKey the image's key
+     * @return true if its result is cached, whether or not the pattern was found
+     */
+    public boolean containsImage(String imageKey) {
+        return imageKey != null && images.containsKey(imageKey);
+    }
+
+    /**
+     * Returns the cached corners of an image.
+     *
+     * @param imageKey the image's key
+     * @return the corners, or null if the pattern wasn't found (or the image
+     *         isn't cached)
+     */
+    public MatOfPoint2f getCorners(String imageKey) {
+        JSONObject entry = (JSONObject) images.get(imageKey);
+        if (entry == null || !Boolean.TRUE.equals(entry.get("found"))) {
+            return null;
+        }
+        JSONArray coords = (JSONArray) entry.get("corners");
+        Point[] points = new Point[coords.size() / 2];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new Point(((Number) coords.get(2 * i)).doubleValue(),
+                    ((Number) coords.get(2 * i + 1)).doubleValue());
+        }
+        return new MatOfPoint2f(points);
+    }
+
+    /**
+     * Caches the corners found in an image.
+     *
+     * @param imageKey the image's key
+     * @param corners  the corners, or null if the pattern wasn't found
+     */
+    @SuppressWarnings("unchecked")
+    public void putCorners(String imageKey, MatOfPoint2f corners) {
+        if (imageKey == null) {
+            return;
+        }
+        JSONObject entry = new JSONObject();
+        JSONArray coords = new JSONArray();
+        if (corners != null) {
+            for (Point point : corners.toArray()) {
+                coords.add(point.x);
+                coords.add(point.y);
+            }
+        }
+        entry.put("found", corners != null);
+        entry.put("corners", coords);
+        images.put(imageKey, entry);
+    }
+
+    /**
+     * Drops every image that isn't in the current set, so the cache doesn't grow
+     * as images are replaced.
+     *
+     * @param imageKeys keys of the current images
+     */
+    public void retainImages(String[] imageKeys) {
+        Set<String> keep = new HashSet<String>(Arrays.asList(imageKeys));
+        for (Iterator<?> it = images.keySet().iterator(); it.hasNext();) {
+            if (!keep.contains(it.next())) {
+                it.remove();
+            }
+        }
+    }
+}
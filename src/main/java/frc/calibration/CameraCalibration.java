@@ -4,9 +4,11 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
@@ -18,7 +20,6 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -26,13 +27,12 @@ import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 import org.opencv.calib3d.*;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point3;
-import org.opencv.core.CvType;
 import org.opencv.core.Size;
-import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
 
 /**
  * Calibrates the camera using given calibration images and generates a camera
@@ -43,10 +43,48 @@ public class CameraCalibration {
     // stores config values for the calibration images (ie. width and height of
     // chessboard)
     public static final String CALIB_CONFIG_FILE_PATH = "src/main/java/frc/calibration/cc_evelyn/calibration_config.json";
-    // stores calculated camera matrix
-    public static final String CAMERA_MATRIX_FILE_PATH = "src/main/java/frc/calibration/camera_matrices.json";
+    // stores calculated camera matrix (calibrations from before the binary format
+    // are read from the .json file of the same name)
+    public static final String CAMERA_MATRIX_FILE_PATH = "src/main/java/frc/calibration/camera_matrices.mat";
     // stores calculated distortion coefficients
-    public static final String DIST_COEFFS_FILE_PATH = "src/main/java/frc/calibration/dist_coeffs.json";
+    public static final String DIST_COEFFS_FILE_PATH = "src/main/java/frc/calibration/dist_coeffs.mat";
+    // stores what the calibration was computed from, and the corners of each image
+    public static final String CALIBRATION_CACHE_FILE_PATH = "src/main/java/frc/calibration/calibration_cache.json";
+
+    /**
+     * Returns the file a camera's matrix is stored in. The first camera uses
+     * {@link #CAMERA_MATRIX_FILE_PATH}, so existing calibrations keep working.
+     *
+     * @param camera index of the camera
+     * @return path to the camera matrix file
+     */
+    public static String cameraMatrixPath(int camera) {
+        return camera == 0 ? CAMERA_MATRIX_FILE_PATH
+                : CAMERA_MATRIX_FILE_PATH.replace(StoreMat.EXTENSION, "_" + camera + StoreMat.EXTENSION);
+    }
+
+    /**
+     * Returns the file a camera's distortion coefficients are stored in. The
+     * first camera uses {@link #DIST_COEFFS_FILE_PATH}.
+     *
+     * @param camera index of the camera
+     * @return path to the distortion coefficients file
+     */
+    public static String distCoeffsPath(int camera) {
+        return camera == 0 ? DIST_COEFFS_FILE_PATH
+                : DIST_COEFFS_FILE_PATH.replace(StoreMat.EXTENSION, "_" + camera + StoreMat.EXTENSION);
+    }
+
+    // chessboard search flags: fast check rejects images without a board before
+    // the full search (shared with the live calibration)
+    static final int CHESSBOARD_FLAGS = Calib3d.CALIB_CB_ADAPTIVE_THRESH | Calib3d.CALIB_CB_NORMALIZE_IMAGE
+            | Calib3d.CALIB_CB_FAST_CHECK;
+
+    // sub-pixel corner refinement: search window half size, and when to stop
+    static final Size SUB_PIX_WINDOW = new Size(11, 11);
+    static final Size SUB_PIX_ZERO_ZONE = new Size(-1, -1);
+    static final TermCriteria SUB_PIX_CRITERIA = new TermCriteria(TermCriteria.EPS + TermCriteria.MAX_ITER,
+            30, 0.001);
 
     // stores the resulting calibrated mats
     private static List<Mat> calibratedMats = new ArrayList<Mat>();
@@ -57,25 +95,85 @@ public class CameraCalibration {
     private static JSONArray calibImages;
     private static String patternType;
 
-    // used for graphics
+    // used for graphics; the shown image is reused for every image of the same
+    // size
     private static JLabel currentImage;
+    private static BufferedImage shownImage;
     private static JFrame frame;
 
     /**
-     * Runs the camera calibration.
+     * Runs the camera calibration, unless the matrix files were already
+     * calibrated from the same config and images. Only images that are new or
+     * changed since the last calibration are searched for corners.
      */
     public static void run() {
-        // if already calibrated, exit
-        if ((new File(CAMERA_MATRIX_FILE_PATH)).length() != 0 && (new File(DIST_COEFFS_FILE_PATH)).length() != 0) {
+        boolean calibrated = (new File(StoreMat.resolve(CAMERA_MATRIX_FILE_PATH))).length() != 0
+                && (new File(StoreMat.resolve(DIST_COEFFS_FILE_PATH))).length() != 0;
+
+        // without the config (as on the robot), the existing calibration stands
+        byte[] configBytes = readBytes(CALIB_CONFIG_FILE_PATH);
+        if (calibrated && configBytes == null) {
             return;
         }
 
         readConfig();
-        calibrate();
+
+        // a calibration is identified by the config and the contents of every image
+        byte[][] imageBytes = new byte[nrFrames][];
+        String[] imageKeys = new String[nrFrames];
+        String[] keyParts = new String[nrFrames + 1];
+        boolean complete = configBytes != null;
+        keyParts[0] = complete ? CalibrationCache.hash(configBytes) : "";
+        for (int i = 0; i < nrFrames; i++) {
+            imageBytes[i] = readBytes(calibImages.get(i).toString());
+            if (imageBytes[i] != null) {
+                imageKeys[i] = CalibrationCache.hash(cornerSettings().getBytes(), imageBytes[i]);
+                keyParts[i + 1] = imageKeys[i];
+            } else {
+                complete = false;
+            }
+        }
+        String calibrationKey = complete ? CalibrationCache.hash(keyParts) : null;
+
+        // if already calibrated from the same inputs (or they can't all be read),
+        // exit
+        CalibrationCache cache = CalibrationCache.load(CALIBRATION_CACHE_FILE_PATH);
+        if (calibrated && (calibrationKey == null || calibrationKey.equals(cache.getCalibrationKey()))) {
+            return;
+        }
+
+        calibrate(cache, imageKeys, imageBytes);
+        if (calibrationKey != null) {
+            cache.setCalibrationKey(calibrationKey);
+            cache.retainImages(imageKeys);
+            cache.save(CALIBRATION_CACHE_FILE_PATH);
+        }
         paintImages(); // comment out if you don't want to see the calibrated images
 
     }
 
+    /**
+     * Returns everything besides an image that the corners found in it depend
+     * on, so changing any of it searches the images again.
+     */
+    private static String cornerSettings() {
+        return patternType + " " + boardSize + " " + CHESSBOARD_FLAGS + " " + SUB_PIX_WINDOW + " "
+                + SUB_PIX_ZERO_ZONE + " " + SUB_PIX_CRITERIA;
+    }
+
+    /**
+     * Reads a whole file.
+     *
+     * @return the file's contents, or null if it can't be read
+     */
+    private static byte[] readBytes(String filepath) {
+        try {
+            return Files.readAllBytes(new File(filepath).toPath());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     /**
      * Reads the config file and instantiates the corresponding variables.
      */
@@ -109,66 +207,62 @@ public class CameraCalibration {
 
     /**
      * Uses calibration images to calibrate and generate matrices.
+     *
+     * @param cache      corners found in earlier calibrations, updated with the
+     *                   images searched now
+     * @param imageKeys  the cache key of each image (null if it couldn't be read)
+     * @param imageBytes the contents of each image file (null if it couldn't be
+     *                   read)
      */
-    private static void calibrate() {
-        Size imageSize = new Size();
-
-        // stores the corners of the images
-        List<Mat> imagePoints = new ArrayList<Mat>();
-
-        Mat mat = new Mat();
-        // for each image
+    private static void calibrate(CalibrationCache cache, String[] imageKeys, byte[][] imageBytes) {
+        // find the corners in every image at once, one task per image; images in the
+        // cache are only decoded for the gallery
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        List<DetectCornersTask> tasks = new ArrayList<DetectCornersTask>();
+        int cached = 0;
         for (int i = 0; i < nrFrames; i++) {
+            DetectCornersTask task;
+            if (cache.containsImage(imageKeys[i])) {
+                task = new DetectCornersTask(i, imageBytes[i], true, cache.getCorners(imageKeys[i]));
+                cached++;
+            } else {
+                task = new DetectCornersTask(i, imageBytes[i], false, null);
+            }
+            pool.execute(task);
+            tasks.add(task);
+        }
 
-            try {
-                // get the image
-                BufferedImage image = ImageIO.read(new File(calibImages.get(i).toString()));
-
-                // store image size for later use
-                if (i == 0) {
-                    imageSize = new Size(image.getWidth(), image.getHeight());
-                }
-
-                MatOfPoint2f imageCorners = new MatOfPoint2f();
-                mat = fromBufferedImage(image);
-
-                // find the calibration pattern
-                boolean found;
-                switch (patternType) {
-                case "CHESSBOARD":
-                    found = Calib3d.findChessboardCorners(mat, boardSize, imageCorners);
-                    break;
-                default:
-                    found = false;
-                    System.out.println("Other calibration pattern types not supported.");
-                    break;
-                }
+        // collect the results in image order, so the calibration doesn't depend on
+        // which image finished first
+        Size imageSize = new Size();
+        List<Mat> imagePoints = new ArrayList<Mat>();
+        for (DetectCornersTask task : tasks) {
+            Detection detection = task.join();
+            if (detection == null) {
+                continue;
+            }
 
-                // if pattern is found, draw the pattern on the image
-                if (found) {
-
-                    switch (patternType) {
-                    case "CHESSBOARD":
-                        Calib3d.drawChessboardCorners(mat, boardSize, imageCorners, found);
-                        break;
-                    default:
-                        System.out.println("Other calibration pattern types not supported.");
-                        break;
-                    }
-                    imagePoints.add(imageCorners);
-
-                } else {
-                    System.out.println("Failed: could not find chessboard corners.");
-                    System.out.println(i);
-                }
+            // store image size for later use
+            if (task.index == 0) {
+                imageSize = detection.image.size();
+            }
 
-                calibratedMats.add(mat);
-            } catch (IOException e) {
-                System.out.println("Error while reading calibration image.");
-                e.printStackTrace();
+            if (!task.cached) {
+                cache.putCorners(imageKeys[task.index], detection.corners);
+            }
+            if (detection.corners != null) {
+                imagePoints.add(detection.corners);
+            } else {
+                System.out.println("Failed: could not find chessboard corners.");
+                System.out.println(task.index);
             }
 
+            calibratedMats.add(detection.image);
         }
+        pool.shutdown();
+        System.out.printf("Found the chessboard in %d of %d images (%d cached) in %.1f s.%n", imagePoints.size(),
+                nrFrames, cached, (System.nanoTime() - start) / 1e9);
 
         // creates lists of Mats that represent each chessboard (used by the
         // calibratecamera function call)
@@ -191,11 +285,104 @@ public class CameraCalibration {
 
         Calib3d.calibrateCamera(objectPoints, imagePoints, imageSize, cameraMatrix, distCoeffs, rvecs, tvecs);
 
-        // write to the output json files
+        // write the binary calibration files (see StoreMat for the format)
         StoreMat.storeMat(CAMERA_MATRIX_FILE_PATH, cameraMatrix);
         StoreMat.storeMat(DIST_COEFFS_FILE_PATH, distCoeffs);
     }
 
+    /**
+     * The corners found in one calibration image, and the image with the corners
+     * drawn on it.
+     */
+    private static class Detection {
+        private final Mat image;
+        // null if the pattern wasn't found
+        private final MatOfPoint2f corners;
+
+        Detection(Mat image, MatOfPoint2f corners) {
+            this.image = image;
+            this.corners = corners;
+        }
+    }
+
+    /**
+     * Decodes one calibration image, and finds the calibration pattern's corners
+     * and refines them to sub-pixel accuracy, or draws the cached corners.
+     */
+    private static class DetectCornersTask extends RecursiveTask<Detection> {
+        private final int index;
+        private final byte[] bytes;
+        // whether the corners come from the cache instead of a search
+        private final boolean cached;
+        private final MatOfPoint2f cachedCorners;
+
+        DetectCornersTask(int index, byte[] bytes, boolean cached, MatOfPoint2f cachedCorners) {
+            this.index = index;
+            this.bytes = bytes;
+            this.cached = cached;
+            this.cachedCorners = cachedCorners;
+        }
+
+        @Override
+        protected Detection compute() {
+            BufferedImage image = null;
+            try {
+                // get the image
+                if (bytes != null) {
+                    image = ImageIO.read(new ByteArrayInputStream(bytes));
+                }
+            } catch (IOException e) {
+                System.out.println("Error while reading calibration image.");
+                e.printStackTrace();
+                return null;
+            }
+            if (image == null) {
+                System.out.println("Error while reading calibration image.");
+                return null;
+            }
+            Mat mat = fromBufferedImage(image);
+
+            if (cached) {
+                if (cachedCorners != null) {
+                    Calib3d.drawChessboardCorners(mat, boardSize, cachedCorners, true);
+                }
+                return new Detection(mat, cachedCorners);
+            }
+            return new Detection(mat, findCorners(mat));
+        }
+    }
+
+    /**
+     * Finds the calibration pattern in an image, refines its corners to sub-pixel
+     * accuracy and draws them on the image.
+     *
+     * @param mat the image, as converted by {@link ImageConverter#toMat}
+     * @return the corners, or null if the pattern wasn't found
+     */
+    private static MatOfPoint2f findCorners(Mat mat) {
+        if (!"CHESSBOARD".equals(patternType)) {
+            System.out.println("Other calibration pattern types not supported.");
+            return null;
+        }
+
+        // grayscale calibration images are converted to single channel mats
+        Mat gray = ImageConverter.toGray(mat, new Mat());
+        MatOfPoint2f imageCorners = new MatOfPoint2f();
+        boolean found = Calib3d.findChessboardCorners(gray, boardSize, imageCorners, CHESSBOARD_FLAGS);
+        if (found) {
+            Imgproc.cornerSubPix(gray, imageCorners, SUB_PIX_WINDOW, SUB_PIX_ZERO_ZONE, SUB_PIX_CRITERIA);
+            // draw the pattern on the image
+            Calib3d.drawChessboardCorners(mat, boardSize, imageCorners, found);
+        }
+        gray.release();
+
+        if (!found) {
+            imageCorners.release();
+            return null;
+        }
+        return imageCorners;
+    }
+
     /**
      * Displays each calibrated image.
      */
@@ -219,7 +406,8 @@ public class CameraCalibration {
         panel.add(imageSlider);
 
         // draw the first image
-        currentImage = new JLabel(new ImageIcon(fromMat(calibratedMats.get(0))));
+        shownImage = ImageConverter.toBufferedImage(calibratedMats.get(0), null);
+        currentImage = new JLabel(new ImageIcon(shownImage));
         panel.add(currentImage);
         frame.pack();
         frame.repaint();
@@ -235,7 +423,12 @@ public class CameraCalibration {
         public void stateChanged(ChangeEvent e) {
             // draws the image based on slider value
             int currentI = ((JSlider) e.getSource()).getValue() - 1;
-            currentImage.setIcon(new ImageIcon(fromMat(calibratedMats.get(currentI))));
+            BufferedImage image = ImageConverter.toBufferedImage(calibratedMats.get(currentI), shownImage);
+            if (image != shownImage) {
+                // a different size or type, so the label needs the new image
+                shownImage = image;
+                currentImage.setIcon(new ImageIcon(shownImage));
+            }
             frame.pack();
             frame.repaint();
         }
@@ -249,10 +442,7 @@ public class CameraCalibration {
      * @return the converted mat
      */
     public static Mat fromBufferedImage(BufferedImage img) {
-        byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
-        Mat mat = new Mat(img.getHeight(), img.getWidth(), CvType.CV_8UC3);
-        mat.put(0, 0, pixels);
-        return mat;
+        return ImageConverter.toMat(img, null);
     }
 
     /**
@@ -262,23 +452,7 @@ public class CameraCalibration {
      * @return the converted buffered image
      */
     public static BufferedImage fromMat(Mat mat) {
-
-        // Encoding the image
-        MatOfByte matOfByte = new MatOfByte();
-        Imgcodecs.imencode(".jpg", mat, matOfByte);
-        // Storing the encoded Mat in a byte array
-        byte[] byteArray = matOfByte.toArray();
-
-        // Preparing the Buffered Image
-        InputStream in = new ByteArrayInputStream(byteArray);
-        BufferedImage bufImage = null;
-
-        try {
-            bufImage = ImageIO.read(in);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return bufImage;
+        return ImageConverter.toBufferedImage(mat, null);
     }
 
 }
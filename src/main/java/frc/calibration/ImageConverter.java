@@ -0,0 +1,258 @@
+package frc.calibration;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Converts between BufferedImages and Mats by copying the raster's pixels
+ * straight into the mat or out of it, without going through an image codec.
+ *
+ * <p>
+ * Mats keep their pixels in native memory, so each conversion still copies
+ * the pixels once, but from or to the image's own data array and with no
+ * other buffer in between where the layouts match. Both directions can reuse
+ * the caller's destination, which is only reallocated when its size or type
+ * doesn't fit.
+ *
+ * <p>
+ * Supported images are BYTE_GRAY (CV_8UC1), USHORT_GRAY (CV_16UC1),
+ * 3BYTE_BGR (CV_8UC3), 4BYTE_ABGR (CV_8UC4, as BGRA) and the INT_RGB, INT_BGR
+ * and INT_ARGB types (CV_8UC3, or CV_8UC4 with alpha). Any other image is
+ * first drawn into a 3BYTE_BGR or 4BYTE_ABGR copy.
+ */
+public final class ImageConverter {
+
+    // bytes unpacked from int or ABGR rasters before being put into a mat, one
+    // buffer per thread so it can be reused
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[0]);
+
+    private ImageConverter() {
+    }
+
+    /**
+     * Copies an image into a mat.
+     *
+     * @param image the image
+     * @param dst   the mat to copy into, or null for a new one; recreated if its
+     *              size or type doesn't fit
+     * @return the mat holding the image (dst, unless it was null)
+     */
+    public static Mat toMat(BufferedImage image, Mat dst) {
+        Mat mat = dst != null ? dst : new Mat();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int pixels = width * height;
+
+        // images with a padded raster (e.g. subimages) can't be copied in one go
+        if (!isCompact(image)) {
+            return toMat(compactCopy(image), mat);
+        }
+
+        switch (image.getType()) {
+        case BufferedImage.TYPE_BYTE_GRAY:
+            mat.create(height, width, CvType.CV_8UC1);
+            mat.put(0, 0, byteData(image));
+            return mat;
+        case BufferedImage.TYPE_USHORT_GRAY:
+            mat.create(height, width, CvType.CV_16UC1);
+            mat.put(0, 0, ((DataBufferUShort) image.getRaster().getDataBuffer()).getData());
+            return mat;
+        case BufferedImage.TYPE_3BYTE_BGR:
+            mat.create(height, width, CvType.CV_8UC3);
+            mat.put(0, 0, byteData(image));
+            return mat;
+        case BufferedImage.TYPE_4BYTE_ABGR: {
+            // ABGR to BGRA
+            byte[] data = byteData(image);
+            byte[] bgra = scratch(pixels * 4);
+            for (int i = 0; i < pixels * 4; i += 4) {
+                bgra[i] = data[i + 1];
+                bgra[i + 1] = data[i + 2];
+                bgra[i + 2] = data[i + 3];
+                bgra[i + 3] = data[i];
+            }
+            mat.create(height, width, CvType.CV_8UC4);
+            mat.put(0, 0, bgra, 0, pixels * 4);
+            return mat;
+        }
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_BGR: {
+            int[] data = intData(image);
+            byte[] bgr = scratch(pixels * 3);
+            boolean rgb = image.getType() == BufferedImage.TYPE_INT_RGB;
+            for (int i = 0, j = 0; i < pixels; i++, j += 3) {
+                int pixel = data[i];
+                int red = rgb ? pixel >> 16 : pixel;
+                int blue = rgb ? pixel : pixel >> 16;
+                bgr[j] = (byte) blue;
+                bgr[j + 1] = (byte) (pixel >> 8);
+                bgr[j + 2] = (byte) red;
+            }
+            mat.create(height, width, CvType.CV_8UC3);
+            mat.put(0, 0, bgr, 0, pixels * 3);
+            return mat;
+        }
+        case BufferedImage.TYPE_INT_ARGB: {
+            int[] data = intData(image);
+            byte[] bgra = scratch(pixels * 4);
+            for (int i = 0, j = 0; i < pixels; i++, j += 4) {
+                int pixel = data[i];
+                bgra[j] = (byte) pixel;
+                bgra[j + 1] = (byte) (pixel >> 8);
+                bgra[j + 2] = (byte) (pixel >> 16);
+                bgra[j + 3] = (byte) (pixel >>> 24);
+            }
+            mat.create(height, width, CvType.CV_8UC4);
+            mat.put(0, 0, bgra, 0, pixels * 4);
+            return mat;
+        }
+        default:
+            // premultiplied, indexed, packed 16-bit and custom images
+            return toMat(compactCopy(image), mat);
+        }
+    }
+
+    /**
+     * Copies a mat into an image.
+     *
+     * @param mat the mat, of type CV_8UC1, CV_8UC3 (BGR), CV_8UC4 (BGRA) or
+     *            CV_16UC1
+     * @param dst the image to copy into, or null for a new one; replaced by a
+     *            new image if its size or type doesn't fit
+     * @return the image holding the mat (dst, if it fit)
+     */
+    public static BufferedImage toBufferedImage(Mat mat, BufferedImage dst) {
+        int imageType;
+        switch (mat.type()) {
+        case CvType.CV_8UC1:
+            imageType = BufferedImage.TYPE_BYTE_GRAY;
+            break;
+        case CvType.CV_8UC3:
+            imageType = BufferedImage.TYPE_3BYTE_BGR;
+            break;
+        case CvType.CV_8UC4:
+            imageType = BufferedImage.TYPE_4BYTE_ABGR;
+            break;
+        case CvType.CV_16UC1:
+            imageType = BufferedImage.TYPE_USHORT_GRAY;
+            break;
+        default:
+            throw new UnsupportedOperationException("Converting Mat failed: unsupported type " + mat.type() + ".");
+        }
+
+        BufferedImage image = dst;
+        if (image == null || image.getWidth() != mat.cols() || image.getHeight() != mat.rows()
+                || image.getType() != imageType || !isCompact(image)) {
+            image = new BufferedImage(mat.cols(), mat.rows(), imageType);
+        }
+
+        // copy straight into the image's own raster
+        if (imageType == BufferedImage.TYPE_USHORT_GRAY) {
+            mat.get(0, 0, ((DataBufferUShort) image.getRaster().getDataBuffer()).getData());
+            return image;
+        }
+        byte[] data = byteData(image);
+        mat.get(0, 0, data);
+
+        if (imageType == BufferedImage.TYPE_4BYTE_ABGR) {
+            // BGRA to ABGR, in place
+            for (int i = 0; i < data.length; i += 4) {
+                byte alpha = data[i + 3];
+                data[i + 3] = data[i + 2];
+                data[i + 2] = data[i + 1];
+                data[i + 1] = data[i];
+                data[i] = alpha;
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Converts a mat to 8-bit grayscale, which the chessboard detector needs.
+     * Images read from grayscale files are already single channel, and 16-bit
+     * ones are scaled down to 8 bits.
+     *
+     * @param mat  the mat, of type CV_8UC1, CV_8UC3 (BGR), CV_8UC4 (BGRA) or
+     *             CV_16UC1
+     * @param gray the mat to write the CV_8UC1 image to (may not be mat)
+     * @return gray
+     */
+    public static Mat toGray(Mat mat, Mat gray) {
+        switch (mat.type()) {
+        case CvType.CV_8UC1:
+            mat.copyTo(gray);
+            return gray;
+        case CvType.CV_8UC3:
+            Imgproc.cvtColor(mat, gray, Imgproc.COLOR_BGR2GRAY);
+            return gray;
+        case CvType.CV_8UC4:
+            Imgproc.cvtColor(mat, gray, Imgproc.COLOR_BGRA2GRAY);
+            return gray;
+        case CvType.CV_16UC1:
+            mat.convertTo(gray, CvType.CV_8U, 1.0 / 256, 0);
+            return gray;
+        default:
+            throw new UnsupportedOperationException("Converting Mat failed: unsupported type " + mat.type() + ".");
+        }
+    }
+
+    /**
+     * Returns whether an image's data array holds exactly its own pixels, row
+     * after row, so it can be copied as one block.
+     */
+    private static boolean isCompact(BufferedImage image) {
+        int pixels = image.getWidth() * image.getHeight();
+        int bands = image.getRaster().getNumDataElements();
+        switch (image.getRaster().getDataBuffer().getDataType()) {
+        case DataBuffer.TYPE_BYTE:
+            return byteData(image).length == pixels * bands;
+        case DataBuffer.TYPE_USHORT:
+            return ((DataBufferUShort) image.getRaster().getDataBuffer()).getData().length == pixels * bands;
+        case DataBuffer.TYPE_INT:
+            return intData(image).length == pixels * bands;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Draws an image into a new 4BYTE_ABGR image if it has alpha, or a
+     * 3BYTE_BGR image if it doesn't.
+     */
+    private static BufferedImage compactCopy(BufferedImage image) {
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR;
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D graphics = copy.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return copy;
+    }
+
+    private static byte[] byteData(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static int[] intData(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns this thread's scratch buffer, grown to at least the given length.
+     */
+    private static byte[] scratch(int length) {
+        byte[] buffer = scratch.get();
+        if (buffer.length < length) {
+            buffer = new byte[length];
+            scratch.set(buffer);
+        }
+        return buffer;
+    }
+}
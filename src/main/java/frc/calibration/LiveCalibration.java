@@ -0,0 +1,438 @@
+package frc.calibration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import edu.wpi.cscore.CvSink;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Calibrates a camera from its live stream. Frames are searched for the
+ * chessboard on a background thread, and a frame is only kept if the board is
+ * sharp and in a pose that differs from the views already kept. The camera is
+ * recalibrated after every new view, views whose reprojection error is far
+ * above the rest are dropped, and once the overall error stops changing the
+ * result is written with {@link StoreMat}.
+ *
+ * <p>
+ * Run it on its own thread; it stops by itself once done, or when the thread
+ * is interrupted (without saving, unless it had already finished). Detectors
+ * read the calibration when they are created, so the new one is used from the
+ * next start.
+ */
+public class LiveCalibration implements Runnable {
+
+    // calibrations in a row whose error must stay within the tolerance before
+    // the result is considered converged
+    private static final int STABLE_ROUNDS = 3;
+
+    private final CvSink cvSink;
+    private final int camera;
+    private final Size boardSize;
+
+    // the board's corners in board coordinates (one unit per square), in the
+    // order findChessboardCorners returns them
+    private final MatOfPoint3f boardCorners;
+
+    // quality gates
+    private final double minSharpness;
+    private final double minPoseChange;
+
+    // when to drop views and when to stop
+    private final double outlierRatio;
+    private final int minViews;
+    private final int maxViews;
+    private final double tolerance;
+    private final double maxError;
+
+    // the views kept so far
+    private final List<View> views = new ArrayList<View>();
+    private Size imageSize;
+
+    // the current calibration, valid once calibrated is set
+    private final Mat cameraMatrix = new Mat();
+    private final Mat distCoeffs = new Mat();
+    private boolean calibrated = false;
+
+    // overall error of each calibration so far, newest last
+    private final List<Double> errorHistory = new ArrayList<Double>();
+
+    // progress, written by the calibration thread and published by the caller
+    private volatile int framesGrabbed = 0;
+    private volatile int framesWithBoard = 0;
+    private volatile int rejectedBlurry = 0;
+    private volatile int rejectedPose = 0;
+    private volatile int droppedOutliers = 0;
+    private volatile int viewCount = 0;
+    private volatile double error = Double.NaN;
+    private volatile double[] viewErrors = new double[0];
+    private volatile boolean done = false;
+    private volatile boolean saved = false;
+
+    /**
+     * Creates a live calibration.
+     *
+     * @param cvSink        the sink of the camera being calibrated
+     * @param camera        index of the camera, which picks the files the result
+     *                      is written to
+     * @param boardSize     inner corners per row and per column of the
+     *                      chessboard
+     * @param minSharpness  least variance of the Laplacian over the board for a
+     *                      frame to count as sharp (e.g. 100)
+     * @param minPoseChange least distance from every kept view for a frame to be
+     *                      kept, as the mean movement of the board's outer
+     *                      corners in fractions of the image size (e.g. 0.1)
+     * @param outlierRatio  how many times the overall error a view's error must be
+     *                      for the view to be dropped (e.g. 2)
+     * @param minViews      views needed before calibrating (at least 3)
+     * @param maxViews      views after which to stop, converged or not
+     * @param tolerance     largest change in overall error, in pixels, over the
+     *                      last few calibrations for the error to have converged
+     * @param maxError      largest overall error, in pixels, a calibration can
+     *                      have and still be saved
+     */
+    public LiveCalibration(CvSink cvSink, int camera, Size boardSize, double minSharpness, double minPoseChange,
+            double outlierRatio, int minViews, int maxViews, double tolerance, double maxError) {
+        this.cvSink = cvSink;
+        this.camera = camera;
+        this.boardSize = boardSize;
+        this.minSharpness = minSharpness;
+        this.minPoseChange = minPoseChange;
+        this.outlierRatio = outlierRatio;
+        this.minViews = Math.max(minViews, 3);
+        this.maxViews = Math.max(maxViews, this.minViews);
+        this.tolerance = tolerance;
+        this.maxError = maxError;
+
+        // corners run along each row first
+        int perRow = (int) boardSize.width;
+        Point3[] corners = new Point3[(int) boardSize.area()];
+        for (int i = 0; i < corners.length; i++) {
+            corners[i] = new Point3(i % perRow, i / perRow, 0);
+        }
+        boardCorners = new MatOfPoint3f(corners);
+    }
+
+    /**
+     * Grabs and checks frames until the calibration is done or the thread is
+     * interrupted.
+     */
+    @Override
+    public void run() {
+        Mat frame = new Mat();
+        Mat gray = new Mat();
+        Mat laplacian = new Mat();
+        try {
+            while (!done && !Thread.currentThread().isInterrupted()) {
+                // 0 means the grab failed or timed out
+                if (cvSink.grabFrame(frame) == 0) {
+                    continue;
+                }
+                framesGrabbed++;
+                addFrame(frame, gray, laplacian);
+            }
+        } catch (Exception e) {
+            System.out.println("Calibration thread stopped by an unexpected error.");
+            e.printStackTrace();
+            done = true;
+        } finally {
+            frame.release();
+            gray.release();
+            laplacian.release();
+        }
+    }
+
+    /**
+     * Keeps a frame as a new view if it shows the board sharply and in a new
+     * pose, and recalibrates.
+     */
+    private void addFrame(Mat frame, Mat gray, Mat laplacian) {
+        ImageConverter.toGray(frame, gray);
+        if (imageSize == null) {
+            imageSize = gray.size();
+        }
+
+        MatOfPoint2f corners = new MatOfPoint2f();
+        if (!Calib3d.findChessboardCorners(gray, boardSize, corners, CameraCalibration.CHESSBOARD_FLAGS)) {
+            corners.release();
+            return;
+        }
+        framesWithBoard++;
+
+        // motion and focus blur both show up as a low Laplacian variance over the
+        // board
+        if (sharpness(gray, corners, laplacian) < minSharpness) {
+            rejectedBlurry++;
+            corners.release();
+            return;
+        }
+
+        // a pose close to one we have adds little but weight to that pose
+        double[] pose = outerCorners(corners);
+        for (View view : views) {
+            if (poseDistance(pose, view.pose) < minPoseChange) {
+                rejectedPose++;
+                corners.release();
+                return;
+            }
+        }
+
+        Imgproc.cornerSubPix(gray, corners, CameraCalibration.SUB_PIX_WINDOW, CameraCalibration.SUB_PIX_ZERO_ZONE,
+                CameraCalibration.SUB_PIX_CRITERIA);
+        views.add(new View(corners, pose));
+        viewCount = views.size();
+        recalibrate();
+    }
+
+    /**
+     * Returns the variance of the Laplacian over the board's bounding box.
+     */
+    private double sharpness(Mat gray, MatOfPoint2f corners, Mat laplacian) {
+        Rect box = Imgproc.boundingRect(corners);
+        int x = Math.max(box.x, 0);
+        int y = Math.max(box.y, 0);
+        int width = Math.min(box.x + box.width, gray.cols()) - x;
+        int height = Math.min(box.y + box.height, gray.rows()) - y;
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+
+        Mat board = gray.submat(new Rect(x, y, width, height));
+        Imgproc.Laplacian(board, laplacian, CvType.CV_64F);
+        board.release();
+
+        MatOfDouble mean = new MatOfDouble();
+        MatOfDouble stdDev = new MatOfDouble();
+        Core.meanStdDev(laplacian, mean, stdDev);
+        double deviation = stdDev.toArray()[0];
+        mean.release();
+        stdDev.release();
+        return deviation * deviation;
+    }
+
+    /**
+     * Returns the board's four outer corners in fractions of the image size, as
+     * x, y pairs, which captures its position, size and tilt.
+     */
+    private double[] outerCorners(MatOfPoint2f corners) {
+        Point[] points = corners.toArray();
+        int perRow = (int) boardSize.width;
+        int[] outer = { 0, perRow - 1, points.length - perRow, points.length - 1 };
+
+        double[] pose = new double[outer.length * 2];
+        for (int i = 0; i < outer.length; i++) {
+            pose[2 * i] = points[outer[i]].x / imageSize.width;
+            pose[2 * i + 1] = points[outer[i]].y / imageSize.height;
+        }
+        return pose;
+    }
+
+    /**
+     * Returns the mean distance between the outer corners of two poses. The
+     * board can be found in either of two opposite corner orders, so both are
+     * compared.
+     */
+    private static double poseDistance(double[] a, double[] b) {
+        int corners = a.length / 2;
+        double same = 0;
+        double reversed = 0;
+        for (int i = 0; i < corners; i++) {
+            int j = corners - 1 - i;
+            same += Math.hypot(a[2 * i] - b[2 * i], a[2 * i + 1] - b[2 * i + 1]);
+            reversed += Math.hypot(a[2 * i] - b[2 * j], a[2 * i + 1] - b[2 * j + 1]);
+        }
+        return Math.min(same, reversed) / corners;
+    }
+
+    /**
+     * Calibrates from the views kept so far, dropping the worst view while its
+     * error is an outlier, and finishes once the error has converged or there
+     * are enough views.
+     */
+    private void recalibrate() {
+        if (views.size() < minViews) {
+            return;
+        }
+
+        double rms = calibrateViews();
+        while (views.size() > minViews) {
+            View worst = views.get(0);
+            for (View view : views) {
+                if (view.error > worst.error) {
+                    worst = view;
+                }
+            }
+            if (worst.error <= outlierRatio * rms) {
+                break;
+            }
+
+            // the dropped view's pose is free to be filled by a better frame
+            views.remove(worst);
+            worst.corners.release();
+            droppedOutliers++;
+            rms = calibrateViews();
+        }
+
+        viewCount = views.size();
+        error = rms;
+        errorHistory.add(rms);
+        System.out.printf("Calibration: %d views, %.3f px reprojection error.%n", views.size(), rms);
+
+        if (converged() && rms <= maxError) {
+            finish(true);
+        } else if (views.size() >= maxViews) {
+            // out of views; only keep the result if it's good enough
+            finish(rms <= maxError);
+        }
+    }
+
+    /**
+     * Calibrates from the current views, starting from the last calibration, and
+     * stores each view's reprojection error.
+     *
+     * @return the overall reprojection error (RMS over every corner), in pixels
+     */
+    private double calibrateViews() {
+        List<Mat> objectPoints = new ArrayList<Mat>();
+        List<Mat> imagePoints = new ArrayList<Mat>();
+        for (View view : views) {
+            objectPoints.add(boardCorners);
+            imagePoints.add(view.corners);
+        }
+
+        List<Mat> rvecs = new ArrayList<Mat>();
+        List<Mat> tvecs = new ArrayList<Mat>();
+        // each calibration is only a few views off the last one, so start there
+        int flags = calibrated ? Calib3d.CALIB_USE_INTRINSIC_GUESS : 0;
+        double rms = Calib3d.calibrateCamera(objectPoints, imagePoints, imageSize, cameraMatrix, distCoeffs, rvecs,
+                tvecs, flags);
+        calibrated = true;
+
+        // reproject the board into each view to get its own error
+        MatOfDouble coeffs = new MatOfDouble(distCoeffs);
+        MatOfPoint2f projected = new MatOfPoint2f();
+        double[] errors = new double[views.size()];
+        for (int i = 0; i < views.size(); i++) {
+            View view = views.get(i);
+            Calib3d.projectPoints(boardCorners, rvecs.get(i), tvecs.get(i), cameraMatrix, coeffs, projected);
+            view.error = Core.norm(view.corners, projected, Core.NORM_L2) / Math.sqrt(view.corners.total());
+            errors[i] = view.error;
+            rvecs.get(i).release();
+            tvecs.get(i).release();
+        }
+        projected.release();
+        coeffs.release();
+        viewErrors = errors;
+        return rms;
+    }
+
+    /**
+     * Returns whether the overall error has stayed within the tolerance over the
+     * last few calibrations.
+     */
+    private boolean converged() {
+        int count = errorHistory.size();
+        if (count < STABLE_ROUNDS + 1) {
+            return false;
+        }
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (double rms : errorHistory.subList(count - STABLE_ROUNDS - 1, count)) {
+            min = Math.min(min, rms);
+            max = Math.max(max, rms);
+        }
+        return max - min <= tolerance;
+    }
+
+    /**
+     * Stops the calibration, writing the result if it's good enough.
+     */
+    private void finish(boolean save) {
+        if (save) {
+            StoreMat.storeMat(CameraCalibration.cameraMatrixPath(camera), cameraMatrix);
+            StoreMat.storeMat(CameraCalibration.distCoeffsPath(camera), distCoeffs);
+            System.out.printf("Calibration of camera %d saved: %d views, %.3f px reprojection error.%n", camera,
+                    views.size(), error);
+        } else {
+            System.out.printf("Calibration of camera %d not saved: %.3f px reprojection error is over %.3f px.%n",
+                    camera, error, maxError);
+        }
+        saved = save;
+        done = true;
+
+        for (View view : views) {
+            view.corners.release();
+        }
+        views.clear();
+    }
+
+    /**
+     * Returns whether the calibration has stopped by itself.
+     *
+     * @return true once converged or out of views
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns whether the result was written.
+     *
+     * @return true if the calibration finished with a low enough error
+     */
+    public boolean isSaved() {
+        return saved;
+    }
+
+    /**
+     * Returns the overall reprojection error of the latest calibration.
+     *
+     * @return the error in pixels, or NaN before the first calibration
+     */
+    public double getError() {
+        return error;
+    }
+
+    /**
+     * Publishes the calibration's progress to SmartDashboard.
+     */
+    public void publishStats() {
+        SmartDashboard.putNumber("Calibration/Frames", framesGrabbed);
+        SmartDashboard.putNumber("Calibration/Frames With Board", framesWithBoard);
+        SmartDashboard.putNumber("Calibration/Rejected Blurry", rejectedBlurry);
+        SmartDashboard.putNumber("Calibration/Rejected Pose", rejectedPose);
+        SmartDashboard.putNumber("Calibration/Dropped Outliers", droppedOutliers);
+        SmartDashboard.putNumber("Calibration/Views", viewCount);
+        SmartDashboard.putNumber("Calibration/Error px", error);
+        SmartDashboard.putNumberArray("Calibration/View Errors px", viewErrors);
+        SmartDashboard.putBoolean("Calibration/Done", done);
+        SmartDashboard.putBoolean("Calibration/Saved", saved);
+    }
+
+    /**
+     * One kept frame: the board's corners, its pose and its reprojection error.
+     */
+    private static class View {
+        private final MatOfPoint2f corners;
+        private final double[] pose;
+        private double error;
+
+        View(MatOfPoint2f corners, double[] pose) {
+            this.corners = corners;
+            this.pose = pose;
+        }
+    }
+}
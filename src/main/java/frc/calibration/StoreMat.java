@@ -8,111 +8,252 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import java.util.Arrays;
 import java.util.Base64;
+import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 
 /**
- * Utility class for storing or reading mat objects in/from json files.
- * https://stackoverflow.com/questions/27065062/opencv-mat-object-serialization-in-java
- * 
+ * Utility class for storing or reading mat objects in/from files.
+ *
+ * <p>
+ * Mats are stored in a small binary format: a header (the magic bytes "SMAT",
+ * then the format version, rows, cols and CvType as 32-bit ints), followed by
+ * the mat's elements row by row, all little-endian. Every depth and channel
+ * count is supported, and reads map the file instead of parsing it.
+ *
+ * <p>
+ * Files written by the old JSON format ({ rows: #, cols: #, type: #, data:
+ * "___" }, where data is a Base64 Java-serialized array) can still be read, so
+ * existing calibrations keep working until they are redone.
  */
 public class StoreMat {
 
+    // extension of files in the binary format, and of the old JSON files
+    public static final String EXTENSION = ".mat";
+    public static final String LEGACY_EXTENSION = ".json";
+
+    // first bytes of every binary file, and the version written
+    private static final byte[] MAGIC = "SMAT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    // magic, version, rows, cols, type
+    private static final int HEADER_SIZE = MAGIC.length + 4 * 4;
+
     /**
-     * Writes mat to json file.
-     * 
+     * Writes mat to a binary file.
+     *
      * @param filepath the output file
      * @param mat      the mat object to store
      */
     public static void storeMat(String filepath, Mat mat) {
-        FileWriter file;
-        try {
-            // writes to the file
-            file = new FileWriter(filepath);
-            file.write(matToJSON(mat));
-            file.close();
+        // the payload is written row by row, so copy views into one block first
+        Mat continuous = mat.isContinuous() ? mat : mat.clone();
+        int rows = continuous.rows();
+        int cols = continuous.cols();
+        int type = continuous.type();
+        int count = (int) continuous.total() * continuous.channels();
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * depthSize(type))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC).putInt(VERSION).putInt(rows).putInt(cols).putInt(type);
+
+        // copy the elements into the buffer as the mat's own element type
+        switch (CvType.depth(type)) {
+        case CvType.CV_8U:
+        case CvType.CV_8S: {
+            byte[] data = new byte[count];
+            continuous.get(0, 0, data);
+            buffer.put(data);
+            break;
+        }
+        case CvType.CV_16U:
+        case CvType.CV_16S: {
+            short[] data = new short[count];
+            continuous.get(0, 0, data);
+            buffer.asShortBuffer().put(data);
+            break;
+        }
+        case CvType.CV_32S: {
+            int[] data = new int[count];
+            continuous.get(0, 0, data);
+            buffer.asIntBuffer().put(data);
+            break;
+        }
+        case CvType.CV_32F: {
+            float[] data = new float[count];
+            continuous.get(0, 0, data);
+            buffer.asFloatBuffer().put(data);
+            break;
+        }
+        case CvType.CV_64F: {
+            double[] data = new double[count];
+            continuous.get(0, 0, data);
+            buffer.asDoubleBuffer().put(data);
+            break;
+        }
+        default:
+            throw new UnsupportedOperationException("Serializing Mat failed: unknown type " + type + ".");
+        }
+        if (continuous != mat) {
+            continuous.release();
+        }
+
+        buffer.rewind();
+        try (FileChannel channel = FileChannel.open(new File(filepath).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
         } catch (IOException e) {
-            System.out.println("Failed to write json file.");
+            System.out.println("Failed to write mat file.");
             e.printStackTrace();
         }
     }
 
     /**
-     * Converts a mat object to a json string. Final JSON structure: { rows: #,
-     * cols: #, type: #, data: "___" }
-     * 
-     * @param mat the mat object
-     * @return the json string
+     * Returns the file a mat is stored in: the given file if it exists, or else
+     * the old JSON file of the same name if that exists.
+     *
+     * @param filepath the binary file
+     * @return the path to read from
+     */
+    public static String resolve(String filepath) {
+        if (new File(filepath).exists() || !filepath.endsWith(EXTENSION)) {
+            return filepath;
+        }
+        String legacy = filepath.substring(0, filepath.length() - EXTENSION.length()) + LEGACY_EXTENSION;
+        return new File(legacy).exists() ? legacy : filepath;
+    }
+
+    /**
+     * Reads a mat from a given file, in the binary format or the old JSON
+     * format.
+     *
+     * @param filepath the file
+     * @return the mat object, or null if it could not be read
      */
-    private static String matToJSON(Mat mat) {
-
-        JSONObject obj = new JSONObject();
-
-        if (mat.isContinuous()) {
-            int cols = mat.cols();
-            int rows = mat.rows();
-            int elemSize = (int) mat.elemSize();
-            int type = mat.type();
-
-            // store rows, columns, type in json object
-            obj.put("rows", rows);
-            obj.put("cols", cols);
-            obj.put("type", type);
-
-            String dataString;
-
-            // encode underlying mat array to base 64, which becomes our datastring
-            // array type depends on mat type
-            if (type == CvType.CV_32S || type == CvType.CV_32SC2 || type == CvType.CV_32SC3 || type == CvType.CV_16S) {
-                int[] data = new int[cols * rows * elemSize];
-                mat.get(0, 0, data);
-                dataString = new String(Base64.getEncoder().encode(SerializationUtils.serialize(data)));
-            } else if (type == CvType.CV_32F || type == CvType.CV_32FC2) {
-                float[] data = new float[cols * rows * elemSize];
-                mat.get(0, 0, data);
-                dataString = new String(Base64.getEncoder().encode(SerializationUtils.serialize(data)));
-            } else if (type == CvType.CV_64F || type == CvType.CV_64FC2) {
-                double[] data = new double[cols * rows * elemSize];
-                mat.get(0, 0, data);
-                dataString = new String(Base64.getEncoder().encode(SerializationUtils.serialize(data)));
-            } else if (type == CvType.CV_8U) {
-                byte[] data = new byte[cols * rows * elemSize];
-                mat.get(0, 0, data);
-                dataString = new String(Base64.getEncoder().encode(SerializationUtils.serialize(data)));
-            } else {
-
-                throw new UnsupportedOperationException("Serializing Mat failed: unknown type.");
+    public static Mat readMat(String filepath) {
+        try (RandomAccessFile file = new RandomAccessFile(filepath, "r")) {
+            byte[] magic = new byte[MAGIC.length];
+            if (file.length() < HEADER_SIZE || file.read(magic) != magic.length || !Arrays.equals(magic, MAGIC)) {
+                file.close();
+                return readJsonMat(filepath);
             }
 
-            // store final data string in json object
-            obj.put("data", dataString);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return matFromBuffer(buffer, filepath);
+        } catch (IOException e) {
+            System.out.println("Failed to read mat file " + filepath + ".");
+            e.printStackTrace();
+        }
 
-            // return the json object
-            return obj.toJSONString();
-        } else {
-            System.out.println("Mat not continuous.");
+        return null;
+    }
+
+    /**
+     * Creates a mat from a mapped binary file.
+     */
+    private static Mat matFromBuffer(ByteBuffer buffer, String filepath) {
+        buffer.position(MAGIC.length);
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            System.out.println("Unsupported mat file version " + version + " in " + filepath + ".");
+            return null;
         }
+        int rows = buffer.getInt();
+        int cols = buffer.getInt();
+        int type = buffer.getInt();
 
-        // return empty json object if cannot convert
-        return "{}";
+        Mat mat = new Mat(rows, cols, type);
+        int count = (int) mat.total() * mat.channels();
+        if (buffer.remaining() < (long) count * depthSize(type)) {
+            System.out.println("Mat file " + filepath + " is truncated.");
+            mat.release();
+            return null;
+        }
+
+        // copy the payload straight from the mapped file into the mat
+        switch (CvType.depth(type)) {
+        case CvType.CV_8U:
+        case CvType.CV_8S: {
+            byte[] data = new byte[count];
+            buffer.get(data);
+            mat.put(0, 0, data);
+            break;
+        }
+        case CvType.CV_16U:
+        case CvType.CV_16S: {
+            short[] data = new short[count];
+            buffer.asShortBuffer().get(data);
+            mat.put(0, 0, data);
+            break;
+        }
+        case CvType.CV_32S: {
+            int[] data = new int[count];
+            buffer.asIntBuffer().get(data);
+            mat.put(0, 0, data);
+            break;
+        }
+        case CvType.CV_32F: {
+            float[] data = new float[count];
+            buffer.asFloatBuffer().get(data);
+            mat.put(0, 0, data);
+            break;
+        }
+        case CvType.CV_64F: {
+            double[] data = new double[count];
+            buffer.asDoubleBuffer().get(data);
+            mat.put(0, 0, data);
+            break;
+        }
+        default:
+            mat.release();
+            throw new UnsupportedOperationException("Deserializing Mat failed: unknown type " + type + ".");
+        }
+
+        return mat;
+    }
+
+    /**
+     * Returns the size of one element of one channel of a CvType, in bytes.
+     */
+    private static int depthSize(int type) {
+        switch (CvType.depth(type)) {
+        case CvType.CV_8U:
+        case CvType.CV_8S:
+            return 1;
+        case CvType.CV_16U:
+        case CvType.CV_16S:
+            return 2;
+        case CvType.CV_32S:
+        case CvType.CV_32F:
+            return 4;
+        case CvType.CV_64F:
+            return 8;
+        default:
+            throw new UnsupportedOperationException("Unknown mat type " + type + ".");
+        }
     }
 
     /**
-     * Reads a mat from a given json file.
-     * 
+     * Reads a mat from a file in the old JSON format.
+     *
      * @param filepath the json file
-     * @return the mat object
+     * @return the mat object, or null if it could not be read
      */
-    public static Mat readMat(String filepath) {
+    private static Mat readJsonMat(String filepath) {
         JSONParser parser = new JSONParser();
 
-        FileReader reader;
-        try {
-            // read the file
-            reader = new FileReader(filepath);
-
+        try (FileReader reader = new FileReader(filepath)) {
             // parse the json
             JSONObject jsonObject = (JSONObject) parser.parse(reader);
 
@@ -135,8 +276,9 @@ public class StoreMat {
     }
 
     /**
-     * Converts JSON parameters to a mat object.
-     * 
+     * Converts the old JSON parameters to a mat object. The old format stored
+     * arrays elemSize times too long, so only the mat's own elements are put.
+     *
      * @param dataString the serialized mat string
      * @param rows       the number of rows
      * @param cols       the number of columns
@@ -147,26 +289,98 @@ public class StoreMat {
 
         // create a new mat
         Mat mat = new Mat(rows, cols, type);
+        int count = (int) mat.total() * mat.channels();
 
-        // deserialize the data string and put into the empty mat object
-        if (type == CvType.CV_32S || type == CvType.CV_32SC2 || type == CvType.CV_32SC3 || type == CvType.CV_16S) {
-            int[] data = SerializationUtils.deserialize(Base64.getDecoder().decode(dataString.getBytes()));
-            mat.put(0, 0, data);
-        } else if (type == CvType.CV_32F || type == CvType.CV_32FC2) {
-            float[] data = SerializationUtils.deserialize(Base64.getDecoder().decode(dataString.getBytes()));
-            mat.put(0, 0, data);
-        } else if (type == CvType.CV_64F || type == CvType.CV_64FC2) {
-            double[] data = SerializationUtils.deserialize(Base64.getDecoder().decode(dataString.getBytes()));
-            mat.put(0, 0, data);
-        } else if (type == CvType.CV_8U) {
-            byte[] data = Base64.getDecoder().decode(dataString.getBytes());
-            mat.put(0, 0, data);
-        } else {
+        // deserialize the data string (every type was written as a serialized array,
+        // including CV_8U)
+        Object data = SerializationUtils.deserialize(Base64.getDecoder().decode(dataString.getBytes()));
+        double[] values = legacyValues(data, count);
+        if (values == null) {
+            mat.release();
             throw new UnsupportedOperationException("Deserializing Mat failed: unknown type.");
         }
 
+        // Mat.put only accepts the array type matching the mat's depth, and old
+        // files don't always use it (e.g. CV_16S data stored as int[]), so
+        // convert to the mat's element type. Casting keeps the bit pattern of
+        // unsigned values, e.g. 65535 becomes (short) -1 for CV_16U.
+        switch (CvType.depth(type)) {
+        case CvType.CV_8U:
+        case CvType.CV_8S: {
+            byte[] bytes = new byte[count];
+            for (int i = 0; i < count; i++) {
+                bytes[i] = (byte) (long) values[i];
+            }
+            mat.put(0, 0, bytes);
+            break;
+        }
+        case CvType.CV_16U:
+        case CvType.CV_16S: {
+            short[] shorts = new short[count];
+            for (int i = 0; i < count; i++) {
+                shorts[i] = (short) (long) values[i];
+            }
+            mat.put(0, 0, shorts);
+            break;
+        }
+        case CvType.CV_32S: {
+            int[] ints = new int[count];
+            for (int i = 0; i < count; i++) {
+                ints[i] = (int) (long) values[i];
+            }
+            mat.put(0, 0, ints);
+            break;
+        }
+        case CvType.CV_32F: {
+            float[] floats = new float[count];
+            for (int i = 0; i < count; i++) {
+                floats[i] = (float) values[i];
+            }
+            mat.put(0, 0, floats);
+            break;
+        }
+        default:
+            mat.put(0, 0, values);
+            break;
+        }
+
         return mat;
 
     }
 
+    /**
+     * Reads the first count elements of an old serialized array as doubles
+     * (missing elements are zero), or returns null if it isn't a primitive
+     * number array.
+     */
+    private static double[] legacyValues(Object data, int count) {
+        double[] values = new double[count];
+        if (data instanceof byte[]) {
+            byte[] array = (byte[]) data;
+            for (int i = 0; i < Math.min(count, array.length); i++) {
+                values[i] = array[i];
+            }
+        } else if (data instanceof short[]) {
+            short[] array = (short[]) data;
+            for (int i = 0; i < Math.min(count, array.length); i++) {
+                values[i] = array[i];
+            }
+        } else if (data instanceof int[]) {
+            int[] array = (int[]) data;
+            for (int i = 0; i < Math.min(count, array.length); i++) {
+                values[i] = array[i];
+            }
+        } else if (data instanceof float[]) {
+            float[] array = (float[]) data;
+            for (int i = 0; i < Math.min(count, array.length); i++) {
+                values[i] = array[i];
+            }
+        } else if (data instanceof double[]) {
+            System.arraycopy(data, 0, values, 0, Math.min(count, ((double[]) data).length));
+        } else {
+            return null;
+        }
+        return values;
+    }
+
 }
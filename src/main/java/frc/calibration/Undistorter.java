@@ -0,0 +1,187 @@
+package frc.calibration;
+
+import java.io.File;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Removes lens distortion for one camera, either from every frame or only from
+ * the points that were detected in it.
+ *
+ * <p>
+ * REMAP builds the undistortion maps once with initUndistortRectifyMap (as
+ * fixed-point maps, which remap handles fastest) and caches them next to the
+ * calibration files, so they are not recomputed at boot. POINTS leaves the
+ * frame alone and only undistorts each detected centroid with undistortPoints,
+ * which costs almost nothing.
+ */
+public class Undistorter {
+
+    /**
+     * What gets undistorted.
+     */
+    public enum Mode {
+        // nothing; coordinates come from distorted pixels
+        NONE,
+        // every frame, through precomputed remap tables
+        REMAP,
+        // only the detected points
+        POINTS
+    }
+
+    // directory the remap tables are cached in
+    public static final String MAP_CACHE_DIR = "src/main/java/frc/calibration";
+
+    private final Mode mode;
+
+    private final Mat cameraMatrix;
+    private final Mat distCoeffs;
+
+    // fixed-point remap tables (REMAP mode only)
+    private Mat map1;
+    private Mat map2;
+
+    // scratch space for undistortPoint()
+    private final MatOfPoint2f distortedPoint = new MatOfPoint2f();
+    private final MatOfPoint2f undistortedPoint = new MatOfPoint2f();
+    private final float[] pointData = new float[2];
+    private final Mat noRectification = new Mat();
+
+    /**
+     * Creates an undistorter for a camera. If the camera is not calibrated, the
+     * mode falls back to NONE.
+     *
+     * @param mode         what to undistort
+     * @param cameraMatrix the camera matrix, or null if the camera is not
+     *                     calibrated
+     * @param distCoeffs   the distortion coefficients, or null if the camera is
+     *                     not calibrated
+     * @param width        frame width in pixels
+     * @param height       frame height in pixels
+     */
+    public Undistorter(Mode mode, Mat cameraMatrix, Mat distCoeffs, int width, int height) {
+        if (cameraMatrix == null || distCoeffs == null) {
+            mode = Mode.NONE;
+        }
+        this.mode = mode;
+        this.cameraMatrix = cameraMatrix;
+        this.distCoeffs = distCoeffs;
+
+        if (mode == Mode.REMAP) {
+            loadOrBuildMaps(width, height);
+        } else if (mode == Mode.POINTS) {
+            distortedPoint.alloc(1);
+            undistortedPoint.alloc(1);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Reads the remap tables from the cache, or builds and caches them if they
+     * are missing. Cache files are named after a hash of the calibration and
+     * frame size, so a new calibration never reuses stale tables.
+     */
+    private void loadOrBuildMaps(int width, int height) {
+        String key = Integer.toHexString(calibrationHash(width, height));
+        File map1File = new File(MAP_CACHE_DIR, "undistort_map1_" + key + StoreMat.EXTENSION);
+        File map2File = new File(MAP_CACHE_DIR, "undistort_map2_" + key + StoreMat.EXTENSION);
+
+        if (map1File.length() != 0 && map2File.length() != 0) {
+            map1 = StoreMat.readMat(map1File.getPath());
+            map2 = StoreMat.readMat(map2File.getPath());
+            if (map1 != null && map2 != null) {
+                return;
+            }
+        }
+
+        // build fixed-point maps (CV_16SC2 coordinates plus CV_16UC1 interpolation
+        // weights), keeping the original camera matrix for the undistorted image
+        map1 = new Mat();
+        map2 = new Mat();
+        Imgproc.initUndistortRectifyMap(cameraMatrix, distCoeffs, noRectification, cameraMatrix,
+                new Size(width, height), CvType.CV_16SC2, map1, map2);
+
+        StoreMat.storeMat(map1File.getPath(), map1);
+        StoreMat.storeMat(map2File.getPath(), map2);
+    }
+
+    /**
+     * Hashes the calibration values and frame size the remap tables depend on.
+     */
+    private int calibrationHash(int width, int height) {
+        int hash = 31 * width + height;
+        for (Mat mat : new Mat[] { cameraMatrix, distCoeffs }) {
+            for (int row = 0; row < mat.rows(); row++) {
+                for (int col = 0; col < mat.cols(); col++) {
+                    hash = 31 * hash + Double.hashCode(mat.get(row, col)[0]);
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Undistorts one region of a frame through the remap tables. Does nothing
+     * unless the mode is REMAP.
+     *
+     * @param src    the distorted frame
+     * @param dst    full-size frame that the region is written to
+     * @param region the region of dst to fill
+     */
+    public void remap(Mat src, Mat dst, Rect region) {
+        if (mode != Mode.REMAP) {
+            return;
+        }
+
+        // the tables map each destination pixel to its source, so a region of the
+        // output only needs the same region of the tables
+        if (region.width == dst.cols() && region.height == dst.rows()) {
+            Imgproc.remap(src, dst, map1, map2, Imgproc.INTER_LINEAR);
+            return;
+        }
+
+        Mat dstView = dst.submat(region);
+        Mat map1View = map1.submat(region);
+        Mat map2View = map2.submat(region);
+        Imgproc.remap(src, dstView, map1View, map2View, Imgproc.INTER_LINEAR);
+        dstView.release();
+        map1View.release();
+        map2View.release();
+    }
+
+    /**
+     * Undistorts a single pixel coordinate. Returns the point unchanged unless
+     * the mode is POINTS. Not thread-safe; call from one thread only.
+     *
+     * @param x   distorted x coordinate, in pixels
+     * @param y   distorted y coordinate, in pixels
+     * @param out array that the undistorted x and y are written to
+     */
+    public void undistortPoint(double x, double y, double[] out) {
+        if (mode != Mode.POINTS) {
+            out[0] = x;
+            out[1] = y;
+            return;
+        }
+
+        pointData[0] = (float) x;
+        pointData[1] = (float) y;
+        distortedPoint.put(0, 0, pointData);
+
+        // passing the camera matrix as P maps the result back to pixels
+        Imgproc.undistortPoints(distortedPoint, undistortedPoint, cameraMatrix, distCoeffs, noRectification,
+                cameraMatrix);
+
+        undistortedPoint.get(0, 0, pointData);
+        out[0] = pointData[0];
+        out[1] = pointData[1];
+    }
+}
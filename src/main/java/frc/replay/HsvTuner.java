@@ -0,0 +1,447 @@
+package frc.replay;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import frc.robot.commands.vision.TrackTargetCommand;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Finds the HSV range that best picks out the lemons in a set of labelled
+ * frames, and writes it back to the lemon config, so the sliders don't have to
+ * be tuned by hand at the field.
+ *
+ * <p>
+ * Each frame is labelled with a mask image of the same name in the label
+ * directory (any pixel that isn't black is lemon). Frames are blurred and
+ * converted to HSV once, like the detector does before thresholding, so trying
+ * a range only costs one threshold pass and a pixel count per frame. A range is
+ * scored by its intersection over union with the labels, summed over every
+ * frame.
+ *
+ * <p>
+ * The search is a coordinate search: starting from the config's current range,
+ * every value of one of the six bounds is tried (on a grid, in parallel on a
+ * fork-join pool) while the others are held, the best is kept, and the next
+ * bound is searched, until no bound improves. The grid is then halved, down to
+ * single steps. The winning range is written into the {@code val} of each
+ * bound, within its {@code min} and {@code max}; the rest of the config file is
+ * left as it is.
+ *
+ * <p>
+ * Usage:
+ * {@code ./gradlew tuneHsv -PtunerArgs="<image dir | video> <label dir> [options]"}
+ *
+ * <pre>
+ * --config FILE   lemon config to start from and write to (default: the robot's lemon_config.json)
+ * --step N        coarsest grid step (default 8)
+ * --threads N     threads to search with (default: one per core)
+ * --fps FPS       frame rate the images were taken at (default 30)
+ * --dry-run       print the range without writing it
+ * </pre>
+ */
+public class HsvTuner {
+
+    // the six bounds in the config, in the order they are searched: low h, s, v,
+    // then high h, s, v
+    static final String[] KEYS = { "h_low", "s_low", "v_low", "h_high", "s_high", "v_high" };
+
+    // label images are looked for with the frame's own name, then these
+    private static final String[] LABEL_EXTENSIONS = { ".png", ".bmp", ".jpg" };
+
+    // blur the detector runs before thresholding
+    private static final Size BLUR_SIZE = new Size(3, 3);
+
+    // the frames in HSV, each frame's label mask, and its labelled pixel count
+    private final List<Mat> hsvFrames = new ArrayList<Mat>();
+    private final List<Mat> labels = new ArrayList<Mat>();
+    private final List<Long> labelPixels = new ArrayList<Long>();
+
+    // bounds of each value, from the config
+    private final int[] min = new int[KEYS.length];
+    private final int[] max = new int[KEYS.length];
+
+    private final ForkJoinPool pool;
+
+    // scratch mats for each thread, and every one handed out so they can be
+    // released
+    private final List<Scratch> allScratch = new ArrayList<Scratch>();
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(() -> {
+        Scratch created = new Scratch();
+        synchronized (allScratch) {
+            allScratch.add(created);
+        }
+        return created;
+    });
+
+    // ranges scored so far
+    private long evaluations = 0;
+
+    private HsvTuner(int threads) {
+        pool = new ForkJoinPool(threads);
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        if (args.length < 2) {
+            System.out.println("Usage: HsvTuner <image dir | video> <label dir> [--config FILE] [--step N] "
+                    + "[--threads N] [--fps FPS] [--dry-run]");
+            System.exit(2);
+        }
+
+        File input = new File(args[0]);
+        File labelDir = new File(args[1]);
+        String configPath = option(args, "--config", TrackTargetCommand.HSV_CONFIG_FILE_PATH);
+        int step = Integer.parseInt(option(args, "--step", "8"));
+        int threads = Integer.parseInt(
+                option(args, "--threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        double fps = Double.parseDouble(option(args, "--fps", "30"));
+        boolean dryRun = flag(args, "--dry-run");
+
+        HsvTuner tuner = new HsvTuner(threads);
+        int[] start = tuner.readConfig(configPath);
+        if (start == null) {
+            System.exit(2);
+        }
+        tuner.loadFrames(input, labelDir, fps);
+        if (tuner.hsvFrames.isEmpty()) {
+            System.out.println("No labelled frames found in " + input);
+            System.exit(2);
+        }
+
+        long startNanos = System.nanoTime();
+        double startScore = tuner.evaluate(start);
+        int[] best = tuner.search(start, step);
+        double bestScore = tuner.evaluate(best);
+        System.out.printf("%d frames, %d ranges tried in %.1f s on %d threads%n", tuner.hsvFrames.size(),
+                tuner.evaluations, (System.nanoTime() - startNanos) / 1e9, threads);
+        System.out.printf("IoU %.4f -> %.4f%n", startScore, bestScore);
+        System.out.println("low  " + best[0] + ", " + best[1] + ", " + best[2]);
+        System.out.println("high " + best[3] + ", " + best[4] + ", " + best[5]);
+
+        if (!dryRun) {
+            writeRange(configPath, best);
+            System.out.println("Wrote the range to " + configPath);
+        }
+        tuner.release();
+        System.exit(0);
+    }
+
+    /**
+     * Reads the current value and bounds of each of the six values.
+     *
+     * @return the current values, or null if the config could not be read
+     */
+    private int[] readConfig(String filepath) {
+        JSONParser parser = new JSONParser();
+
+        try (FileReader reader = new FileReader(new File(filepath))) {
+            JSONObject jsonObj = (JSONObject) parser.parse(reader);
+            int[] values = new int[KEYS.length];
+            for (int k = 0; k < KEYS.length; k++) {
+                JSONObject obj = (JSONObject) jsonObj.get(KEYS[k]);
+                values[k] = ((Number) obj.get("val")).intValue();
+                min[k] = ((Number) obj.get("min")).intValue();
+                max[k] = ((Number) obj.get("max")).intValue();
+            }
+            // start from a range that isn't empty
+            for (int k = 0; k < 3; k++) {
+                values[k] = clamp(values[k], min[k], max[k]);
+                values[k + 3] = clamp(values[k + 3], Math.max(values[k], min[k + 3]), max[k + 3]);
+            }
+            return values;
+        } catch (IOException e) {
+            System.out.println("IO error while reading HSV config file.");
+            e.printStackTrace();
+        } catch (ParseException e) {
+            System.out.println("Could not parse HSV config file.");
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Converts every frame that has a label image to HSV, and loads the labels.
+     */
+    private void loadFrames(File input, File labelDir, double fps) {
+        ReplayFrames frames = new ReplayFrames(input, VisionSubsystem.STREAM_WIDTH, VisionSubsystem.STREAM_HEIGHT,
+                fps);
+        Size size = new Size(VisionSubsystem.STREAM_WIDTH, VisionSubsystem.STREAM_HEIGHT);
+        Mat image = new Mat(VisionSubsystem.STREAM_HEIGHT, VisionSubsystem.STREAM_WIDTH, CvType.CV_8UC3);
+        Mat blurred = new Mat();
+
+        while (frames.next(image)) {
+            File labelFile = findLabel(labelDir, frames.getName());
+            if (labelFile == null) {
+                System.out.println("No label for frame " + frames.getName() + ", skipping.");
+                continue;
+            }
+            Mat label = Imgcodecs.imread(labelFile.getPath(), Imgcodecs.IMREAD_GRAYSCALE);
+            if (label.empty()) {
+                System.out.println("Could not read label " + labelFile + ", skipping.");
+                label.release();
+                continue;
+            }
+            // nearest neighbour keeps the label binary when it has to be resized
+            if (label.cols() != size.width || label.rows() != size.height) {
+                Imgproc.resize(label, label, size, 0, 0, Imgproc.INTER_NEAREST);
+            }
+            Imgproc.threshold(label, label, 0, 255, Imgproc.THRESH_BINARY);
+
+            Mat hsv = new Mat();
+            Imgproc.GaussianBlur(image, blurred, BLUR_SIZE, 0);
+            Imgproc.cvtColor(blurred, hsv, Imgproc.COLOR_BGR2HSV);
+
+            hsvFrames.add(hsv);
+            labels.add(label);
+            labelPixels.add((long) Core.countNonZero(label));
+        }
+
+        frames.release();
+        image.release();
+        blurred.release();
+    }
+
+    /**
+     * Returns the label image for a frame: the file with the frame's name, or
+     * its name with an image extension in place of its own.
+     */
+    private static File findLabel(File labelDir, String name) {
+        File same = new File(labelDir, name);
+        if (same.isFile()) {
+            return same;
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        for (String extension : LABEL_EXTENSIONS) {
+            File file = new File(labelDir, base + extension);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Searches one bound at a time for the range with the best score, on a grid
+     * that is halved each time no bound improves.
+     *
+     * @param start the range to start from
+     * @param step  the coarsest grid step
+     * @return the best range found
+     */
+    private int[] search(int[] start, int step) {
+        int[] best = start.clone();
+        double bestScore = evaluate(best);
+
+        for (; step >= 1; step /= 2) {
+            boolean improved = true;
+            while (improved) {
+                improved = false;
+                for (int k = 0; k < KEYS.length; k++) {
+                    int[] values = candidates(best, k, step);
+                    double[] scores = new double[values.length];
+                    pool.invoke(new SearchTask(best, k, values, scores, 0, values.length));
+
+                    // only move on a strict improvement, so ties keep the current value
+                    // and the result doesn't depend on the thread timing
+                    for (int i = 0; i < values.length; i++) {
+                        if (scores[i] > bestScore) {
+                            bestScore = scores[i];
+                            best[k] = values[i];
+                            improved = true;
+                        }
+                    }
+                }
+            }
+            System.out.printf("step %3d: IoU %.4f%n", step, bestScore);
+        }
+        return best;
+    }
+
+    /**
+     * Returns the values to try for one bound: its grid between its limits,
+     * where a low bound can't pass its high bound and the other way round.
+     */
+    private int[] candidates(int[] range, int k, int step) {
+        int low = k < 3 ? min[k] : Math.max(min[k], range[k - 3]);
+        int high = k < 3 ? Math.min(max[k], range[k + 3]) : max[k];
+        int count = (high - low) / step + 1;
+        boolean endOnGrid = (high - low) % step == 0;
+        int[] values = new int[endOnGrid ? count : count + 1];
+        for (int i = 0; i < count; i++) {
+            values[i] = low + i * step;
+        }
+        // always try the limit itself
+        if (!endOnGrid) {
+            values[count] = high;
+        }
+        return values;
+    }
+
+    /**
+     * Scores a range: the pixels it shares with the labels over the pixels in
+     * either, summed over every frame.
+     *
+     * @param range low h, s, v and high h, s, v
+     * @return the intersection over union, 1 if neither has any pixels
+     */
+    private double evaluate(int[] range) {
+        Scratch s = scratch.get();
+        for (int c = 0; c < 3; c++) {
+            s.low.val[c] = range[c];
+            s.high.val[c] = range[c + 3];
+        }
+
+        long intersection = 0;
+        long union = 0;
+        for (int i = 0; i < hsvFrames.size(); i++) {
+            Core.inRange(hsvFrames.get(i), s.low, s.high, s.mask);
+            Core.bitwise_and(s.mask, labels.get(i), s.overlap);
+            long overlap = Core.countNonZero(s.overlap);
+            intersection += overlap;
+            union += Core.countNonZero(s.mask) + labelPixels.get(i) - overlap;
+        }
+        synchronized (this) {
+            evaluations++;
+        }
+        return union > 0 ? (double) intersection / union : 1;
+    }
+
+    /**
+     * Writes a range into the {@code val} of each bound in a config file,
+     * leaving the rest of the file as it is.
+     *
+     * @param filepath the config file
+     * @param range    low h, s, v and high h, s, v
+     * @throws IOException if the file can't be read or written, or is missing a
+     *                     bound
+     */
+    static void writeRange(String filepath, int[] range) throws IOException {
+        String text = new String(Files.readAllBytes(Paths.get(filepath)), StandardCharsets.UTF_8);
+        for (int k = 0; k < KEYS.length; k++) {
+            Pattern pattern = Pattern.compile("(\"" + KEYS[k] + "\"\\s*:\\s*\\{[^}]*?\"val\"\\s*:\\s*)-?[0-9.]+");
+            Matcher matcher = pattern.matcher(text);
+            if (!matcher.find()) {
+                throw new IOException("No " + KEYS[k] + " value in " + filepath);
+            }
+            text = text.substring(0, matcher.start()) + matcher.group(1) + range[k] + text.substring(matcher.end());
+        }
+        Files.write(Paths.get(filepath), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Frees the frames, labels and scratch mats.
+     */
+    private void release() {
+        pool.shutdown();
+        for (Mat mat : hsvFrames) {
+            mat.release();
+        }
+        for (Mat mat : labels) {
+            mat.release();
+        }
+        synchronized (allScratch) {
+            for (Scratch s : allScratch) {
+                s.mask.release();
+                s.overlap.release();
+            }
+        }
+    }
+
+    private static int clamp(int value, int low, int high) {
+        return Math.max(low, Math.min(high, value));
+    }
+
+    /**
+     * Returns the value following an option on the command line.
+     */
+    private static String option(String[] args, String name, String defaultValue) {
+        for (int i = 2; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns whether an option without a value is on the command line.
+     */
+    private static boolean flag(String[] args, String name) {
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One thread's threshold mask, its overlap with a label, and the range's
+     * bounds.
+     */
+    private static class Scratch {
+        private final Mat mask = new Mat();
+        private final Mat overlap = new Mat();
+        private final Scalar low = new Scalar(0, 0, 0);
+        private final Scalar high = new Scalar(0, 0, 0);
+    }
+
+    /**
+     * Scores the candidate values of one bound, splitting the candidates in half
+     * until each task has one.
+     */
+    private class SearchTask extends RecursiveAction {
+        private final int[] range;
+        private final int k;
+        private final int[] values;
+        private final double[] scores;
+        private final int from;
+        private final int to;
+
+        SearchTask(int[] range, int k, int[] values, double[] scores, int from, int to) {
+            this.range = range;
+            this.k = k;
+            this.values = values;
+            this.scores = scores;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                int[] candidate = range.clone();
+                candidate[k] = values[from];
+                scores[from] = evaluate(candidate);
+                return;
+            }
+            int middle = (from + to) / 2;
+            invokeAll(new SearchTask(range, k, values, scores, from, middle),
+                    new SearchTask(range, k, values, scores, middle, to));
+        }
+    }
+}
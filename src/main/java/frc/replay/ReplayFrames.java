@@ -0,0 +1,150 @@
+package frc.replay;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+/**
+ * Recorded frames to replay through the detector: either every image in a
+ * directory (in file name order) or every frame of a video file. Frames that
+ * aren't the camera stream's size are resized to it.
+ */
+public class ReplayFrames {
+
+    // image files read from a directory
+    private static final String[] IMAGE_EXTENSIONS = { ".jpg", ".jpeg", ".png", ".bmp" };
+
+    // the images to replay (null for a video)
+    private final File[] images;
+    // the video to replay (null for a directory)
+    private final VideoCapture video;
+
+    // time between frames for images, which have no timestamps, in microseconds
+    private final long framePeriodMicros;
+
+    private final Size size;
+    // the decoded frame, before resizing
+    private final Mat decoded = new Mat();
+
+    private int index = -1;
+    private String name;
+    private long timeMicros;
+
+    /**
+     * Opens a directory of images or a video file.
+     *
+     * @param path      the directory or video file
+     * @param width     width of the frames handed out, in pixels
+     * @param height    height of the frames handed out, in pixels
+     * @param imagesFps frame rate the images were recorded at (gives them
+     *                  timestamps for the trackers)
+     */
+    public ReplayFrames(File path, int width, int height, double imagesFps) {
+        this.size = new Size(width, height);
+        this.framePeriodMicros = (long) (1e6 / imagesFps);
+
+        if (path.isDirectory()) {
+            images = path.listFiles(file -> {
+                String lower = file.getName().toLowerCase();
+                return Arrays.stream(IMAGE_EXTENSIONS).anyMatch(lower::endsWith);
+            });
+            Arrays.sort(images);
+            video = null;
+        } else {
+            images = null;
+            video = new VideoCapture(path.getPath());
+            if (!video.isOpened()) {
+                throw new IllegalArgumentException("Could not open video " + path);
+            }
+        }
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @param frame BGR mat the frame is written to, at the requested size
+     * @return false once there are no more frames
+     */
+    public boolean next(Mat frame) {
+        index++;
+        if (images != null) {
+            if (index >= images.length) {
+                return false;
+            }
+            Mat image = Imgcodecs.imread(images[index].getPath());
+            if (image.empty()) {
+                System.out.println("Could not read image " + images[index] + ", skipping.");
+                image.release();
+                return next(frame);
+            }
+            name = images[index].getName();
+            timeMicros = index * framePeriodMicros;
+            fit(image, frame);
+            image.release();
+        } else {
+            if (!video.read(decoded)) {
+                return false;
+            }
+            name = Integer.toString(index);
+            timeMicros = (long) (video.get(Videoio.CAP_PROP_POS_MSEC) * 1000);
+            fit(decoded, frame);
+        }
+        return true;
+    }
+
+    /**
+     * Copies or resizes a decoded frame into the output frame.
+     */
+    private void fit(Mat src, Mat dst) {
+        if (src.cols() == size.width && src.rows() == size.height) {
+            src.copyTo(dst);
+        } else {
+            Imgproc.resize(src, dst, size, 0, 0, Imgproc.INTER_AREA);
+        }
+    }
+
+    /**
+     * Returns the name of the current frame: the image's file name, or the
+     * frame's index in the video. Labels refer to frames by this name.
+     *
+     * @return the frame name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the index of the current frame, counting from 0.
+     *
+     * @return the frame index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the current frame's timestamp: its position in the video, or its
+     * index times the image frame period.
+     *
+     * @return the timestamp, in microseconds
+     */
+    public long getTimeMicros() {
+        return timeMicros;
+    }
+
+    /**
+     * Closes the video and frees the decoded frame.
+     */
+    public void release() {
+        if (video != null) {
+            video.release();
+        }
+        decoded.release();
+    }
+}
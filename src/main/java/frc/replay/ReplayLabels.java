@@ -0,0 +1,174 @@
+package frc.replay;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import frc.robot.commands.vision.Target;
+
+/**
+ * Hand-labelled lemon centers for replayed frames, and the running accuracy
+ * of the detector against them.
+ *
+ * <p>
+ * The labels file is CSV with one lemon per line: {@code frame,x,y}, where
+ * frame is the image's file name or the frame's index in the video, and x/y
+ * are in camera-stream pixels. Lines starting with # are ignored. Every frame
+ * is labelled: a frame without any lines has no lemons.
+ */
+public class ReplayLabels {
+
+    // lemon centers of each frame, as x/y pairs
+    private final Map<String, double[]> centers = new HashMap<String, double[]>();
+
+    // farthest a target can be from a label and still match it, in pixels
+    private final double maxError;
+
+    // running totals
+    private int labelCount = 0;
+    private int targetCount = 0;
+    private int matchCount = 0;
+    private double errorSum = 0;
+
+    // scratch space: which targets of the current frame are already matched
+    private boolean[] matched = new boolean[0];
+
+    /**
+     * Reads a labels file.
+     *
+     * @param filepath the labels file
+     * @param maxError farthest a target can be from a label and still match it,
+     *                 in pixels
+     * @throws IOException if the file can't be read
+     */
+    public ReplayLabels(String filepath, double maxError) throws IOException {
+        this.maxError = maxError;
+
+        Map<String, List<double[]>> lemons = new HashMap<String, List<double[]>>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filepath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length != 3) {
+                    throw new IOException("Bad label line (expected frame,x,y): " + line);
+                }
+                double[] center;
+                try {
+                    center = new double[] { Double.parseDouble(fields[1].trim()),
+                            Double.parseDouble(fields[2].trim()) };
+                } catch (NumberFormatException e) {
+                    // header line
+                    continue;
+                }
+                lemons.computeIfAbsent(fields[0].trim(), frame -> new ArrayList<double[]>()).add(center);
+            }
+        }
+
+        for (Map.Entry<String, List<double[]>> entry : lemons.entrySet()) {
+            List<double[]> list = entry.getValue();
+            double[] pairs = new double[list.size() * 2];
+            for (int i = 0; i < list.size(); i++) {
+                pairs[i * 2] = list.get(i)[0];
+                pairs[i * 2 + 1] = list.get(i)[1];
+            }
+            centers.put(entry.getKey(), pairs);
+        }
+    }
+
+    /**
+     * Scores one frame's targets against its labels. Each label is matched to
+     * the nearest unmatched target within the maximum error, closest labels
+     * first.
+     *
+     * @param frame   the frame's name
+     * @param targets the targets found in the frame
+     */
+    public void score(String frame, List<Target> targets) {
+        double[] labels = centers.getOrDefault(frame, new double[0]);
+        int frameLabels = labels.length / 2;
+        labelCount += frameLabels;
+        targetCount += targets.size();
+
+        if (matched.length < targets.size()) {
+            matched = new boolean[targets.size()];
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            matched[i] = false;
+        }
+
+        // greedy: repeatedly take the closest unmatched label/target pair
+        boolean[] labelMatched = new boolean[frameLabels];
+        while (true) {
+            int bestLabel = -1;
+            int bestTarget = -1;
+            double bestError = maxError;
+            for (int l = 0; l < frameLabels; l++) {
+                if (labelMatched[l]) {
+                    continue;
+                }
+                for (int t = 0; t < targets.size(); t++) {
+                    if (matched[t]) {
+                        continue;
+                    }
+                    double dx = targets.get(t).getX() - labels[l * 2];
+                    double dy = targets.get(t).getY() - labels[l * 2 + 1];
+                    double error = Math.sqrt(dx * dx + dy * dy);
+                    if (error <= bestError) {
+                        bestLabel = l;
+                        bestTarget = t;
+                        bestError = error;
+                    }
+                }
+            }
+            if (bestLabel < 0) {
+                break;
+            }
+            labelMatched[bestLabel] = true;
+            matched[bestTarget] = true;
+            matchCount++;
+            errorSum += bestError;
+        }
+    }
+
+    /**
+     * Returns the fraction of labelled lemons that were found.
+     *
+     * @return the recall, or 1 if nothing was labelled
+     */
+    public double getRecall() {
+        return labelCount > 0 ? (double) matchCount / labelCount : 1;
+    }
+
+    /**
+     * Returns the fraction of targets that were labelled lemons.
+     *
+     * @return the precision, or 1 if nothing was found
+     */
+    public double getPrecision() {
+        return targetCount > 0 ? (double) matchCount / targetCount : 1;
+    }
+
+    /**
+     * Returns the mean distance between matched targets and their labels.
+     *
+     * @return the mean centroid error in pixels, or NaN if nothing matched
+     */
+    public double getMeanError() {
+        return matchCount > 0 ? errorSum / matchCount : Double.NaN;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d labelled lemons, %d targets, %d matched: recall %.3f, precision %.3f, "
+                + "mean centroid error %.2f px", labelCount, targetCount, matchCount, getRecall(), getPrecision(),
+                getMeanError());
+    }
+}
@@ -0,0 +1,337 @@
+package frc.replay;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import frc.robot.commands.vision.DetectorFactory;
+import frc.robot.commands.vision.FixedHsvRange;
+import frc.robot.commands.vision.LemonDetector;
+import frc.robot.commands.vision.PreprocessChain;
+import frc.robot.commands.vision.PreprocessStage;
+import frc.robot.commands.vision.Target;
+import frc.robot.commands.vision.TrackTargetCommand;
+import frc.robot.commands.vision.VisionConfig;
+import frc.robot.commands.vision.VisionFrame;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Replays recorded frames through the lemon detector on a desktop, with no
+ * robot, camera or dashboard, as fast as the detector runs. Builds the detector
+ * from the lemon config exactly as the robot does (with the config's saved HSV
+ * range), and reports the frame rate and each stage's timing. Can write every
+ * frame's timing and detections as CSV, and score the detections against a
+ * labels file (see {@link ReplayLabels}), or check the configured
+ * preprocessing chain against the default one pixel by pixel.
+ *
+ * <p>
+ * Usage: {@code ./gradlew replay -PreplayArgs="<image dir | video> [options]"}
+ * 
+ * <pre>
+ * --config FILE       lemon config (default: the robot's lemon_config.json)
+ * --pipeline FILE     preprocessing chain (default: the robot's vision_pipeline.json)
+ * --frames FILE       write each frame's stage timings as CSV
+ * --detections FILE   write each detection as CSV
+ * --labels FILE       score the detections against hand labels
+ * --max-error PX      farthest a detection can be from a label (default 10)
+ * --min-recall R      exit with status 1 if recall is below R
+ * --min-precision P   exit with status 1 if precision is below P
+ * --fps FPS           frame rate the images were taken at (default 30)
+ * --repeat N          replay the frames N times (default 1)
+ * --compare-default   exit with status 1 unless the chain's output matches the
+ *                     default chain's on every frame
+ * </pre>
+ *
+ * Only the detector is timed; decoding the frames isn't counted.
+ */
+public class ReplayRunner {
+
+    // names of the timed stages, in the order they run
+    private static final String[] STAGES = { "selectRegion", "preprocess", "findTargets", "updateTracker" };
+
+    private ReplayRunner() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+        if (args.length == 0) {
+            System.out.println("Usage: ReplayRunner <image dir | video> [--config FILE] [--pipeline FILE] "
+                    + "[--frames FILE] [--detections FILE] [--labels FILE] [--max-error PX] "
+                    + "[--min-recall R] [--min-precision P] [--fps FPS] [--repeat N] [--compare-default]");
+            System.exit(2);
+        }
+
+        File input = new File(args[0]);
+        String configPath = option(args, "--config", TrackTargetCommand.HSV_CONFIG_FILE_PATH);
+        String pipelinePath = option(args, "--pipeline", PreprocessChain.CONFIG_FILE_PATH);
+        String framesPath = option(args, "--frames", null);
+        String detectionsPath = option(args, "--detections", null);
+        String labelsPath = option(args, "--labels", null);
+        double maxError = Double.parseDouble(option(args, "--max-error", "10"));
+        double minRecall = Double.parseDouble(option(args, "--min-recall", "0"));
+        double minPrecision = Double.parseDouble(option(args, "--min-precision", "0"));
+        double fps = Double.parseDouble(option(args, "--fps", "30"));
+        int repeat = Integer.parseInt(option(args, "--repeat", "1"));
+        boolean compareDefault = flag(args, "--compare-default");
+
+        VisionConfig config = VisionConfig.load(configPath);
+        FixedHsvRange hsvRange = FixedHsvRange.load(configPath);
+        if (hsvRange == null) {
+            System.exit(2);
+        }
+        LemonDetector detector = DetectorFactory.createDetector(config, pipelinePath, hsvRange, 0,
+                DetectorFactory.createFilters(config));
+        VisionFrame frame = new VisionFrame(detector.createBuffers());
+
+        // the same detector with the default chain, for checking a changed chain
+        // still produces the same mask or edges
+        LemonDetector reference = null;
+        VisionFrame referenceFrame = null;
+        Mat difference = null;
+        if (compareDefault) {
+            reference = DetectorFactory.createDetector(config, pipelinePath, hsvRange, 0,
+                    DetectorFactory.createFilters(config));
+            reference.setPreprocessChain(PreprocessChain.createDefault(detector.getPreprocessChain().isBlobAnalysis()));
+            referenceFrame = new VisionFrame(reference.createBuffers());
+            difference = new Mat();
+        }
+        int mismatchedFrames = 0;
+        long mismatchedPixels = 0;
+
+        ReplayLabels labels = labelsPath != null ? new ReplayLabels(labelsPath, maxError) : null;
+        PrintWriter framesCsv = framesPath != null ? new PrintWriter(new FileWriter(framesPath)) : null;
+        PrintWriter detectionsCsv = detectionsPath != null ? new PrintWriter(new FileWriter(detectionsPath)) : null;
+        if (framesCsv != null) {
+            framesCsv.println("pass,frame,name," + String.join("_us,", STAGES) + "_us,total_us,targets");
+        }
+        if (detectionsCsv != null) {
+            detectionsCsv.println("pass,frame,name,x,y,area,left,top,width,height");
+        }
+
+        Mat image = new Mat(VisionSubsystem.STREAM_HEIGHT, VisionSubsystem.STREAM_WIDTH, CvType.CV_8UC3);
+        long[] stageNanos = new long[STAGES.length];
+        TimingStats[] stageStats = new TimingStats[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            stageStats[i] = new TimingStats();
+        }
+        TimingStats totalStats = new TimingStats();
+        int targetTotal = 0;
+
+        for (int pass = 0; pass < repeat; pass++) {
+            ReplayFrames frames = new ReplayFrames(input, VisionSubsystem.STREAM_WIDTH,
+                    VisionSubsystem.STREAM_HEIGHT, fps);
+            // later passes continue the timeline, so the trackers don't see time jump back
+            long passOffsetMicros = pass * (long) 1e12;
+
+            while (frames.next(image)) {
+                detector.loadFrame(image, passOffsetMicros + frames.getTimeMicros(), frame);
+                frame.annotate = false;
+                frame.maskColor = false;
+                runStages(detector, frame, stageNanos);
+
+                if (reference != null) {
+                    reference.loadFrame(image, passOffsetMicros + frames.getTimeMicros(), referenceFrame);
+                    referenceFrame.annotate = false;
+                    referenceFrame.maskColor = false;
+                    reference.process(referenceFrame);
+                    int mismatched = countMismatches(detector, frame, reference, referenceFrame, difference);
+                    if (mismatched > 0) {
+                        mismatchedFrames++;
+                        mismatchedPixels += mismatched;
+                    }
+                }
+
+                long total = 0;
+                for (int i = 0; i < STAGES.length; i++) {
+                    stageStats[i].add(stageNanos[i]);
+                    total += stageNanos[i];
+                }
+                totalStats.add(total);
+                targetTotal += frame.targets.size();
+
+                // accuracy is scored on the first pass only, so repeats don't weight it
+                if (labels != null && pass == 0) {
+                    labels.score(frames.getName(), frame.targets);
+                }
+                if (framesCsv != null) {
+                    framesCsv.print(pass + "," + frames.getIndex() + "," + frames.getName());
+                    for (long nanos : stageNanos) {
+                        framesCsv.print("," + nanos / 1000);
+                    }
+                    framesCsv.println("," + total / 1000 + "," + frame.targets.size());
+                }
+                if (detectionsCsv != null) {
+                    writeDetections(detectionsCsv, pass, frames, frame.targets);
+                }
+            }
+            frames.release();
+        }
+
+        if (framesCsv != null) {
+            framesCsv.close();
+        }
+        if (detectionsCsv != null) {
+            detectionsCsv.close();
+        }
+        image.release();
+        frame.release();
+        if (reference != null) {
+            referenceFrame.release();
+            difference.release();
+        }
+
+        // summary
+        int frameCount = totalStats.count();
+        if (frameCount == 0) {
+            System.out.println("No frames found in " + input);
+            System.exit(2);
+        }
+        System.out.printf("%d frames, %d targets, %.1f fps (detector only)%n", frameCount, targetTotal,
+                frameCount * 1e9 / totalStats.sum());
+        for (int i = 0; i < STAGES.length; i++) {
+            System.out.println(stageStats[i].summary(STAGES[i]));
+        }
+        System.out.println(totalStats.summary("total"));
+
+        // the preprocessing stages, per search window
+        PreprocessChain chain = detector.getPreprocessChain();
+        for (int i = 0; i < chain.getStageCount(); i++) {
+            PreprocessStage stage = chain.getStage(i);
+            System.out.printf("  %-12s mean %8.3f ms per window%n", stage.getName(),
+                    stage.getTotalNanos() / 1e6 / Math.max(1, stage.getRunCount()));
+        }
+
+        if (reference != null) {
+            if (mismatchedFrames > 0) {
+                System.out.println("Chain output differs from the default chain on " + mismatchedFrames
+                        + " frames (" + mismatchedPixels + " pixels).");
+                System.exit(1);
+            }
+            System.out.println("Chain output matches the default chain on every frame.");
+        }
+
+        if (labels != null) {
+            System.out.println(labels);
+            if (labels.getRecall() < minRecall || labels.getPrecision() < minPrecision) {
+                System.out.println("Accuracy below the required minimum.");
+                System.exit(1);
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs the same stages as {@link LemonDetector#process}, timing each one.
+     */
+    private static void runStages(LemonDetector detector, VisionFrame frame, long[] stageNanos) {
+        long start = System.nanoTime();
+        detector.selectRegion(frame);
+        long selected = System.nanoTime();
+        detector.preprocess(frame);
+        long preprocessed = System.nanoTime();
+        detector.findTargets(frame);
+        long found = System.nanoTime();
+        detector.updateTracker(frame);
+        long tracked = System.nanoTime();
+
+        stageNanos[0] = selected - start;
+        stageNanos[1] = preprocessed - selected;
+        stageNanos[2] = found - preprocessed;
+        stageNanos[3] = tracked - found;
+    }
+
+    /**
+     * Counts the pixels where two detectors' preprocessing results differ.
+     */
+    private static int countMismatches(LemonDetector detector, VisionFrame frame, LemonDetector reference,
+            VisionFrame referenceFrame, Mat difference) {
+        Mat result = detector.getPreprocessChain().getResult().get(frame.buffers);
+        Mat expected = reference.getPreprocessChain().getResult().get(referenceFrame.buffers);
+        Core.compare(result, expected, difference, Core.CMP_NE);
+        return Core.countNonZero(difference);
+    }
+
+    /**
+     * Writes one CSV line per target.
+     */
+    private static void writeDetections(PrintWriter csv, int pass, ReplayFrames frames, List<Target> targets) {
+        for (Target target : targets) {
+            csv.println(pass + "," + frames.getIndex() + "," + frames.getName() + "," + target.getX() + ","
+                    + target.getY() + "," + target.getArea() + "," + target.getLeft() + "," + target.getTop() + ","
+                    + target.getWidth() + "," + target.getHeight());
+        }
+    }
+
+    /**
+     * Returns the value following an option on the command line.
+     */
+    private static String option(String[] args, String name, String defaultValue) {
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns whether an option without a value is on the command line.
+     */
+    private static boolean flag(String[] args, String name) {
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Every sample of one timing, for the mean and percentiles.
+     */
+    private static class TimingStats {
+        private long[] samples = new long[1024];
+        private int count = 0;
+        private long sum = 0;
+
+        void add(long nanos) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = nanos;
+            sum += nanos;
+        }
+
+        int count() {
+            return count;
+        }
+
+        long sum() {
+            return sum;
+        }
+
+        String summary(String name) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return String.format("%-14s mean %8.3f ms   p50 %8.3f ms   p90 %8.3f ms   p99 %8.3f ms   max %8.3f ms",
+                    name, sum / 1e6 / Math.max(1, count), percentile(sorted, 50), percentile(sorted, 90),
+                    percentile(sorted, 99), percentile(sorted, 100));
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
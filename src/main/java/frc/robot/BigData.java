@@ -100,8 +100,9 @@ public class BigData {
      * @param r the range (distance from the target horizontally, in inches)
      * @param a the azimuth (in degrees, where positive means camera is pointed to
      *          the left)
-     * @param x TODO TELL ME WHAT THIS IS!
-     * @param y TODO TELL ME WHAT THIS IS!!!!!!!!!!!!!!
+     * @param x how far the target is to the right of the camera's axis (in
+     *          inches)
+     * @param y how far the target is in front of the camera (in inches)
      */
     public static void updateCamera(double r, double a, double x, double y) {
         put("camera_azimuth", a);
@@ -6,11 +6,15 @@ package frc.robot;
 
 import edu.wpi.first.wpilibj.GenericHID;
 import edu.wpi.first.wpilibj.XboxController;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import edu.wpi.first.wpilibj2.command.Command;
 import frc.robot.commands.ExampleAutoCommand;
+import frc.robot.commands.vision.LiveCalibrationCommand;
 import frc.robot.commands.vision.TrackTargetCommand;
+import frc.robot.commands.vision.VisionConfig;
 import frc.robot.subsystems.SwerveSubsystem;
 import frc.robot.subsystems.VisionSubsystem;
+import frc.robot.subsystems.VisionSubsystem.ProcessingMode;
 
 /**
  * This class is where the bulk of the robot should be declared. Since
@@ -25,7 +29,10 @@ public class RobotContainer {
 
   private final ExampleAutoCommand autoCommand = new ExampleAutoCommand(swerveSubsystem);
 
-  private final VisionSubsystem visionSubsystem = new VisionSubsystem();
+  // vision capture and processing run on their own thread so a slow frame
+  // can't stall the scheduler loop (every camera is processed in parallel if
+  // multi_camera is enabled in the lemon config)
+  private final VisionSubsystem visionSubsystem = new VisionSubsystem(visionProcessingMode());
   // private TrackTargetCommand trackTargetCommand = new
   // TrackTargetCommand(visionSubsystem);
 
@@ -36,10 +43,26 @@ public class RobotContainer {
 
     visionSubsystem.setDefaultCommand(new TrackTargetCommand(visionSubsystem));
 
+    // calibrates a camera from its stream when started from the dashboard, then
+    // hands the camera back to tracking
+    SmartDashboard.putData("Live Calibration", new LiveCalibrationCommand(visionSubsystem));
+
     // Configure the button bindings
     configureButtonBindings();
   }
 
+  /**
+   * Picks the vision processing mode from the lemon config. Only the forward
+   * camera is processed unless multi-camera processing is turned on.
+   *
+   * @return the processing mode
+   */
+  private static ProcessingMode visionProcessingMode() {
+    VisionConfig config = VisionConfig.load(TrackTargetCommand.HSV_CONFIG_FILE_PATH);
+    return config.getBoolean("multi_camera", "enabled", false) ? ProcessingMode.MULTI_CAMERA
+        : ProcessingMode.DEDICATED_THREAD;
+  }
+
   /**
    * Use this method to define your button->command mappings. Buttons can be
    * created by instantiating a {@link GenericHID} or one of its subclasses
@@ -0,0 +1,259 @@
+package frc.robot.commands.vision;
+
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.imgproc.Moments;
+
+/**
+ * A contour or blob that might be a lemon, as seen by the
+ * {@link CandidateFilter}s. Every measurement is computed the first time a
+ * filter asks for it and then cached, so a candidate that is rejected by a cheap
+ * filter never pays for the expensive ones. One candidate is reused for every
+ * contour in a frame; it is not thread-safe.
+ */
+public class Candidate {
+
+    // buffers of the frame the candidate is from
+    private VisionBuffers buffers;
+
+    // outline of the candidate (traced on demand for blobs; null until then)
+    private MatOfPoint contour;
+    // whether the candidate came from blob analysis
+    private boolean blob;
+    // whether a blob's outline has been traced (it may still be null)
+    private boolean traced;
+
+    // cached measurements, valid once their flag is set
+    private final Rect box = new Rect();
+    private boolean hasBox;
+    private double area;
+    private double centerX;
+    private double centerY;
+    private boolean hasMoments;
+    private boolean hasContour2f;
+    private double perimeter;
+    private boolean hasPerimeter;
+    private int vertexCount;
+    private boolean hasVertexCount;
+
+    // scratch space for tracing a blob's outline
+    private final Point outlineOffset = new Point();
+
+    /**
+     * Starts a new candidate from a traced contour.
+     *
+     * @param buffers the frame's buffers
+     * @param contour the contour, in full-frame coordinates
+     */
+    public void setContour(VisionBuffers buffers, MatOfPoint contour) {
+        clear(buffers);
+        this.contour = contour;
+        this.traced = true;
+    }
+
+    /**
+     * Starts a new candidate from a labelled blob, whose bounding box, area and
+     * centroid are already known.
+     *
+     * @param buffers the frame's buffers; the outline is traced from
+     *                {@code cleanMask} if a filter needs it
+     * @param box     the blob's bounding box, in full-frame coordinates (copied)
+     * @param area    the blob's area, in pixels
+     * @param centerX the blob's centroid x coordinate, in full-frame pixels
+     * @param centerY the blob's centroid y coordinate, in full-frame pixels
+     */
+    public void setBlob(VisionBuffers buffers, Rect box, double area, double centerX, double centerY) {
+        clear(buffers);
+        this.blob = true;
+        this.box.x = box.x;
+        this.box.y = box.y;
+        this.box.width = box.width;
+        this.box.height = box.height;
+        this.hasBox = true;
+        this.area = area;
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.hasMoments = true;
+    }
+
+    private void clear(VisionBuffers buffers) {
+        this.buffers = buffers;
+        contour = null;
+        blob = false;
+        traced = false;
+        hasBox = false;
+        hasMoments = false;
+        hasContour2f = false;
+        hasPerimeter = false;
+        hasVertexCount = false;
+    }
+
+    /**
+     * Returns the bounding box of the candidate. Do not modify it.
+     *
+     * @return the bounding box, in full-frame pixels
+     */
+    public Rect getBoundingBox() {
+        if (!hasBox) {
+            Rect rect = Imgproc.boundingRect(contour);
+            box.x = rect.x;
+            box.y = rect.y;
+            box.width = rect.width;
+            box.height = rect.height;
+            hasBox = true;
+        }
+        return box;
+    }
+
+    /**
+     * Returns the area of the candidate, from its moments.
+     *
+     * @return the area, in pixels
+     */
+    public double getArea() {
+        computeMoments();
+        return area;
+    }
+
+    public double getCenterX() {
+        computeMoments();
+        return centerX;
+    }
+
+    public double getCenterY() {
+        computeMoments();
+        return centerY;
+    }
+
+    private void computeMoments() {
+        if (hasMoments) {
+            return;
+        }
+        // the centroid comes from the same moments as the area, so it is free
+        // https://www.pyimagesearch.com/2016/02/01/opencv-center-of-contour/
+        Moments moments = Imgproc.moments(contour);
+        area = Math.abs(moments.get_m00());
+        centerX = moments.get_m10() / moments.get_m00();
+        centerY = moments.get_m01() / moments.get_m00();
+        hasMoments = true;
+    }
+
+    /**
+     * Returns the outline of the candidate, tracing it first for a blob.
+     *
+     * @return the outline, or null if a blob has none
+     */
+    public MatOfPoint getContour() {
+        if (!traced) {
+            traceOutline();
+        }
+        return contour;
+    }
+
+    /**
+     * Traces the largest outline inside a blob's bounding box in the cleaned-up
+     * mask. The outline is handed to {@code buffers.contours} so it is released
+     * with the rest of the frame's contours.
+     */
+    private void traceOutline() {
+        traced = true;
+
+        List<MatOfPoint> contours = buffers.regionContours;
+        outlineOffset.x = box.x;
+        outlineOffset.y = box.y;
+        Imgproc.findContours(buffers.view(buffers.cleanMask, box), contours, buffers.hierarchy,
+                Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE, outlineOffset);
+
+        // the box can overlap other blobs, so use the biggest outline in it
+        double outlineArea = -1;
+        for (MatOfPoint outline : contours) {
+            double area = Imgproc.contourArea(outline);
+            if (area > outlineArea) {
+                contour = outline;
+                outlineArea = area;
+            }
+        }
+
+        for (MatOfPoint outline : contours) {
+            if (outline == contour) {
+                buffers.contours.add(outline);
+            } else {
+                outline.release();
+            }
+        }
+        contours.clear();
+    }
+
+    /**
+     * Returns the outline only if it is already known, without tracing a blob.
+     *
+     * @return the outline, or null if it hasn't been traced
+     */
+    public MatOfPoint getContourIfTraced() {
+        return contour;
+    }
+
+    /**
+     * Returns the outline as floating-point points, as approxPolyDP and
+     * fitEllipse need it.
+     *
+     * @return the outline in {@code buffers.contour2f}, or null if there is none
+     */
+    public MatOfPoint2f getContour2f() {
+        if (getContour() == null) {
+            return null;
+        }
+        if (!hasContour2f) {
+            contour.convertTo(buffers.contour2f, CvType.CV_32FC2);
+            hasContour2f = true;
+        }
+        return buffers.contour2f;
+    }
+
+    /**
+     * Returns the length of the closed outline.
+     *
+     * @return the perimeter in pixels, or 0 if there is no outline
+     */
+    public double getPerimeter() {
+        if (!hasPerimeter) {
+            MatOfPoint2f c = getContour2f();
+            perimeter = c != null ? Imgproc.arcLength(c, true) : 0;
+            hasPerimeter = true;
+        }
+        return perimeter;
+    }
+
+    /**
+     * Returns the number of vertices of the polygon approximating the outline.
+     *
+     * @return the vertex count, or 0 if there is no outline
+     */
+    public int getVertexCount() {
+        if (!hasVertexCount) {
+            MatOfPoint2f c = getContour2f();
+            vertexCount = 0;
+            if (c != null) {
+                Imgproc.approxPolyDP(c, buffers.approx, getPerimeter() * 0.02, true);
+                vertexCount = (int) buffers.approx.total();
+            }
+            hasVertexCount = true;
+        }
+        return vertexCount;
+    }
+
+    /**
+     * Returns whether the candidate came from blob analysis.
+     *
+     * @return true for a blob, false for a contour
+     */
+    public boolean isBlob() {
+        return blob;
+    }
+}
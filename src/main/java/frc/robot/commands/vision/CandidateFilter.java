@@ -0,0 +1,38 @@
+package frc.robot.commands.vision;
+
+/**
+ * One test a {@link Candidate} must pass to be considered a lemon. Filters are
+ * run cheapest first by the {@link CandidateFilterChain}, so each filter should
+ * report how much its test costs.
+ */
+public interface CandidateFilter {
+
+    // relative costs of the measurements a filter can use
+    int COST_BOUNDING_BOX = 0;
+    int COST_MOMENTS = 1;
+    int COST_OUTLINE = 2;
+    int COST_POLYGON = 3;
+
+    /**
+     * Returns the name used when publishing this filter's rejection count.
+     *
+     * @return the filter's name
+     */
+    String getName();
+
+    /**
+     * Returns how expensive the filter's test is, as one of the COST constants.
+     * Filters with a lower cost are run first.
+     *
+     * @return the filter's cost
+     */
+    int getCost();
+
+    /**
+     * Tests a candidate.
+     *
+     * @param candidate the candidate to test
+     * @return true if the candidate could still be a lemon
+     */
+    boolean accept(Candidate candidate);
+}
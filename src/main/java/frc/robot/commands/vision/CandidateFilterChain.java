@@ -0,0 +1,67 @@
+package frc.robot.commands.vision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Runs a candidate through a list of {@link CandidateFilter}s, cheapest first,
+ * and stops at the first one that rejects it. Counts how many candidates each
+ * filter rejected, so the thresholds can be tuned from the dashboard. Filters
+ * must all be added before the chain is used.
+ */
+public class CandidateFilterChain {
+
+    // filters in the order they run
+    private final List<CandidateFilter> filters = new ArrayList<CandidateFilter>();
+    // candidates rejected by each filter, in the same order
+    private final List<AtomicLong> rejected = new ArrayList<AtomicLong>();
+    // candidates that passed every filter
+    private final AtomicLong accepted = new AtomicLong();
+
+    /**
+     * Adds a filter, after any filters that cost the same or less.
+     *
+     * @param filter the filter to add
+     * @return this chain
+     */
+    public CandidateFilterChain add(CandidateFilter filter) {
+        int index = filters.size();
+        while (index > 0 && filters.get(index - 1).getCost() > filter.getCost()) {
+            index--;
+        }
+        filters.add(index, filter);
+        rejected.add(index, new AtomicLong());
+        return this;
+    }
+
+    /**
+     * Tests a candidate against every filter.
+     *
+     * @param candidate the candidate to test
+     * @return true if every filter accepted it
+     */
+    public boolean accept(Candidate candidate) {
+        for (int i = 0; i < filters.size(); i++) {
+            if (!filters.get(i).accept(candidate)) {
+                rejected.get(i).incrementAndGet();
+                return false;
+            }
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Publishes the number of candidates rejected by each filter, and the number
+     * accepted, to SmartDashboard.
+     */
+    public void publishStats() {
+        for (int i = 0; i < filters.size(); i++) {
+            SmartDashboard.putNumber("Vision/Rejected by " + filters.get(i).getName(), rejected.get(i).get());
+        }
+        SmartDashboard.putNumber("Vision/Candidates Accepted", accepted.get());
+    }
+}
@@ -0,0 +1,199 @@
+package frc.robot.commands.vision;
+
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The standard {@link CandidateFilter}s, from cheapest to most expensive.
+ */
+public final class CandidateFilters {
+
+    private CandidateFilters() {
+    }
+
+    /**
+     * Rejects candidates whose bounding box is too small to hold the minimum area,
+     * or too stretched to be a lemon. Uses only the bounding box.
+     */
+    public static class BoundingBox implements CandidateFilter {
+        private final double minArea;
+        private final double maxAspectRatio;
+
+        /**
+         * @param minArea        smallest area a lemon can have, in pixels
+         * @param maxAspectRatio largest ratio of the long side to the short side
+         *                       (0 for no limit)
+         */
+        public BoundingBox(double minArea, double maxAspectRatio) {
+            this.minArea = minArea;
+            this.maxAspectRatio = maxAspectRatio;
+        }
+
+        @Override
+        public String getName() {
+            return "Bounding Box";
+        }
+
+        @Override
+        public int getCost() {
+            return COST_BOUNDING_BOX;
+        }
+
+        @Override
+        public boolean accept(Candidate candidate) {
+            Rect box = candidate.getBoundingBox();
+            // a contour's area can't be bigger than its bounding box
+            if ((double) box.width * box.height <= minArea) {
+                return false;
+            }
+            if (maxAspectRatio > 0) {
+                int longSide = Math.max(box.width, box.height);
+                int shortSide = Math.min(box.width, box.height);
+                return longSide <= maxAspectRatio * shortSide;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Rejects candidates that are too small. Uses the moments, which also give
+     * the center.
+     */
+    public static class Area implements CandidateFilter {
+        private final double minArea;
+
+        /**
+         * @param minArea smallest area a lemon can have, in pixels
+         */
+        public Area(double minArea) {
+            this.minArea = minArea;
+        }
+
+        @Override
+        public String getName() {
+            return "Area";
+        }
+
+        @Override
+        public int getCost() {
+            return COST_MOMENTS;
+        }
+
+        @Override
+        public boolean accept(Candidate candidate) {
+            return candidate.getArea() > minArea;
+        }
+    }
+
+    /**
+     * Rejects candidates that aren't round enough, by comparing the area to the
+     * perimeter (4 pi area / perimeter^2 is 1 for a circle). Needs the outline.
+     */
+    public static class Circularity implements CandidateFilter {
+        private final double minCircularity;
+
+        /**
+         * @param minCircularity smallest circularity a lemon can have, from 0 to 1
+         */
+        public Circularity(double minCircularity) {
+            this.minCircularity = minCircularity;
+        }
+
+        @Override
+        public String getName() {
+            return "Circularity";
+        }
+
+        @Override
+        public int getCost() {
+            return COST_OUTLINE;
+        }
+
+        @Override
+        public boolean accept(Candidate candidate) {
+            double perimeter = candidate.getPerimeter();
+            if (perimeter <= 0) {
+                return false;
+            }
+            return 4 * Math.PI * candidate.getArea() / (perimeter * perimeter) >= minCircularity;
+        }
+    }
+
+    /**
+     * Rejects candidates whose best-fit ellipse is too stretched or which don't
+     * fill it. Needs the outline.
+     */
+    public static class Ellipse implements CandidateFilter {
+        private final double maxAxisRatio;
+        private final double minFill;
+
+        /**
+         * @param maxAxisRatio largest ratio of the major to the minor axis
+         * @param minFill      smallest fraction of the ellipse the candidate must
+         *                     cover, from 0 to 1
+         */
+        public Ellipse(double maxAxisRatio, double minFill) {
+            this.maxAxisRatio = maxAxisRatio;
+            this.minFill = minFill;
+        }
+
+        @Override
+        public String getName() {
+            return "Ellipse";
+        }
+
+        @Override
+        public int getCost() {
+            return COST_OUTLINE;
+        }
+
+        @Override
+        public boolean accept(Candidate candidate) {
+            MatOfPoint2f c = candidate.getContour2f();
+            // fitEllipse needs at least five points
+            if (c == null || c.total() < 5) {
+                return false;
+            }
+            RotatedRect ellipse = Imgproc.fitEllipse(c);
+            double major = Math.max(ellipse.size.width, ellipse.size.height);
+            double minor = Math.min(ellipse.size.width, ellipse.size.height);
+            if (minor <= 0 || major > maxAxisRatio * minor) {
+                return false;
+            }
+            double ellipseArea = Math.PI * major * minor / 4;
+            return candidate.getArea() >= minFill * ellipseArea;
+        }
+    }
+
+    /**
+     * Rejects candidates whose outline approximates to a polygon with too few
+     * vertices. The most expensive test, so it runs last.
+     */
+    public static class Polygon implements CandidateFilter {
+        private final int minVertices;
+
+        /**
+         * @param minVertices fewest vertices a lemon's polygon can have
+         */
+        public Polygon(int minVertices) {
+            this.minVertices = minVertices;
+        }
+
+        @Override
+        public String getName() {
+            return "Polygon";
+        }
+
+        @Override
+        public int getCost() {
+            return COST_POLYGON;
+        }
+
+        @Override
+        public boolean accept(Candidate candidate) {
+            return candidate.getVertexCount() >= minVertices;
+        }
+    }
+}
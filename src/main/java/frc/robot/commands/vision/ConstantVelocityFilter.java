@@ -0,0 +1,156 @@
+package frc.robot.commands.vision;
+
+/**
+ * Kalman filter for a point moving at constant velocity in the image plane.
+ * The x and y axes are filtered independently, each with a [position,
+ * velocity] state, so everything fits in a handful of doubles and updating the
+ * filter never allocates.
+ */
+public class ConstantVelocityFilter {
+
+    // variance of the acceleration, held constant over each prediction step
+    // (discrete white noise acceleration model), in pixels^2 / s^4
+    private final double processNoise;
+    // variance of a measured position, in pixels^2
+    private final double measurementNoise;
+
+    private final Axis xAxis = new Axis();
+    private final Axis yAxis = new Axis();
+
+    /**
+     * Creates a filter.
+     *
+     * @param processNoise     variance of the unmodelled acceleration, in
+     *                         pixels^2 / s^4
+     * @param measurementNoise variance of a measured position, in pixels^2
+     */
+    public ConstantVelocityFilter(double processNoise, double measurementNoise) {
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+    /**
+     * Resets the filter to a stationary point at the given position.
+     *
+     * @param x measured x position, in pixels
+     * @param y measured y position, in pixels
+     */
+    public void reset(double x, double y) {
+        xAxis.reset(x, measurementNoise);
+        yAxis.reset(y, measurementNoise);
+    }
+
+    /**
+     * Advances the state by the given time step.
+     *
+     * @param dt time since the last predict, in seconds
+     */
+    public void predict(double dt) {
+        xAxis.predict(dt, processNoise);
+        yAxis.predict(dt, processNoise);
+    }
+
+    /**
+     * Corrects the state with a measured position.
+     *
+     * @param x measured x position, in pixels
+     * @param y measured y position, in pixels
+     */
+    public void correct(double x, double y) {
+        xAxis.correct(x, measurementNoise);
+        yAxis.correct(y, measurementNoise);
+    }
+
+    public double getX() {
+        return xAxis.position;
+    }
+
+    public double getY() {
+        return yAxis.position;
+    }
+
+    public double getVelocityX() {
+        return xAxis.velocity;
+    }
+
+    public double getVelocityY() {
+        return yAxis.velocity;
+    }
+
+    /**
+     * Returns the standard deviation of the x position, in pixels.
+     *
+     * @return the x position uncertainty
+     */
+    public double getSigmaX() {
+        return Math.sqrt(xAxis.p00);
+    }
+
+    /**
+     * Returns the standard deviation of the y position, in pixels.
+     *
+     * @return the y position uncertainty
+     */
+    public double getSigmaY() {
+        return Math.sqrt(yAxis.p00);
+    }
+
+    /**
+     * State and covariance of one axis.
+     */
+    private static class Axis {
+        private double position;
+        private double velocity;
+
+        // covariance matrix [[p00, p01], [p10, p11]]
+        private double p00, p01, p10, p11;
+
+        void reset(double measured, double measurementNoise) {
+            position = measured;
+            velocity = 0;
+
+            // start with the measurement's uncertainty and a wide velocity guess
+            p00 = measurementNoise;
+            p01 = 0;
+            p10 = 0;
+            p11 = 1e4;
+        }
+
+        void predict(double dt, double q) {
+            position += velocity * dt;
+
+            // P = F P F' + Q, with Q = q G G' for G = [dt^2 / 2, dt] (the
+            // acceleration is constant over the step)
+            double n00 = p00 + dt * (p10 + p01) + dt * dt * p11;
+            double n01 = p01 + dt * p11;
+            double n10 = p10 + dt * p11;
+            double n11 = p11;
+
+            double dt2 = dt * dt;
+            p00 = n00 + q * dt2 * dt2 / 4;
+            p01 = n01 + q * dt2 * dt / 2;
+            p10 = n10 + q * dt2 * dt / 2;
+            p11 = n11 + q * dt2;
+        }
+
+        void correct(double measured, double r) {
+            double innovation = measured - position;
+            double s = p00 + r;
+            double k0 = p00 / s;
+            double k1 = p10 / s;
+
+            position += k0 * innovation;
+            velocity += k1 * innovation;
+
+            // P = (I - K H) P
+            double n00 = (1 - k0) * p00;
+            double n01 = (1 - k0) * p01;
+            double n10 = p10 - k1 * p00;
+            double n11 = p11 - k1 * p01;
+            p00 = n00;
+            p01 = n01;
+            p10 = n10;
+            p11 = n11;
+        }
+    }
+}
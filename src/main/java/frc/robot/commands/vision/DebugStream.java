@@ -0,0 +1,263 @@
+package frc.robot.commands.vision;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import edu.wpi.cscore.CvSource;
+import edu.wpi.cscore.MjpegServer;
+import edu.wpi.cscore.VideoSink;
+import edu.wpi.first.cameraserver.CameraServer;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * An MJPEG output stream for looking at the vision pipeline's intermediate
+ * images, which only costs anything while a dashboard is watching it. The
+ * stream server only enables its source while a client is connected, so frames
+ * are dropped before they are copied (let alone encoded) when nobody is
+ * watching. Watched streams are limited to a maximum frame rate, can be
+ * downscaled before they are handed to the server, and are encoded at a fixed
+ * JPEG quality.
+ *
+ * <p>
+ * The server encodes frames on its own thread, so the encode time and
+ * bandwidth are measured by encoding a copy of one frame per second at the same
+ * quality. The sample is encoded on a background thread shared by every
+ * stream, so it never adds to the vision thread's frame time. Frames are put
+ * from the vision thread and the stats are published from the scheduler
+ * thread.
+ */
+public class DebugStream {
+
+    // how often a frame is sampled to measure the encoded size, in nanoseconds
+    private static final long SAMPLE_PERIOD_NANOS = 1_000_000_000L;
+
+    // encodes the sampled frames off the vision thread
+    private static final ExecutorService SAMPLER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Debug Stream Sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final CvSource source;
+
+    // how much the frame is shrunk before it is streamed
+    private final int scale;
+    private final Size scaledSize;
+    // the downscaled frame (null if the stream is full size)
+    private final Mat scaled;
+
+    // shortest time between two streamed frames, in nanoseconds
+    private volatile long minFrameNanos;
+
+    // jpeg quality the server encodes at
+    private volatile int quality;
+
+    // copy of the sampled frame, written by the vision thread while no sample is
+    // being encoded
+    private final Mat sample = new Mat();
+    private final AtomicBoolean sampling = new AtomicBoolean(false);
+
+    // scratch space for measuring the encoded size, only used by the sampler
+    // thread (the params are rebuilt when the quality changes)
+    private final MatOfByte jpeg = new MatOfByte();
+    private MatOfInt encodeParams;
+    private int encodeQuality;
+
+    // time the last frame was streamed and the last sample was encoded
+    private long lastFrameNanos = 0;
+    private long lastSampleNanos = 0;
+
+    // stats, written by the vision thread and read by publishStats()
+    private volatile int framesPut = 0;
+    private volatile double putMillis = 0;
+    private volatile double encodeMillis = 0;
+    private volatile int encodedBytes = 0;
+    private int lastFramesPut = 0;
+    private long lastStatsNanos = System.nanoTime();
+
+    /**
+     * Creates the stream and its server.
+     *
+     * @param name    name of the stream on the dashboard
+     * @param width   width of the full-size frames, in pixels
+     * @param height  height of the full-size frames, in pixels
+     * @param maxFps  most frames streamed per second
+     * @param scale   factor the frames are shrunk by before streaming (1 for full
+     *                size)
+     * @param quality jpeg quality, 0-100
+     */
+    public DebugStream(String name, int width, int height, double maxFps, int scale, int quality) {
+        this.name = name;
+        this.scale = Math.max(1, scale);
+        this.scaledSize = new Size(width / this.scale, height / this.scale);
+        this.scaled = this.scale > 1 ? new Mat() : null;
+        this.source = CameraServer.getInstance().putVideo(name, (int) scaledSize.width,
+                (int) scaledSize.height);
+        setMaxFps(maxFps);
+        setQuality(quality);
+    }
+
+    /**
+     * Sets the most frames streamed per second.
+     *
+     * @param maxFps the frame rate limit (0 for no limit)
+     */
+    public void setMaxFps(double maxFps) {
+        minFrameNanos = maxFps > 0 ? (long) (1e9 / maxFps) : 0;
+    }
+
+    /**
+     * Sets the jpeg quality the server encodes frames at.
+     *
+     * @param quality jpeg quality, 0-100
+     */
+    public void setQuality(int quality) {
+        // the sampler thread picks the new quality up with the next sample
+        this.quality = quality;
+
+        // putVideo() names the server after the stream
+        VideoSink server = CameraServer.getInstance().getServer("serve_" + name);
+        if (server instanceof MjpegServer) {
+            ((MjpegServer) server).setDefaultCompression(quality);
+            ((MjpegServer) server).setCompression(quality);
+        }
+    }
+
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * Returns whether a client is watching the stream.
+     *
+     * @return true if the stream's source is enabled
+     */
+    public boolean isWatched() {
+        return source.isEnabled();
+    }
+
+    /**
+     * Returns whether the next frame would be streamed: someone is watching and
+     * the frame rate limit allows another frame.
+     *
+     * @return true if {@link #putFrame(Mat)} would stream a frame now
+     */
+    public boolean wantsFrame() {
+        return isWatched() && System.nanoTime() - lastFrameNanos >= minFrameNanos;
+    }
+
+    /**
+     * Streams a frame if {@link #wantsFrame()}, downscaling it first. Only call
+     * from one thread.
+     *
+     * @param frame the full-size frame
+     */
+    public void putFrame(Mat frame) {
+        if (!wantsFrame()) {
+            return;
+        }
+        long start = System.nanoTime();
+        lastFrameNanos = start;
+
+        Mat out = frame;
+        if (scaled != null) {
+            Imgproc.resize(frame, scaled, scaledSize, 0, 0, Imgproc.INTER_AREA);
+            out = scaled;
+        }
+        source.putFrame(out);
+        long end = System.nanoTime();
+        putMillis = (end - start) / 1e6;
+        framesPut++;
+
+        // measure what the server pays to encode a frame, and how big it is, on
+        // the sampler thread (skipped while the last sample is still encoding)
+        if (end - lastSampleNanos >= SAMPLE_PERIOD_NANOS && sampling.compareAndSet(false, true)) {
+            lastSampleNanos = end;
+            out.copyTo(sample);
+            SAMPLER.execute(this::encodeSample);
+        }
+    }
+
+    /**
+     * Encodes the sampled frame like the server would, and records the time and
+     * size. Runs on the sampler thread.
+     */
+    private void encodeSample() {
+        try {
+            int currentQuality = quality;
+            if (encodeParams == null || encodeQuality != currentQuality) {
+                if (encodeParams != null) {
+                    encodeParams.release();
+                }
+                encodeParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, currentQuality);
+                encodeQuality = currentQuality;
+            }
+
+            long start = System.nanoTime();
+            Imgcodecs.imencode(".jpg", sample, jpeg, encodeParams);
+            encodeMillis = (System.nanoTime() - start) / 1e6;
+            encodedBytes = (int) jpeg.total();
+        } catch (Exception e) {
+            System.out.println("Failed to sample debug stream " + name + ".");
+            e.printStackTrace();
+        } finally {
+            sampling.set(false);
+        }
+    }
+
+    /**
+     * Publishes whether the stream is watched, its frame rate, the time to
+     * downscale and put a frame, the sampled encode time, and the estimated
+     * bandwidth to SmartDashboard. Call from one thread.
+     */
+    public void publishStats() {
+        long now = System.nanoTime();
+        int frames = framesPut;
+        double fps = (frames - lastFramesPut) * 1e9 / Math.max(1, now - lastStatsNanos);
+        lastFramesPut = frames;
+        lastStatsNanos = now;
+
+        boolean watched = isWatched();
+        SmartDashboard.putBoolean("Vision/" + name + " Watched", watched);
+        SmartDashboard.putNumber("Vision/" + name + " FPS", fps);
+        SmartDashboard.putNumber("Vision/" + name + " Put ms", watched ? putMillis : 0);
+        SmartDashboard.putNumber("Vision/" + name + " Encode ms", watched ? encodeMillis : 0);
+        SmartDashboard.putNumber("Vision/" + name + " kbps", watched ? encodedBytes * 8 * fps / 1000 : 0);
+    }
+
+    /**
+     * Releases the downscaled frame and the sample buffers. The stream can still
+     * be used afterwards; the buffers are allocated again with the next frame.
+     * Only call while no frames are being put.
+     */
+    public void release() {
+        if (scaled != null) {
+            scaled.release();
+        }
+        // the sample buffers belong to the sampler thread, which may still be
+        // encoding
+        SAMPLER.execute(this::releaseSampleBuffers);
+    }
+
+    /**
+     * Releases the buffers used by the sampler thread. Runs on the sampler
+     * thread.
+     */
+    private void releaseSampleBuffers() {
+        sample.release();
+        jpeg.release();
+        if (encodeParams != null) {
+            encodeParams.release();
+            encodeParams = null;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package frc.robot.commands.vision;
+
+import java.io.File;
+
+import org.opencv.core.Mat;
+
+import frc.calibration.CameraCalibration;
+import frc.calibration.StoreMat;
+import frc.calibration.Undistorter;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Builds lemon detectors from the lemon config file, so the robot and the
+ * offline tools run exactly the same detector for the same config.
+ */
+public final class DetectorFactory {
+
+    private DetectorFactory() {
+    }
+
+    /**
+     * Creates the detector for one camera from the config, with the camera's
+     * own calibration.
+     *
+     * @param config   the lemon config
+     * @param hsvRange the HSV range to filter for
+     * @param camera   index of the camera, for finding its calibration files
+     * @param filters  tests a contour or blob must pass to be a target (may be
+     *                 shared between detectors)
+     * @return the new detector
+     */
+    public static LemonDetector createDetector(VisionConfig config, HsvRange hsvRange, int camera,
+            CandidateFilterChain filters) {
+        return createDetector(config, PreprocessChain.CONFIG_FILE_PATH, hsvRange, camera, filters);
+    }
+
+    /**
+     * Creates the detector for one camera from the config, with the camera's
+     * own calibration and the preprocessing chain from the given file.
+     *
+     * @param config       the lemon config
+     * @param pipelinePath the preprocessing chain config
+     * @param hsvRange     the HSV range to filter for
+     * @param camera       index of the camera, for finding its calibration files
+     * @param filters      tests a contour or blob must pass to be a target (may
+     *                     be shared between detectors)
+     * @return the new detector
+     */
+    public static LemonDetector createDetector(VisionConfig config, String pipelinePath, HsvRange hsvRange,
+            int camera, CandidateFilterChain filters) {
+        // get camera matrix and dist coefficients
+        // stored in the detector so we don't have to get them over and over again for
+        // every frame (cameras without calibration files are left uncalibrated)
+        Mat cameraMatrix = readCalibration(CameraCalibration.cameraMatrixPath(camera));
+        Mat distCoeffs = readCalibration(CameraCalibration.distCoeffsPath(camera));
+        Undistorter.Mode undistortMode = Undistorter.Mode
+                .valueOf(config.getString("undistortion", "mode", "POINTS").toUpperCase());
+        Undistorter undistorter = new Undistorter(undistortMode, cameraMatrix, distCoeffs,
+                VisionSubsystem.STREAM_WIDTH, VisionSubsystem.STREAM_HEIGHT);
+        LemonDetector detector = new LemonDetector(hsvRange, cameraMatrix, undistorter);
+
+        // range and angles from the apparent size of a lemon
+        if (cameraMatrix != null) {
+            detector.setTargetGeometry(new TargetGeometry(cameraMatrix,
+                    config.getDouble("target_geometry", "lemon_diameter", TargetGeometry.DEFAULT_LEMON_DIAMETER)));
+        }
+
+        // threshold through a BGR lookup table instead of converting to HSV (the
+        // table is only used from one thread, so each camera gets its own); off by
+        // default, set hsv_lookup.enabled to true once it measures faster on the
+        // robot (the hsvLookup param of LemonDetectorBenchmark)
+        if (config.getBoolean("hsv_lookup", "enabled", false)) {
+            detector.setHsvLookupTable(new HsvLookupTable());
+        }
+
+        // label blobs in the mask instead of tracing edges (off by default; set
+        // blob_analysis.enabled to true in the lemon config to use it)
+        boolean blobAnalysis = config.getBoolean("blob_analysis", "enabled", false);
+        detector.setBlobAnalysis(blobAnalysis);
+
+        // the preprocessing stages for that search mode
+        detector.setPreprocessChain(PreprocessChain.load(pipelinePath, blobAnalysis));
+
+        detector.setCandidateFilters(filters);
+
+        // find candidates at low resolution, then refine them at full resolution
+        if (config.getBoolean("pyramid", "enabled", false)) {
+            detector.setPyramidScale(config.getInt("pyramid", "scale_factor", 2));
+        }
+
+        // only search around the last lemon once one is found (optional, off by
+        // default; set roi_tracking.enabled to true in the lemon config to use it)
+        if (config.getBoolean("roi_tracking", "enabled", false)) {
+            detector.setRoiTracker(createRoiTracker(config));
+        }
+
+        // trade quality for speed when frames run over the time budget (off by
+        // default, since its lower levels stop the debug streams and search only
+        // around tracked lemons; set adaptive_quality.enabled to true to use it)
+        if (config.getBoolean("adaptive_quality", "enabled", false)) {
+            // the low-resolution level searches through the pyramid, so its buffers
+            // are allocated even when the pyramid is off at full quality
+            if (!config.getBoolean("pyramid", "enabled", false)) {
+                detector.setPyramidScale(config.getInt("pyramid", "scale_factor", 2));
+                detector.setCoarseSearch(false);
+            }
+            // the ROI-only level searches around tracked lemons, so it needs a
+            // tracker even when ROI tracking is off at full quality
+            if (!detector.hasRoiTracker()) {
+                detector.setRoiTracker(createRoiTracker(config));
+            }
+            detector.setQualityController(new QualityController(detector,
+                    config.getDouble("adaptive_quality", "budget_ms", 15),
+                    config.getDouble("adaptive_quality", "headroom", 0.7),
+                    config.getInt("adaptive_quality", "step_down_frames", 3),
+                    config.getInt("adaptive_quality", "step_up_frames", 30)));
+        }
+
+        // give each lemon an ID and follow it between frames (off by default; set
+        // multi_target_tracking.enabled to true in the lemon config to use it)
+        if (config.getBoolean("multi_target_tracking", "enabled", false)) {
+            detector.setMultiTargetTracker(new MultiTargetTracker(
+                    config.getInt("multi_target_tracking", "max_tracks", 16),
+                    config.getInt("multi_target_tracking", "max_targets", 64),
+                    config.getInt("multi_target_tracking", "max_misses", 5),
+                    config.getDouble("multi_target_tracking", "gate", 40)));
+        }
+
+        return detector;
+    }
+
+    /**
+     * Builds the tracker from the roi_tracking section of the config.
+     *
+     * @param config the lemon config
+     * @return the tracker
+     */
+    private static RoiTracker createRoiTracker(VisionConfig config) {
+        return new RoiTracker(VisionSubsystem.STREAM_WIDTH, VisionSubsystem.STREAM_HEIGHT,
+                config.getInt("roi_tracking", "max_misses", 5), config.getDouble("roi_tracking", "padding", 2.5));
+    }
+
+    /**
+     * Builds the candidate filters from the candidate_filters section of the
+     * config.
+     *
+     * @param config the lemon config
+     * @return the filters, cheapest first
+     */
+    public static CandidateFilterChain createFilters(VisionConfig config) {
+        String section = "candidate_filters";
+        double minArea = config.getDouble(section, "min_area", 100);
+        double maxAspectRatio = config.getDouble(section, "max_aspect_ratio", 0);
+        double minCircularity = config.getDouble(section, "min_circularity", 0);
+        double maxEllipseAxisRatio = config.getDouble(section, "max_ellipse_axis_ratio", 0);
+        int minVertices = config.getInt(section, "min_vertices", 10);
+
+        CandidateFilterChain filters = new CandidateFilterChain();
+        filters.add(new CandidateFilters.BoundingBox(minArea, maxAspectRatio));
+        filters.add(new CandidateFilters.Area(minArea));
+        if (minCircularity > 0) {
+            filters.add(new CandidateFilters.Circularity(minCircularity));
+        }
+        if (maxEllipseAxisRatio > 0) {
+            filters.add(new CandidateFilters.Ellipse(maxEllipseAxisRatio,
+                    config.getDouble(section, "min_ellipse_fill", 0)));
+        }
+        if (minVertices > 0) {
+            filters.add(new CandidateFilters.Polygon(minVertices));
+        }
+        return filters;
+    }
+
+    /**
+     * Reads a calibration mat (from the old JSON file if there is no binary one
+     * yet), or returns null if the file doesn't exist.
+     *
+     * @param filepath the calibration file
+     * @return the mat, or null
+     */
+    public static Mat readCalibration(String filepath) {
+        String resolved = StoreMat.resolve(filepath);
+        return new File(resolved).exists() ? StoreMat.readMat(resolved) : null;
+    }
+}
@@ -0,0 +1,72 @@
+package frc.robot.commands.vision;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.opencv.core.Scalar;
+
+/**
+ * An HSV range that doesn't change, for running the detector without
+ * Shuffleboard (benchmarks and offline tools).
+ */
+public class FixedHsvRange implements HsvRange {
+
+    private final Scalar low;
+    private final Scalar high;
+
+    /**
+     * Creates a range.
+     * 
+     * @param low  low HSV values
+     * @param high high HSV values
+     */
+    public FixedHsvRange(Scalar low, Scalar high) {
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Reads the current values from an HSV config file. JSON structure: { h_low:
+     * {val: #, min: #, max: #}, s_low, v_low, h_high, s_high, v_high}
+     * 
+     * @param filepath path to json config file
+     * @return the range, or null if the file could not be read
+     */
+    public static FixedHsvRange load(String filepath) {
+        JSONParser parser = new JSONParser();
+
+        try (FileReader reader = new FileReader(new File(filepath))) {
+            JSONObject jsonObj = (JSONObject) parser.parse(reader);
+            Scalar low = new Scalar(value(jsonObj, "h_low"), value(jsonObj, "s_low"), value(jsonObj, "v_low"));
+            Scalar high = new Scalar(value(jsonObj, "h_high"), value(jsonObj, "s_high"), value(jsonObj, "v_high"));
+            return new FixedHsvRange(low, high);
+        } catch (IOException e) {
+            System.out.println("IO error while reading HSV config file.");
+            e.printStackTrace();
+        } catch (ParseException e) {
+            System.out.println("Could not parse HSV config file.");
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static double value(JSONObject jsonObj, String key) {
+        return ((Number) ((JSONObject) jsonObj.get(key)).get("val")).doubleValue();
+    }
+
+    @Override
+    public Scalar getLowScalar(Scalar out) {
+        System.arraycopy(low.val, 0, out.val, 0, 3);
+        return out;
+    }
+
+    @Override
+    public Scalar getHighScalar(Scalar out) {
+        System.arraycopy(high.val, 0, out.val, 0, 3);
+        return out;
+    }
+}
@@ -15,7 +15,7 @@ import edu.wpi.first.wpilibj.shuffleboard.BuiltInWidgets;
 import edu.wpi.first.wpilibj.shuffleboard.Shuffleboard;
 
 // make sure to refresh the shuffleboard window to view the changes!!
-public class HSVConfigTab {
+public class HSVConfigTab implements HsvRange {
 
     private NetworkTableEntry hLow;
     private NetworkTableEntry sLow;
@@ -92,21 +92,32 @@ public class HSVConfigTab {
     }
 
     /**
-     * Returns a Scalar object containing the low HSV values.
+     * Copies the low HSV values into the caller's Scalar. The tab is shared by
+     * every detector, so each passes its own Scalar instead of sharing one.
      * 
-     * @return low HSV values
+     * @param out the scalar to write to
+     * @return out, holding the low HSV values
      */
-    public Scalar getLowScalar() {
-        return new Scalar(ntToDouble(hLow), ntToDouble(sLow), ntToDouble(vLow));
+    @Override
+    public Scalar getLowScalar(Scalar out) {
+        out.val[0] = ntToDouble(hLow);
+        out.val[1] = ntToDouble(sLow);
+        out.val[2] = ntToDouble(vLow);
+        return out;
     }
 
     /**
-     * Returns a Scalar object containing the high HSV values.
+     * Copies the high HSV values into the caller's Scalar.
      * 
-     * @return high HSV values
+     * @param out the scalar to write to
+     * @return out, holding the high HSV values
      */
-    public Scalar getHighScalar() {
-        return new Scalar(ntToDouble(hHigh), ntToDouble(sHigh), ntToDouble(vHigh));
+    @Override
+    public Scalar getHighScalar(Scalar out) {
+        out.val[0] = ntToDouble(hHigh);
+        out.val[1] = ntToDouble(sHigh);
+        out.val[2] = ntToDouble(vHigh);
+        return out;
     }
 
     private static double ntToDouble(NetworkTableEntry entry) {
@@ -0,0 +1,250 @@
+package frc.robot.commands.vision;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Lookup table that maps a BGR pixel straight to the binary HSV threshold mask,
+ * replacing cvtColor + inRange with three native passes and no copies through
+ * Java: a {@link Core#LUT} quantizes each channel to {@value #BITS} bits, a
+ * {@link Core#transform} packs the three into a 2D index, and a nearest
+ * neighbour {@link Imgproc#remap} looks each index up in the table. Every
+ * quantized color cell holds 4x4x4 BGR colors and is in the mask if most of
+ * them are in the HSV range, so only colors right at the edge of the range can
+ * come out differently from cvtColor + inRange.
+ *
+ * <p>
+ * The thresholds only change when someone moves a Shuffleboard slider, so the
+ * table is rebuilt on a background thread whenever the range changes and then
+ * swapped in atomically. Until the table for the current range is ready,
+ * {@link #apply} reports that it couldn't be used and the caller falls back to
+ * cvtColor + inRange.
+ */
+public class HsvLookupTable {
+
+    // bits each channel is quantized to, and the quantized levels per channel
+    private static final int BITS = 6;
+    private static final int LEVELS = 1 << BITS;
+    private static final int SHIFT = 8 - BITS;
+
+    // colors converted per chunk while building (every green/red pair for one
+    // blue value)
+    private static final int CHUNK_SIZE = 256 * 256;
+
+    // maps each channel value to its quantized level, as a 16-bit value so the
+    // packed index doesn't saturate
+    private static final Mat QUANTIZE = quantizeTable();
+
+    // packs the quantized levels into a remap coordinate: x = blue * LEVELS +
+    // green, y = red
+    private static final Mat PACK = packMatrix();
+
+    // the newest table that finished building, or null
+    private final AtomicReference<Table> table = new AtomicReference<Table>();
+
+    // the table the last frame was thresholded with, released once a newer one
+    // replaces it (only touched by the thread calling apply)
+    private Table lastUsed;
+
+    // whether a rebuild is queued or running
+    private final AtomicBoolean building = new AtomicBoolean(false);
+
+    // builds tables off the vision thread
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HSV Lookup Table Builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // the quantized frame and the packed indices, grown to the largest image
+    // seen and reused for every frame
+    private final Mat quantized = new Mat();
+    private final Mat indices = new Mat();
+    // the empty second map remap expects alongside packed integer coordinates
+    private final Mat noMap = new Mat();
+
+    /**
+     * Thresholds a BGR image with the table, if the table for the given range is
+     * ready. Otherwise starts building it and returns false, and the caller
+     * should threshold the image itself. Only call from one thread.
+     *
+     * @param bgr  the BGR image (may be a submat)
+     * @param low  low HSV values
+     * @param high high HSV values
+     * @param mask single-channel mask the result is written to, same size as bgr
+     * @return true if the mask was written
+     */
+    public boolean apply(Mat bgr, Scalar low, Scalar high, Mat mask) {
+        Table current = table.get();
+        if (current == null || !current.matches(low, high)) {
+            requestBuild(low, high);
+            return false;
+        }
+        if (lastUsed != null && lastUsed != current) {
+            lastUsed.mask.release();
+        }
+        lastUsed = current;
+
+        int rows = bgr.rows();
+        int cols = bgr.cols();
+        if (quantized.rows() < rows || quantized.cols() < cols) {
+            int maxRows = Math.max(rows, quantized.rows());
+            int maxCols = Math.max(cols, quantized.cols());
+            quantized.create(maxRows, maxCols, CvType.CV_16SC3);
+            indices.create(maxRows, maxCols, CvType.CV_16SC2);
+        }
+        Mat quantizedView = quantized.submat(0, rows, 0, cols);
+        Mat indicesView = indices.submat(0, rows, 0, cols);
+
+        Core.LUT(bgr, QUANTIZE, quantizedView);
+        Core.transform(quantizedView, indicesView, PACK);
+        Imgproc.remap(current.mask, mask, indicesView, noMap, Imgproc.INTER_NEAREST);
+
+        quantizedView.release();
+        indicesView.release();
+        return true;
+    }
+
+    /**
+     * Queues a rebuild for the given range unless one is already running. A
+     * range that changes again while building is picked up by the next call.
+     */
+    private void requestBuild(Scalar low, Scalar high) {
+        if (!building.compareAndSet(false, true)) {
+            return;
+        }
+
+        double[] lowValues = Arrays.copyOf(low.val, 3);
+        double[] highValues = Arrays.copyOf(high.val, 3);
+        builder.execute(() -> {
+            try {
+                table.set(build(lowValues, highValues));
+            } catch (Exception e) {
+                System.out.println("Failed to build HSV lookup table.");
+                e.printStackTrace();
+            } finally {
+                building.set(false);
+            }
+        });
+    }
+
+    /**
+     * Builds the table by running every BGR color through the same cvtColor and
+     * inRange calls as the per-frame path, and putting each quantized cell in
+     * the mask if most of its colors are.
+     */
+    private static Table build(double[] low, double[] high) {
+        // colors in range in each cell, indexed like the table: red level * width
+        // + blue level * LEVELS + green level
+        int width = LEVELS * LEVELS;
+        int[] counts = new int[width * LEVELS];
+
+        Scalar lowScalar = new Scalar(low[0], low[1], low[2]);
+        Scalar highScalar = new Scalar(high[0], high[1], high[2]);
+
+        Mat bgr = new Mat(1, CHUNK_SIZE, CvType.CV_8UC3);
+        Mat hsv = new Mat(1, CHUNK_SIZE, CvType.CV_8UC3);
+        Mat mask = new Mat(1, CHUNK_SIZE, CvType.CV_8UC1);
+        byte[] colors = new byte[CHUNK_SIZE * 3];
+        byte[] maskBytes = new byte[CHUNK_SIZE];
+
+        // green and red cycle through every pair within a chunk
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            colors[i * 3 + 1] = (byte) (i >>> 8);
+            colors[i * 3 + 2] = (byte) i;
+        }
+
+        for (int blue = 0; blue < 256; blue++) {
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                colors[i * 3] = (byte) blue;
+            }
+            bgr.put(0, 0, colors);
+
+            Imgproc.cvtColor(bgr, hsv, Imgproc.COLOR_BGR2HSV);
+            Core.inRange(hsv, lowScalar, highScalar, mask);
+            mask.get(0, 0, maskBytes);
+
+            int blueOffset = (blue >>> SHIFT) * LEVELS;
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                if (maskBytes[i] != 0) {
+                    int green = i >>> 8;
+                    int red = i & 0xff;
+                    counts[(red >>> SHIFT) * width + blueOffset + (green >>> SHIFT)]++;
+                }
+            }
+        }
+
+        bgr.release();
+        hsv.release();
+        mask.release();
+
+        // a cell is in the mask if at least half its colors are
+        int half = 1 << (3 * SHIFT - 1);
+        byte[] cells = new byte[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            cells[i] = counts[i] >= half ? (byte) 255 : 0;
+        }
+        Mat table = new Mat(LEVELS, width, CvType.CV_8UC1);
+        table.put(0, 0, cells);
+        return new Table(low, high, table);
+    }
+
+    /**
+     * Returns the per-channel table that quantizes each channel value.
+     */
+    private static Mat quantizeTable() {
+        short[] levels = new short[256 * 3];
+        for (int value = 0; value < 256; value++) {
+            for (int channel = 0; channel < 3; channel++) {
+                levels[value * 3 + channel] = (short) (value >>> SHIFT);
+            }
+        }
+        Mat lut = new Mat(1, 256, CvType.CV_16SC3);
+        lut.put(0, 0, levels);
+        return lut;
+    }
+
+    /**
+     * Returns the matrix that packs the quantized blue, green and red levels
+     * into the table's x and y.
+     */
+    private static Mat packMatrix() {
+        Mat pack = new Mat(2, 3, CvType.CV_32FC1);
+        pack.put(0, 0, LEVELS, 1, 0, 0, 0, 1);
+        return pack;
+    }
+
+    /**
+     * A finished table and the range it was built for.
+     */
+    private static class Table {
+        private final double[] low;
+        private final double[] high;
+        // one row per red level and one column per blue and green level pair
+        private final Mat mask;
+
+        Table(double[] low, double[] high, Mat mask) {
+            this.low = low;
+            this.high = high;
+            this.mask = mask;
+        }
+
+        boolean matches(Scalar lowScalar, Scalar highScalar) {
+            for (int i = 0; i < 3; i++) {
+                if (low[i] != lowScalar.val[i] || high[i] != highScalar.val[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package frc.robot.commands.vision;
+
+import org.opencv.core.Scalar;
+
+/**
+ * Source of the HSV range the lemon detector filters for, read once per frame.
+ */
+public interface HsvRange {
+
+    /**
+     * Copies the low HSV values into a scalar owned by the caller, so detectors
+     * on different threads never share one.
+     * 
+     * @param out the scalar to write to
+     * @return out, holding the low HSV values
+     */
+    Scalar getLowScalar(Scalar out);
+
+    /**
+     * Copies the high HSV values into a scalar owned by the caller.
+     * 
+     * @param out the scalar to write to
+     * @return out, holding the high HSV values
+     */
+    Scalar getHighScalar(Scalar out);
+}
@@ -0,0 +1,79 @@
+package frc.robot.commands.vision;
+
+import java.util.Arrays;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Rolling latency breakdown of the published vision results: how long each
+ * frame waited between capture and processing, how long processing took, how
+ * long the finished result waited to be published, and the total from capture
+ * to publish. The last {@link #WINDOW} results are kept in ring buffers, and
+ * their percentiles are published to NetworkTables.
+ *
+ * <p>
+ * Recording never allocates, so it can run on the vision thread for every
+ * frame; the percentiles are only sorted out when they are published.
+ */
+public class LatencyStats {
+
+    // number of results the percentiles are taken over
+    public static final int WINDOW = 256;
+
+    // names of the latencies, in the order they are stored
+    private static final String[] NAMES = { "Capture to Process", "Process", "Process to Publish", "Total" };
+    // percentiles that are published
+    private static final double[] PERCENTILES = { 50, 90, 99, 100 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "max" };
+
+    // ring buffer of each latency, in microseconds
+    private final long[][] samples = new long[NAMES.length][WINDOW];
+    private int next = 0;
+    private int count = 0;
+
+    // scratch space for sorting one latency's samples
+    private final long[] sorted = new long[WINDOW];
+    // the published keys, built once
+    private final String[][] keys = new String[NAMES.length][PERCENTILES.length];
+
+    public LatencyStats() {
+        for (int i = 0; i < NAMES.length; i++) {
+            for (int j = 0; j < PERCENTILES.length; j++) {
+                keys[i][j] = "Vision/Latency/" + NAMES[i] + " " + PERCENTILE_NAMES[j] + " ms";
+            }
+        }
+    }
+
+    /**
+     * Records the timestamps of one published result. All times must come from
+     * the same clock as the camera's frame times.
+     *
+     * @param result the published result
+     */
+    public synchronized void record(VisionResult result) {
+        samples[0][next] = result.getProcessStartMicros() - result.getCaptureTimeMicros();
+        samples[1][next] = result.getProcessEndMicros() - result.getProcessStartMicros();
+        samples[2][next] = result.getPublishTimeMicros() - result.getProcessEndMicros();
+        samples[3][next] = result.getPublishTimeMicros() - result.getCaptureTimeMicros();
+        next = (next + 1) % WINDOW;
+        count = Math.min(count + 1, WINDOW);
+    }
+
+    /**
+     * Publishes the percentiles of every latency over the last {@link #WINDOW}
+     * results to NetworkTables, in milliseconds.
+     */
+    public synchronized void publish() {
+        if (count == 0) {
+            return;
+        }
+        for (int i = 0; i < NAMES.length; i++) {
+            System.arraycopy(samples[i], 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            for (int j = 0; j < PERCENTILES.length; j++) {
+                int index = (int) Math.ceil(PERCENTILES[j] / 100 * count) - 1;
+                SmartDashboard.putNumber(keys[i][j], sorted[Math.max(0, index)] / 1000.0);
+            }
+        }
+    }
+}
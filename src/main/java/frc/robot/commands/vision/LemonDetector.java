@@ -0,0 +1,777 @@
+package frc.robot.commands.vision;
+
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import frc.calibration.Undistorter;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Finds lemons in a camera frame. The detector holds no per-frame state; all
+ * intermediate images live in the {@link VisionFrame} passed to each call, so
+ * the same detector can be used from whichever thread owns the frame. The only
+ * state kept across frames is the optional {@link RoiTracker}, which narrows
+ * each frame down to a search window around the last lemon.
+ */
+public class LemonDetector {
+
+    // kernel used when reducing image noise in the coarse search (shared with
+    // the preprocessing stages to save memory)
+    private static final Mat kernel = PreprocessStages.DEFAULT_KERNEL;
+
+    // constant arguments to the OpenCV calls, stored here so they aren't
+    // reallocated every frame
+    private static final Point DEFAULT_ANCHOR = new Point(-1, -1);
+    private static final Scalar CENTER_COLOR = new Scalar(255, 0, 255);
+    private static final Scalar CONTOUR_COLOR = new Scalar(0, 255, 0);
+    private static final Scalar REGION_COLOR = new Scalar(255, 255, 0);
+    private static final Scalar BLACK = new Scalar(0, 0, 0);
+
+    // smallest contour area that can be a lemon, in full-resolution pixels
+    private static final double MIN_TARGET_AREA = 100;
+    // padding around each coarse candidate's full-resolution window, in pixels
+    private static final int COARSE_WINDOW_PADDING = 8;
+    // in ROI-only mode, one in this many full frames is searched
+    private static final int ROI_ONLY_FULL_FRAME_INTERVAL = 3;
+
+    // source of the HSV range used to filter for yellow, and this detector's own
+    // copy of it (the source is shared by every camera's detector)
+    private final HsvRange hsvRange;
+    private final Scalar hsvLow = new Scalar(0, 0, 0);
+    private final Scalar hsvHigh = new Scalar(0, 0, 0);
+
+    // works out where each lemon is from the camera matrix (null if the camera
+    // is not calibrated)
+    private TargetGeometry geometry;
+
+    // removes lens distortion from the frame or from the found centers
+    private final Undistorter undistorter;
+
+    // follows the last lemon between frames (null for a full search every frame)
+    private RoiTracker tracker;
+
+    // follows every lemon between frames with a persistent ID (null to not
+    // track them)
+    private MultiTargetTracker multiTracker;
+
+    // maps BGR straight to the threshold mask (null to always use cvtColor +
+    // inRange)
+    private HsvLookupTable lookupTable;
+
+    // number of times the image is halved for the coarse search (0 to search at
+    // full resolution)
+    private int pyramidLevels = 0;
+    // whether full frames go through the coarse search (when the pyramid buffers
+    // exist); changed at runtime by the quality controller
+    private volatile boolean coarseSearch = true;
+
+    // whether fewer morphology passes are run, and whether most full-frame
+    // searches are skipped; changed at runtime by the quality controller
+    private volatile boolean reducedMorphology = false;
+    private volatile boolean roiOnly = false;
+    // full frames seen in ROI-only mode
+    private int fullFrameCount = 0;
+
+    // trades quality for speed to hold a frame time budget (null for full
+    // quality always)
+    private QualityController qualityController;
+
+    // whether targets are found by labelling the blobs in the cleaned-up mask
+    // (one pass for area, bounding box and centroid) instead of edges and contours
+    private boolean blobAnalysis = false;
+
+    // tests each contour or blob, cheapest test first
+    private CandidateFilterChain filters = defaultFilters();
+
+    // the full-resolution preprocessing stages (the default chain for the search
+    // mode if none is set)
+    private PreprocessChain preprocessChain;
+    // thresholds for the HSV range inside the preprocessing chain
+    private final PreprocessChain.Thresholder thresholder = this::threshold;
+
+    // scratch space, each only used by the stage named
+    // (stages may run on different threads in the pipelined executor)
+    private final Rect windowScratch = new Rect(); // preprocess
+    private final Point contourOffset = new Point(); // findTargets
+    private final Rect blobBox = new Rect(); // findTargets
+    private final Candidate candidate = new Candidate(); // findTargets
+    private int[] blobStats = new int[0]; // findTargets
+    private double[] blobCentroids = new double[0]; // findTargets
+    private final double[] position = new double[TargetGeometry.SIZE]; // findTargets
+    private final double[] undistorted = new double[2]; // findTargets
+    private final Point center = new Point(); // annotate
+    private final Point regionTopLeft = new Point(); // annotate
+    private final Point regionBottomRight = new Point(); // annotate
+    private final StringBuilder label = new StringBuilder(); // annotate
+
+    /**
+     * Creates a lemon detector.
+     *
+     * @param hsvRange     the HSV range to filter for (usually the Shuffleboard
+     *                     tab)
+     * @param cameraMatrix the camera matrix, or null if the camera is not
+     *                     calibrated
+     * @param undistorter  removes lens distortion for this camera
+     */
+    public LemonDetector(HsvRange hsvRange, Mat cameraMatrix, Undistorter undistorter) {
+        this.hsvRange = hsvRange;
+        if (cameraMatrix != null) {
+            geometry = new TargetGeometry(cameraMatrix, TargetGeometry.DEFAULT_LEMON_DIAMETER);
+        }
+        this.undistorter = undistorter;
+    }
+
+    /**
+     * Sets how the position of each lemon relative to the camera is worked out.
+     *
+     * @param geometry the geometry for this camera, or null to not estimate
+     *                 positions
+     */
+    public void setTargetGeometry(TargetGeometry geometry) {
+        this.geometry = geometry;
+    }
+
+    /**
+     * Enables region-of-interest tracking: once a lemon is found, later frames
+     * are only processed in a window around its predicted position.
+     *
+     * @param tracker the tracker to use, or null to search every full frame
+     */
+    public void setRoiTracker(RoiTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    /**
+     * Returns whether the detector has a tracker to narrow the search down.
+     *
+     * @return true if a {@link RoiTracker} is set
+     */
+    public boolean hasRoiTracker() {
+        return tracker != null;
+    }
+
+    /**
+     * Enables multi-target tracking: every found lemon is matched to the lemons
+     * found in earlier frames, so each keeps its ID and gets a filtered position
+     * and velocity.
+     *
+     * @param multiTracker the tracker to update, or null to not track lemons
+     */
+    public void setMultiTargetTracker(MultiTargetTracker multiTracker) {
+        this.multiTracker = multiTracker;
+    }
+
+    /**
+     * Returns the multi-target tracker the detector updates.
+     *
+     * @return the tracker, or null if lemons aren't tracked
+     */
+    public MultiTargetTracker getMultiTargetTracker() {
+        return multiTracker;
+    }
+
+    /**
+     * Enables thresholding through a BGR lookup table instead of cvtColor +
+     * inRange. The table is quantized, so colors right at the edge of the range
+     * may be classified differently. It is rebuilt in the background whenever
+     * the HSV range changes, and the detector falls back to cvtColor + inRange
+     * meanwhile.
+     *
+     * @param lookupTable the table to use, or null to always convert to HSV
+     */
+    public void setHsvLookupTable(HsvLookupTable lookupTable) {
+        this.lookupTable = lookupTable;
+    }
+
+    /**
+     * Enables coarse-to-fine detection: full frames are thresholded at
+     * 1/scaleFactor resolution, and only windows around the candidates found
+     * there are processed at full resolution. Must be set before any buffers are
+     * created.
+     *
+     * @param scaleFactor how much to downscale the coarse image (a power of two;
+     *                    1 to search at full resolution)
+     */
+    public void setPyramidScale(int scaleFactor) {
+        if (scaleFactor < 1 || Integer.bitCount(scaleFactor) != 1) {
+            throw new IllegalArgumentException("Pyramid scale factor must be a power of two: " + scaleFactor);
+        }
+        this.pyramidLevels = Integer.numberOfTrailingZeros(scaleFactor);
+    }
+
+    /**
+     * Turns the coarse search on or off at runtime. Only has an effect if a
+     * pyramid scale was set before the buffers were created.
+     *
+     * @param enabled whether full frames are searched at low resolution first
+     */
+    public void setCoarseSearch(boolean enabled) {
+        this.coarseSearch = enabled;
+    }
+
+    /**
+     * Returns whether full frames are searched at low resolution first.
+     *
+     * @return true if there is a pyramid and the coarse search is on
+     */
+    public boolean isCoarseSearch() {
+        return pyramidLevels > 0 && coarseSearch;
+    }
+
+    /**
+     * Halves the iterations of every morphology stage in the preprocessing
+     * chain (at least one pass each), or restores them.
+     *
+     * @param reduced whether to run fewer morphology passes
+     */
+    public void setReducedMorphology(boolean reduced) {
+        this.reducedMorphology = reduced;
+        if (preprocessChain != null) {
+            preprocessChain.setReducedMorphology(reduced);
+        }
+    }
+
+    /**
+     * Enables ROI-only processing: frames narrowed down by the tracker are
+     * processed as usual, but only one in {@value #ROI_ONLY_FULL_FRAME_INTERVAL}
+     * full frames is searched. Skipped frames are marked as such and have no
+     * targets. Has no effect without a {@link RoiTracker}.
+     *
+     * @param enabled whether to skip most full-frame searches
+     */
+    public void setRoiOnly(boolean enabled) {
+        this.roiOnly = enabled;
+    }
+
+    /**
+     * Sets the controller that adjusts this detector's quality to hold a frame
+     * time budget. The caller reports the frame times to it.
+     *
+     * @param qualityController the controller, or null for full quality always
+     */
+    public void setQualityController(QualityController qualityController) {
+        this.qualityController = qualityController;
+    }
+
+    /**
+     * Returns the controller that adjusts this detector's quality.
+     *
+     * @return the controller, or null if there is none
+     */
+    public QualityController getQualityController() {
+        return qualityController;
+    }
+
+    /**
+     * Switches target finding to connected-component analysis: the cleaned-up
+     * threshold mask is labelled in one pass, which gives every blob's area,
+     * bounding box and centroid without edge detection or contour tracing. A
+     * blob's outline is only traced if one of the candidate filters needs it.
+     * Must be set before any buffers are created.
+     *
+     * @param enabled whether to use blob analysis instead of edges and contours
+     */
+    public void setBlobAnalysis(boolean enabled) {
+        this.blobAnalysis = enabled;
+    }
+
+    /**
+     * Sets the tests a contour or blob must pass to be a target. Must be set
+     * before processing starts.
+     *
+     * @param filters the filters to use
+     */
+    public void setCandidateFilters(CandidateFilterChain filters) {
+        this.filters = filters;
+    }
+
+    /**
+     * Sets the preprocessing stages run on each search window. The chain must
+     * match the search mode, so set it after
+     * {@link #setBlobAnalysis(boolean)} and before any buffers are created.
+     *
+     * @param preprocessChain the chain to use (not shared with other detectors)
+     */
+    public void setPreprocessChain(PreprocessChain preprocessChain) {
+        this.preprocessChain = preprocessChain;
+    }
+
+    /**
+     * Returns the preprocessing stages run on each search window.
+     *
+     * @return the chain, or null until buffers are created if none was set
+     */
+    public PreprocessChain getPreprocessChain() {
+        return preprocessChain;
+    }
+
+    /**
+     * Returns the filters used when none are configured: big enough, with a
+     * polygon of at least 10 vertices.
+     */
+    private static CandidateFilterChain defaultFilters() {
+        return new CandidateFilterChain().add(new CandidateFilters.BoundingBox(MIN_TARGET_AREA, 0))
+                .add(new CandidateFilters.Area(MIN_TARGET_AREA)).add(new CandidateFilters.Polygon(10));
+    }
+
+    /**
+     * Publishes how many candidates each filter rejected, how long each
+     * preprocessing stage takes, how many lemons are being tracked, and the
+     * quality level, to SmartDashboard.
+     */
+    public void publishStats() {
+        filters.publishStats();
+        if (preprocessChain != null) {
+            preprocessChain.publishStats();
+        }
+        if (qualityController != null) {
+            qualityController.publishStats();
+        }
+        if (multiTracker != null) {
+            multiTracker.publishStats();
+        }
+    }
+
+    /**
+     * Allocates a set of buffers sized for this detector's camera stream.
+     *
+     * @return the new buffers
+     */
+    public VisionBuffers createBuffers() {
+        if (preprocessChain == null) {
+            preprocessChain = PreprocessChain.createDefault(blobAnalysis);
+        } else if (preprocessChain.isBlobAnalysis() != blobAnalysis) {
+            throw new IllegalStateException("Preprocessing chain doesn't match the search mode");
+        }
+        preprocessChain.setReducedMorphology(reducedMorphology);
+
+        return new VisionBuffers(VisionSubsystem.STREAM_WIDTH, VisionSubsystem.STREAM_HEIGHT, pyramidLevels,
+                undistorter.getMode() == Undistorter.Mode.REMAP, blobAnalysis);
+    }
+
+    /**
+     * Runs every stage on the frame in {@code frame.buffers.image}, skipping the
+     * annotation unless {@code frame.annotate} is set.
+     *
+     * @param frame the frame to process; found targets are added to
+     *              {@code frame.targets}
+     */
+    public void process(VisionFrame frame) {
+        selectRegion(frame);
+        if (skipFullFrame(frame)) {
+            frame.skipped = true;
+            return;
+        }
+        preprocess(frame);
+        findTargets(frame);
+        updateTracker(frame);
+        if (frame.annotate) {
+            annotate(frame);
+        }
+    }
+
+    /**
+     * Finds the lemons in an image, with no camera or dashboard involved: loads
+     * the image into the frame and runs every stage except annotation.
+     *
+     * @param image             BGR image the size of the camera stream
+     * @param captureTimeMicros when the image was captured, in microseconds (only
+     *                          used by the trackers)
+     * @param frame             the frame to process in, with buffers from
+     *                          {@link #createBuffers()}
+     * @return the found targets; this is {@code frame.targets}, so it is only
+     *         valid until the frame is reused
+     */
+    public List<Target> detect(Mat image, long captureTimeMicros, VisionFrame frame) {
+        loadFrame(image, captureTimeMicros, frame);
+        frame.annotate = false;
+        frame.maskColor = false;
+        process(frame);
+        return frame.targets;
+    }
+
+    /**
+     * Copies an image into a frame, where the camera would have put it, and
+     * resets the frame for processing.
+     *
+     * @param image             BGR image the size of the camera stream
+     * @param captureTimeMicros when the image was captured, in microseconds
+     * @param frame             the frame to load
+     */
+    public void loadFrame(Mat image, long captureTimeMicros, VisionFrame frame) {
+        Mat rawImage = frame.buffers.rawImage;
+        if (image.cols() != rawImage.cols() || image.rows() != rawImage.rows() || image.type() != rawImage.type()) {
+            throw new IllegalArgumentException("Image must be " + rawImage.cols() + "x" + rawImage.rows()
+                    + " BGR, got " + image.cols() + "x" + image.rows() + " type " + image.type());
+        }
+        image.copyTo(rawImage);
+        frame.reset();
+        frame.captureTimeMicros = captureTimeMicros;
+    }
+
+    /**
+     * Returns whether to skip a frame in ROI-only mode: only frames narrowed down
+     * by the tracker and every few full frames are searched. Called by
+     * {@link #process}; callers running the stages themselves call it after
+     * {@link #selectRegion}, from one thread.
+     *
+     * @param frame the frame, with its region selected
+     * @return true if the frame should not be searched
+     */
+    public boolean skipFullFrame(VisionFrame frame) {
+        // without a tracker there are no windows to search instead
+        if (!roiOnly || tracker == null || !frame.isFullFrame()) {
+            return false;
+        }
+        return fullFrameCount++ % ROI_ONLY_FULL_FRAME_INTERVAL != 0;
+    }
+
+    /**
+     * Sets the part of the frame to process: the tracker's search window while a
+     * lemon is being tracked, otherwise the full frame.
+     *
+     * @param frame the captured frame
+     */
+    public void selectRegion(VisionFrame frame) {
+        if (tracker != null) {
+            tracker.selectRegion(frame.captureTimeMicros, frame.region);
+        }
+    }
+
+    /**
+     * Runs the preprocessing chain (by default: blur, color threshold, noise
+     * removal and edges) on the frame's region. Fills {@code cannyEdgeImg}, or
+     * {@code cleanMask} with blob analysis, and the intermediates the chain
+     * uses. In pyramid mode, a full frame is first searched at low resolution
+     * and only the windows around the coarse candidates are processed at full
+     * resolution.
+     *
+     * @param frame the frame to process
+     */
+    public void preprocess(VisionFrame frame) {
+        VisionBuffers buffers = frame.buffers;
+        buffers.releaseViews();
+
+        // undistort the grabbed frame into image (REMAP mode only); outside a search
+        // window the distorted pixels are copied so the debug streams stay current
+        if (undistorter.getMode() == Undistorter.Mode.REMAP) {
+            if (!frame.isFullFrame()) {
+                buffers.rawImage.copyTo(buffers.image);
+            }
+            undistorter.remap(buffers.rawImage, buffers.image, frame.region);
+        }
+
+        // clear the color mask and edge images, since the stages below may only
+        // write part of them (the whole image is cleared so the debug streams
+        // don't show stale pixels outside the processed windows); the 3-channel
+        // masked image is only needed by the original stream
+        if (frame.maskColor) {
+            buffers.colorMaskedImg.setTo(BLACK);
+        }
+        if (blobAnalysis) {
+            buffers.cleanMask.setTo(BLACK);
+        } else {
+            buffers.cannyEdgeImg.setTo(BLACK);
+        }
+
+        if (pyramidLevels > 0 && coarseSearch && frame.isFullFrame()) {
+            findCoarseCandidates(frame);
+        } else {
+            frame.addSearchWindow(frame.region);
+        }
+
+        for (int i = 0; i < frame.getSearchWindowCount(); i++) {
+            preprocessRegion(buffers, frame.getSearchWindow(i), frame.maskColor);
+        }
+    }
+
+    /**
+     * Runs the full-resolution preprocessing on one region of the frame.
+     */
+    private void preprocessRegion(VisionBuffers buffers, Rect region, boolean maskColor) {
+        preprocessChain.run(buffers, region, thresholder);
+
+        if (blobAnalysis && maskColor) {
+            // the chain works on the single-channel mask; the color image is only
+            // masked for the debug stream
+            Mat color = buffers.view(preprocessChain.getColorSource().get(buffers), region);
+            Core.bitwise_and(color, color, buffers.view(buffers.colorMaskedImg, region),
+                    buffers.view(buffers.cleanMask, region));
+        }
+    }
+
+    /**
+     * Filters a BGR image for the HSV range, through the lookup table when it is
+     * ready for the current range.
+     */
+    private void threshold(Mat bgr, Mat hsv, Mat mask) {
+        Scalar low = hsvRange.getLowScalar(hsvLow);
+        Scalar high = hsvRange.getHighScalar(hsvHigh);
+        if (lookupTable != null && lookupTable.apply(bgr, low, high, mask)) {
+            return;
+        }
+
+        Imgproc.cvtColor(bgr, hsv, Imgproc.COLOR_BGR2HSV);
+        Core.inRange(hsv, low, high, mask);
+    }
+
+    /**
+     * Thresholds a downscaled copy of the frame and adds a full-resolution search
+     * window around every blob that could be a lemon.
+     */
+    private void findCoarseCandidates(VisionFrame frame) {
+        VisionBuffers buffers = frame.buffers;
+        int scale = 1 << pyramidLevels;
+
+        // downscale (pyrDown blurs as it goes, so no separate blur is needed)
+        Mat coarse = buffers.image;
+        for (Mat level : buffers.pyramid) {
+            Imgproc.pyrDown(coarse, level);
+            coarse = level;
+        }
+
+        // threshold the coarse image
+        threshold(coarse, buffers.coarseHsv, buffers.coarseThresh);
+
+        // remove tiny blobs; the erode shrinks with the image so it removes the same
+        // size of blob as at full resolution
+        int erodeIterations = Math.max(1, 6 / scale);
+        Imgproc.dilate(buffers.coarseThresh, buffers.coarseTemp, kernel, DEFAULT_ANCHOR, 1, Core.BORDER_DEFAULT);
+        Imgproc.erode(buffers.coarseTemp, buffers.coarseThresh, kernel, DEFAULT_ANCHOR, erodeIterations);
+        Imgproc.dilate(buffers.coarseThresh, buffers.coarseTemp, kernel, DEFAULT_ANCHOR, 1, Core.BORDER_DEFAULT);
+
+        // the outer contour of each blob is enough to place a window
+        buffers.releaseContours(buffers.coarseContours);
+        Imgproc.findContours(buffers.coarseTemp, buffers.coarseContours, buffers.hierarchy, Imgproc.RETR_EXTERNAL,
+                Imgproc.CHAIN_APPROX_SIMPLE);
+
+        int frameWidth = buffers.image.cols();
+        int frameHeight = buffers.image.rows();
+        for (MatOfPoint contour : buffers.coarseContours) {
+            // lenient area check, since the coarse mask loses the blob's edges
+            if (Imgproc.contourArea(contour) * scale * scale < MIN_TARGET_AREA / 2) {
+                continue;
+            }
+
+            // scale the bounding box up and pad it so the full-resolution blur,
+            // morphology and edges see the whole lemon
+            Rect box = Imgproc.boundingRect(contour);
+            int pad = COARSE_WINDOW_PADDING + scale * Math.max(box.width, box.height) / 4;
+            int left = Math.max(0, box.x * scale - pad);
+            int top = Math.max(0, box.y * scale - pad);
+            int right = Math.min(frameWidth, (box.x + box.width) * scale + pad);
+            int bottom = Math.min(frameHeight, (box.y + box.height) * scale + pad);
+
+            windowScratch.x = left;
+            windowScratch.y = top;
+            windowScratch.width = right - left;
+            windowScratch.height = bottom - top;
+            frame.addSearchWindow(windowScratch);
+        }
+    }
+
+    /**
+     * Finds the blobs (or, without blob analysis, the contours in the edge
+     * image) that pass every candidate filter.
+     *
+     * @param frame the preprocessed frame; found targets are added to
+     *              {@code frame.targets}
+     */
+    public void findTargets(VisionFrame frame) {
+        VisionBuffers buffers = frame.buffers;
+
+        // release the previous frame's contours
+        buffers.releaseContours(buffers.contours);
+        buffers.targetContours.clear();
+
+        for (int i = 0; i < frame.getSearchWindowCount(); i++) {
+            if (blobAnalysis) {
+                findBlobsInRegion(frame, frame.getSearchWindow(i));
+            } else {
+                findTargetsInRegion(frame, frame.getSearchWindow(i));
+            }
+        }
+    }
+
+    /**
+     * Labels the blobs in one region of the cleaned-up mask and runs each one
+     * through the candidate filters. Outlines are only traced for blobs that
+     * reach a filter that needs them.
+     */
+    private void findBlobsInRegion(VisionFrame frame, Rect region) {
+        VisionBuffers buffers = frame.buffers;
+
+        // label every 8-connected blob; label 0 is the background
+        int count = Imgproc.connectedComponentsWithStats(buffers.view(buffers.cleanMask, region),
+                buffers.view(buffers.labels, region), buffers.stats, buffers.centroids, 8, CvType.CV_32S);
+        if (count <= 1) {
+            return;
+        }
+
+        // copy the stats out in one call each rather than one get() per value
+        if (blobStats.length < count * 5) {
+            blobStats = new int[count * 5];
+            blobCentroids = new double[count * 2];
+        }
+        buffers.stats.get(0, 0, blobStats);
+        buffers.centroids.get(0, 0, blobCentroids);
+
+        for (int label = 1; label < count; label++) {
+            // stats are relative to the region; move them into full-frame coordinates
+            int stat = label * 5;
+            blobBox.x = blobStats[stat + Imgproc.CC_STAT_LEFT] + region.x;
+            blobBox.y = blobStats[stat + Imgproc.CC_STAT_TOP] + region.y;
+            blobBox.width = blobStats[stat + Imgproc.CC_STAT_WIDTH];
+            blobBox.height = blobStats[stat + Imgproc.CC_STAT_HEIGHT];
+            candidate.setBlob(buffers, blobBox, blobStats[stat + Imgproc.CC_STAT_AREA],
+                    blobCentroids[label * 2] + region.x, blobCentroids[label * 2 + 1] + region.y);
+
+            if (filters.accept(candidate)) {
+                addTarget(frame, candidate);
+            }
+        }
+    }
+
+    /**
+     * Finds the contours in one preprocessed region of the frame and runs each
+     * one through the candidate filters.
+     */
+    private void findTargetsInRegion(VisionFrame frame, Rect region) {
+        VisionBuffers buffers = frame.buffers;
+
+        // find contours, offset so they are in full-frame coordinates (findContours
+        // clears the list it fills, so collect them separately)
+        List<MatOfPoint> contours = buffers.regionContours;
+        contourOffset.x = region.x;
+        contourOffset.y = region.y;
+        Imgproc.findContours(buffers.view(buffers.cannyEdgeImg, region), contours, buffers.hierarchy,
+                Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE, contourOffset);
+
+        for (MatOfPoint contour : contours) {
+            candidate.setContour(buffers, contour);
+            if (filters.accept(candidate)) {
+                addTarget(frame, candidate);
+            }
+        }
+
+        // keep every window's contours so they are released with the frame
+        buffers.contours.addAll(contours);
+        contours.clear();
+    }
+
+    /**
+     * Undistorts an accepted candidate's center, works out where it is relative
+     * to the camera, and adds it to the frame's targets.
+     */
+    private void addTarget(VisionFrame frame, Candidate candidate) {
+        VisionBuffers buffers = frame.buffers;
+        double x = candidate.getCenterX();
+        double y = candidate.getCenterY();
+
+        // outlines of accepted candidates are drawn in annotate()
+        if (candidate.getContourIfTraced() != null) {
+            buffers.targetContours.add(candidate.getContourIfTraced());
+        }
+
+        // remove lens distortion from the center (POINTS mode only)
+        undistorter.undistortPoint(x, y, undistorted);
+
+        // range and angles from the lemon's apparent size
+        if (geometry != null) {
+            geometry.estimate(undistorted[0], undistorted[1],
+                    TargetGeometry.equivalentDiameter(candidate.getArea()), position);
+        }
+
+        frame.addTarget().set(x, y, undistorted[0], undistorted[1], candidate.getArea(),
+                candidate.getBoundingBox(), geometry != null ? position : null, frame.cameraId,
+                frame.captureTimeMicros);
+    }
+
+    /**
+     * Updates the trackers with the targets found in the frame.
+     *
+     * @param frame the frame, after {@link #findTargets(VisionFrame)}
+     */
+    public void updateTracker(VisionFrame frame) {
+        if (tracker != null) {
+            tracker.update(frame.captureTimeMicros, frame.targets);
+        }
+        if (multiTracker != null) {
+            multiTracker.update(frame.captureTimeMicros, frame.targets);
+        }
+    }
+
+    /**
+     * Draws the search windows, the found targets, and their coordinates on
+     * {@code frame.buffers.image}.
+     *
+     * @param frame the frame to draw on
+     */
+    public void annotate(VisionFrame frame) {
+        VisionBuffers buffers = frame.buffers;
+        Mat image = buffers.image;
+
+        // draw the search windows
+        for (int i = 0; i < frame.getSearchWindowCount(); i++) {
+            Rect window = frame.getSearchWindow(i);
+            if (window.width == image.cols() && window.height == image.rows()) {
+                continue;
+            }
+            regionTopLeft.x = window.x;
+            regionTopLeft.y = window.y;
+            regionBottomRight.x = window.x + window.width - 1;
+            regionBottomRight.y = window.y + window.height - 1;
+            Imgproc.rectangle(image, regionTopLeft, regionBottomRight, REGION_COLOR);
+        }
+
+        for (Target target : frame.targets) {
+            center.x = target.getX();
+            center.y = target.getY();
+
+            // draw center point
+            Imgproc.circle(image, center, 5, CENTER_COLOR, 3, 8, 0);
+            // blobs may not have a traced outline, so box them
+            if (blobAnalysis) {
+                regionTopLeft.x = target.getLeft();
+                regionTopLeft.y = target.getTop();
+                regionBottomRight.x = target.getLeft() + target.getWidth() - 1;
+                regionBottomRight.y = target.getTop() + target.getHeight() - 1;
+                Imgproc.rectangle(image, regionTopLeft, regionBottomRight, CONTOUR_COLOR);
+            }
+
+            // write coordinates on output stream
+            label.setLength(0);
+            appendTenths(label, target.getRange()).append(" in, ");
+            appendTenths(label, target.getAzimuth()).append(" deg");
+            Imgproc.putText(image, label.toString(), center, Core.FONT_HERSHEY_PLAIN, 1, CENTER_COLOR);
+        }
+
+        // draw the outlines of the accepted targets, all in one call
+        if (!buffers.targetContours.isEmpty()) {
+            Imgproc.drawContours(image, buffers.targetContours, -1, CONTOUR_COLOR);
+        }
+    }
+
+    /**
+     * Appends a value rounded to one decimal place, like {@code %.1f} but
+     * without a formatter.
+     */
+    private static StringBuilder appendTenths(StringBuilder builder, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return builder.append(value);
+        }
+        long tenths = Math.round(Math.abs(value) * 10);
+        if (value < 0 && tenths != 0) {
+            builder.append('-');
+        }
+        return builder.append(tenths / 10).append('.').append(tenths % 10);
+    }
+}
@@ -0,0 +1,87 @@
+package frc.robot.commands.vision;
+
+import org.opencv.core.Size;
+
+import edu.wpi.first.wpilibj2.command.CommandBase;
+import frc.calibration.LiveCalibration;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Calibrates a camera from its live stream while the command runs, and ends
+ * once the calibration has converged and been saved. Takes over the vision
+ * subsystem, so target tracking pauses until it ends.
+ */
+public class LiveCalibrationCommand extends CommandBase {
+
+    // how long to wait for the calibration thread to finish when ending
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private final VisionSubsystem visionSubsystem;
+    private final VisionConfig config;
+
+    // the running calibration and its thread
+    private LiveCalibration calibration;
+    private Thread calibrationThread;
+
+    /**
+     * Command that calibrates the camera set in the live_calibration section of
+     * the lemon config.
+     *
+     * @param visionSubsystem the vision subsystem
+     */
+    public LiveCalibrationCommand(VisionSubsystem visionSubsystem) {
+        this.visionSubsystem = visionSubsystem;
+        addRequirements(visionSubsystem);
+
+        config = VisionConfig.load(TrackTargetCommand.HSV_CONFIG_FILE_PATH);
+    }
+
+    @Override
+    public void initialize() {
+        // the camera only has a sink in MULTI_CAMERA mode, so fall back to the first
+        int camera = config.getInt("live_calibration", "camera", 0);
+        if (camera >= visionSubsystem.getCameraCount()) {
+            System.out.println("Camera " + camera + " has no sink, calibrating camera 0.");
+            camera = 0;
+        }
+
+        // a fresh calibration each time, so a run that was cut short starts over
+        calibration = new LiveCalibration(visionSubsystem.getCvSink(camera), camera,
+                new Size(config.getInt("live_calibration", "board_width", 7),
+                        config.getInt("live_calibration", "board_height", 9)),
+                config.getDouble("live_calibration", "min_sharpness", 100),
+                config.getDouble("live_calibration", "min_pose_change", 0.1),
+                config.getDouble("live_calibration", "outlier_ratio", 2),
+                config.getInt("live_calibration", "min_views", 8),
+                config.getInt("live_calibration", "max_views", 30),
+                config.getDouble("live_calibration", "tolerance", 0.02),
+                config.getDouble("live_calibration", "max_error", 1.0));
+
+        calibrationThread = new Thread(calibration, "Calibration");
+        calibrationThread.setDaemon(true);
+        calibrationThread.start();
+    }
+
+    @Override
+    public void execute() {
+        calibration.publishStats();
+    }
+
+    @Override
+    public boolean isFinished() {
+        return calibration.isDone();
+    }
+
+    @Override
+    public void end(boolean interrupted) {
+        // stop grabbing frames so the sink is free for the detectors again
+        calibrationThread.interrupt();
+        try {
+            calibrationThread.join(STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        calibrationThread = null;
+        calibration.publishStats();
+    }
+}
@@ -0,0 +1,159 @@
+package frc.robot.commands.vision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Runs one lemon detector per camera in parallel on a shared, bounded thread
+ * pool, and merges the newest targets from every camera into one result.
+ *
+ * <p>
+ * Each camera has its own {@link VisionWorker} (with its own sink, detector and
+ * buffers) that processes one frame per task and then queues itself again, so
+ * a pool with fewer threads than cameras takes turns between them. Each camera
+ * has at most one task queued or running, so the pool's queue never overflows.
+ * The targets are tagged with the camera and capture time they came from; a
+ * camera that stops delivering frames drops out of the merged result.
+ */
+public class MultiCameraExecutor {
+
+    // how long a camera's targets stay in the merged result without a new frame
+    private static final long MAX_RESULT_AGE_NANOS = 500_000_000L;
+
+    // how long to wait for the pool to finish when stopping
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private final VisionResultSlot resultSlot;
+    private final ThreadPoolExecutor pool;
+    private final List<CameraTask> tasks = new ArrayList<CameraTask>();
+
+    // targets of every camera, rebuilt on each merge
+    private final List<Target> merged = new ArrayList<Target>();
+
+    private volatile boolean running = false;
+
+    /**
+     * Creates the executor and one worker per detector.
+     *
+     * @param visionSubsystem the subsystem providing the cameras and output
+     *                        streams
+     * @param detectors       one detector per camera, in camera order
+     * @param resultSlot      where the merged results are published
+     * @param threads         most frames processed at once
+     */
+    public MultiCameraExecutor(VisionSubsystem visionSubsystem, List<LemonDetector> detectors,
+            VisionResultSlot resultSlot, int threads) {
+        this.resultSlot = resultSlot;
+
+        int cameraCount = detectors.size();
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(cameraCount), runnable -> {
+                    Thread thread = new Thread(runnable, "Vision Camera Pool");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        for (int camera = 0; camera < cameraCount; camera++) {
+            // only the first camera feeds the debug streams, which take frames from
+            // one thread
+            VisionResultSlot cameraSlot = new VisionResultSlot();
+            VisionWorker worker = new VisionWorker(visionSubsystem, camera, detectors.get(camera), cameraSlot,
+                    camera == 0);
+            tasks.add(new CameraTask(worker, cameraSlot));
+        }
+    }
+
+    /**
+     * Starts processing every camera.
+     */
+    public void start() {
+        running = true;
+        for (CameraTask task : tasks) {
+            pool.execute(task);
+        }
+    }
+
+    /**
+     * Stops processing and releases every camera's frame buffers. Workers that
+     * are mid-frame release their own buffers once the frame is done.
+     */
+    public void stop() {
+        running = false;
+        for (Runnable queued : pool.shutdownNow()) {
+            ((CameraTask) queued).worker.release();
+        }
+        try {
+            pool.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Publishes the newest targets of every camera that has delivered a frame
+     * recently, stamped with the times of the frame that was just processed.
+     */
+    private synchronized void merge(VisionResult newest) {
+        long now = System.nanoTime();
+        merged.clear();
+        for (CameraTask task : tasks) {
+            VisionResult result = task.latest;
+            if (result != null && now - task.latestNanos <= MAX_RESULT_AGE_NANOS) {
+                merged.addAll(result.getTargets());
+            }
+        }
+        resultSlot.publish(merged, newest.getCaptureTimeMicros(), newest.getProcessStartMicros(),
+                newest.getProcessEndMicros());
+    }
+
+    /**
+     * Processes one frame from a camera, then queues itself for the next one.
+     */
+    private class CameraTask implements Runnable {
+        private final VisionWorker worker;
+        // where the worker publishes the camera's own results
+        private final VisionResultSlot cameraSlot;
+
+        // the camera's newest result and when it was published
+        private volatile VisionResult latest;
+        private volatile long latestNanos;
+
+        CameraTask(VisionWorker worker, VisionResultSlot cameraSlot) {
+            this.worker = worker;
+            this.cameraSlot = cameraSlot;
+        }
+
+        @Override
+        public void run() {
+            boolean again = false;
+            try {
+                if (running && worker.runOnce()) {
+                    latest = cameraSlot.getLatest();
+                    latestNanos = System.nanoTime();
+                    merge(latest);
+                }
+                again = running;
+            } catch (Exception e) {
+                System.out.println("Camera pipeline stopped by an unexpected error.");
+                e.printStackTrace();
+            } finally {
+                if (again) {
+                    try {
+                        pool.execute(this);
+                    } catch (RejectedExecutionException e) {
+                        // the pool was shut down between the check and the resubmit
+                        worker.release();
+                    }
+                } else {
+                    worker.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package frc.robot.commands.vision;
+
+import java.util.List;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Follows every lemon in view from frame to frame, giving each one a
+ * persistent ID and a filtered position and velocity. Each frame, every track
+ * is predicted forward with its {@link ConstantVelocityFilter} and targets are
+ * matched to tracks by gated nearest neighbour: the closest remaining
+ * track/target pair is matched first, as long as it is within the gate.
+ * Unmatched targets start new tracks, and tracks that go unmatched for too
+ * many frames are dropped.
+ *
+ * <p>
+ * Every track, filter and distance is allocated up front for a fixed number
+ * of tracks and targets, so updating never allocates. Targets beyond the limit
+ * in a single frame are ignored. The tracker is updated by the vision thread
+ * and read by commands, so every public method is synchronized.
+ */
+public class MultiTargetTracker {
+
+    // filter tuning: acceleration variance (pixels^2 / s^4) and measurement noise
+    // (pixels^2), the same as the region-of-interest tracker
+    private static final double PROCESS_NOISE = 5e5;
+    private static final double MEASUREMENT_NOISE = 4;
+
+    // the gate is widened by this many standard deviations of the prediction
+    private static final double GATE_SIGMAS = 3;
+
+    private final int maxTracks;
+    private final int maxTargets;
+    // frames in a row without a match before a track is dropped
+    private final int maxMisses;
+    // farthest a target can be from a track's prediction and still match it, in
+    // pixels
+    private final double gate;
+
+    // track slots; the first trackCount are active
+    private final Track[] tracks;
+    private final ConstantVelocityFilter[] filters;
+    private int trackCount = 0;
+
+    // squared distance from each track to each target, and the gate for each
+    // track, for the current frame
+    private final double[] distances;
+    private final double[] gates;
+    // which track each target was matched to (-1 for none), and whether each
+    // track was matched
+    private final int[] targetTrack;
+    private final boolean[] trackMatched;
+
+    private long nextId = 1;
+    // capture time of the last update
+    private long lastTimeMicros = 0;
+
+    /**
+     * Creates a tracker.
+     *
+     * @param maxTracks  most lemons tracked at once
+     * @param maxTargets most targets considered per frame
+     * @param maxMisses  frames in a row without a match before a track is dropped
+     * @param gate       farthest a target can be from a track's predicted
+     *                   position and still match it, in pixels (widened by the
+     *                   prediction's uncertainty)
+     */
+    public MultiTargetTracker(int maxTracks, int maxTargets, int maxMisses, double gate) {
+        this.maxTracks = maxTracks;
+        this.maxTargets = maxTargets;
+        this.maxMisses = maxMisses;
+        this.gate = gate;
+
+        tracks = new Track[maxTracks];
+        filters = new ConstantVelocityFilter[maxTracks];
+        for (int i = 0; i < maxTracks; i++) {
+            tracks[i] = new Track();
+            filters[i] = new ConstantVelocityFilter(PROCESS_NOISE, MEASUREMENT_NOISE);
+        }
+
+        distances = new double[maxTracks * maxTargets];
+        gates = new double[maxTracks];
+        targetTrack = new int[maxTargets];
+        trackMatched = new boolean[maxTracks];
+    }
+
+    /**
+     * Updates the tracks with the targets found in a frame.
+     *
+     * @param timeMicros capture time of the frame, in microseconds
+     * @param targets    the targets found in the frame, in full-frame coordinates
+     */
+    public synchronized void update(long timeMicros, List<Target> targets) {
+        double dt = trackCount > 0 ? Math.max(0, (timeMicros - lastTimeMicros) / 1e6) : 0;
+        lastTimeMicros = timeMicros;
+        int targetCount = Math.min(targets.size(), maxTargets);
+
+        // predict every track to this frame and measure its distance to each target
+        for (int t = 0; t < trackCount; t++) {
+            ConstantVelocityFilter filter = filters[t];
+            filter.predict(dt);
+            double sigma = Math.max(filter.getSigmaX(), filter.getSigmaY());
+            double trackGate = gate + GATE_SIGMAS * sigma;
+            gates[t] = trackGate * trackGate;
+            trackMatched[t] = false;
+
+            for (int d = 0; d < targetCount; d++) {
+                Target target = targets.get(d);
+                double dx = target.getX() - filter.getX();
+                double dy = target.getY() - filter.getY();
+                distances[t * maxTargets + d] = dx * dx + dy * dy;
+            }
+        }
+        for (int d = 0; d < targetCount; d++) {
+            targetTrack[d] = -1;
+        }
+
+        // match the closest pair within its gate, then the next closest, and so on
+        while (true) {
+            int bestTrack = -1;
+            int bestTarget = -1;
+            double bestDistance = Double.MAX_VALUE;
+            for (int t = 0; t < trackCount; t++) {
+                if (trackMatched[t]) {
+                    continue;
+                }
+                for (int d = 0; d < targetCount; d++) {
+                    double distance = distances[t * maxTargets + d];
+                    if (targetTrack[d] < 0 && distance <= gates[t] && distance < bestDistance) {
+                        bestTrack = t;
+                        bestTarget = d;
+                        bestDistance = distance;
+                    }
+                }
+            }
+            if (bestTrack < 0) {
+                break;
+            }
+            trackMatched[bestTrack] = true;
+            targetTrack[bestTarget] = bestTrack;
+        }
+
+        // correct the matched tracks
+        for (int d = 0; d < targetCount; d++) {
+            int t = targetTrack[d];
+            if (t >= 0) {
+                Target target = targets.get(d);
+                filters[t].correct(target.getX(), target.getY());
+                tracks[t].hit(timeMicros, target);
+            }
+        }
+
+        // age the unmatched tracks and drop the stale ones, moving the last active
+        // track into the freed slot
+        for (int t = trackCount - 1; t >= 0; t--) {
+            if (trackMatched[t]) {
+                continue;
+            }
+            tracks[t].miss();
+            if (tracks[t].getMisses() > maxMisses) {
+                removeTrack(t);
+            }
+        }
+
+        // start tracks for the unmatched targets while there are free slots
+        for (int d = 0; d < targetCount && trackCount < maxTracks; d++) {
+            if (targetTrack[d] < 0) {
+                Target target = targets.get(d);
+                int t = trackCount++;
+                filters[t].reset(target.getX(), target.getY());
+                tracks[t].start(nextId++, timeMicros, target);
+            }
+        }
+
+        for (int t = 0; t < trackCount; t++) {
+            ConstantVelocityFilter filter = filters[t];
+            tracks[t].setState(filter.getX(), filter.getY(), filter.getVelocityX(), filter.getVelocityY());
+        }
+    }
+
+    /**
+     * Frees a track slot by swapping the last active track into it.
+     */
+    private void removeTrack(int t) {
+        int last = --trackCount;
+        if (t != last) {
+            Track track = tracks[t];
+            tracks[t] = tracks[last];
+            tracks[last] = track;
+
+            ConstantVelocityFilter filter = filters[t];
+            filters[t] = filters[last];
+            filters[last] = filter;
+
+            boolean matched = trackMatched[t];
+            trackMatched[t] = trackMatched[last];
+            trackMatched[last] = matched;
+        }
+    }
+
+    /**
+     * Copies the active tracks into the given array without allocating.
+     *
+     * @param out tracks to copy into; at most {@code out.length} are copied
+     * @return the number of tracks copied
+     */
+    public synchronized int getTracks(Track[] out) {
+        int count = Math.min(trackCount, out.length);
+        for (int i = 0; i < count; i++) {
+            out[i].copyFrom(tracks[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of active tracks.
+     *
+     * @return the track count
+     */
+    public synchronized int getTrackCount() {
+        return trackCount;
+    }
+
+    /**
+     * Returns the most lemons tracked at once.
+     *
+     * @return the track limit
+     */
+    public int getMaxTracks() {
+        return maxTracks;
+    }
+
+    /**
+     * Publishes the number of active tracks to SmartDashboard.
+     */
+    public synchronized void publishStats() {
+        SmartDashboard.putNumber("Vision/Tracks", trackCount);
+    }
+}
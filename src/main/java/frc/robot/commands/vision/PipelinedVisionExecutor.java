@@ -0,0 +1,332 @@
+package frc.robot.commands.vision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import edu.wpi.cscore.CvSink;
+import edu.wpi.first.wpilibj.RobotController;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Runs the lemon detector as a pipeline of stages (capture, preprocess,
+ * contours, annotate), each on its own thread, so consecutive frames overlap
+ * across stages instead of waiting for the previous frame to finish.
+ *
+ * <p>
+ * Stages are joined by bounded queues of preallocated {@link VisionFrame}s.
+ * When a stage's output queue is full, the oldest waiting frame is dropped and
+ * recycled rather than blocking the stage, so the pipeline always works on the
+ * newest frames.
+ *
+ * <p>
+ * The detector's {@link QualityController} (if any) is fed the time each frame
+ * spent being worked on across the stages, not counting the capture and the
+ * waits between stages, and its level applies here as in the other modes: it
+ * gives up the debug streams and can skip full frames in ROI-only mode.
+ */
+public class PipelinedVisionExecutor {
+
+    // frames that can wait between two stages
+    public static final int DEFAULT_QUEUE_CAPACITY = 1;
+
+    // how long to wait for each stage thread to finish when stopping
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private final VisionSubsystem visionSubsystem;
+    private final LemonDetector detector;
+    private final VisionResultSlot resultSlot;
+
+    // every frame owned by the executor, so they can be released on stop
+    private final List<VisionFrame> frames = new ArrayList<VisionFrame>();
+
+    // frames not currently in use by any stage
+    private final BlockingQueue<VisionFrame> freeFrames;
+
+    private final List<Stage> stages = new ArrayList<Stage>();
+
+    // stage threads that haven't exited yet; the frames are only released once
+    // none of them can touch a frame
+    private final AtomicInteger runningStages = new AtomicInteger();
+    private final AtomicBoolean stopping = new AtomicBoolean(false);
+    private final AtomicBoolean framesReleased = new AtomicBoolean(false);
+
+    // time of the last publishStats() call, used to compute fps
+    private long lastStatsNanos = System.nanoTime();
+
+    /**
+     * Creates the executor and preallocates every frame the pipeline can hold.
+     *
+     * @param visionSubsystem the subsystem providing the camera and output streams
+     * @param detector        the detector whose stages are run
+     * @param resultSlot      where the results of each frame are published
+     * @param queueCapacity   frames that can wait between two stages
+     */
+    public PipelinedVisionExecutor(VisionSubsystem visionSubsystem, LemonDetector detector,
+            VisionResultSlot resultSlot, int queueCapacity) {
+        this.visionSubsystem = visionSubsystem;
+        this.detector = detector;
+        this.resultSlot = resultSlot;
+
+        BlockingQueue<VisionFrame> preprocessQueue = new ArrayBlockingQueue<VisionFrame>(queueCapacity);
+        BlockingQueue<VisionFrame> contoursQueue = new ArrayBlockingQueue<VisionFrame>(queueCapacity);
+        BlockingQueue<VisionFrame> annotateQueue = new ArrayBlockingQueue<VisionFrame>(queueCapacity);
+
+        // enough frames for one in every stage plus a full queue between every pair,
+        // so the capture stage never has to wait for a free frame
+        int frameCount = 4 + 3 * queueCapacity;
+        freeFrames = new ArrayBlockingQueue<VisionFrame>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            VisionFrame frame = new VisionFrame(detector.createBuffers());
+            frames.add(frame);
+            freeFrames.add(frame);
+        }
+
+        stages.add(new Stage("Capture", freeFrames, preprocessQueue, this::capture));
+        stages.add(new Stage("Preprocess", preprocessQueue, contoursQueue, frame -> {
+            long start = System.nanoTime();
+            frame.processStartMicros = RobotController.getFPGATime();
+            detector.preprocess(frame);
+            frame.workNanos += System.nanoTime() - start;
+            return true;
+        }));
+        stages.add(new Stage("Contours", contoursQueue, annotateQueue, frame -> {
+            long start = System.nanoTime();
+            detector.findTargets(frame);
+            detector.updateTracker(frame);
+            frame.processEndMicros = RobotController.getFPGATime();
+            frame.workNanos += System.nanoTime() - start;
+            return true;
+        }));
+        stages.add(new Stage("Annotate", annotateQueue, freeFrames, this::annotate));
+    }
+
+    /**
+     * Grabs a camera frame into a free frame and picks the region to process.
+     */
+    private boolean capture(VisionFrame frame) {
+        CvSink cvSink = visionSubsystem.getCvSink();
+        frame.reset();
+
+        // 0 means the grab failed or timed out
+        frame.captureTimeMicros = cvSink.grabFrame(frame.buffers.rawImage);
+        if (frame.captureTimeMicros == 0) {
+            return false;
+        }
+
+        // the tracker lags a couple of frames behind here, which the search
+        // window's padding absorbs
+        detector.selectRegion(frame);
+
+        // in ROI-only mode most full frames are dropped here, before any stage
+        // works on them (a skipped frame has no result, so the last one stands)
+        if (detector.skipFullFrame(frame)) {
+            return false;
+        }
+
+        // the masked color image is only built for the original stream
+        frame.maskColor = allowsDebugStreams() && visionSubsystem.wantsMaskedFrame();
+        return true;
+    }
+
+    /**
+     * Returns whether the quality controller (if any) leaves the debug streams
+     * on.
+     */
+    private boolean allowsDebugStreams() {
+        QualityController quality = detector.getQualityController();
+        return quality == null || quality.allowsDebugStreams();
+    }
+
+    /**
+     * Publishes a frame's results and draws them on the debug streams.
+     */
+    private boolean annotate(VisionFrame frame) {
+        long start = System.nanoTime();
+        resultSlot.publish(frame);
+
+        // drawing is wasted work while nobody is watching the annotated stream
+        boolean debug = allowsDebugStreams();
+        frame.annotate = debug && visionSubsystem.wantsAnnotatedFrame();
+        if (frame.annotate) {
+            detector.annotate(frame);
+        }
+        if (debug) {
+            visionSubsystem.putDebugFrames(frame);
+        }
+
+        QualityController quality = detector.getQualityController();
+        if (quality != null) {
+            quality.update(frame.workNanos + System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    /**
+     * Starts every stage thread.
+     */
+    public void start() {
+        runningStages.set(stages.size());
+        for (Stage stage : stages) {
+            stage.thread.start();
+        }
+    }
+
+    /**
+     * Stops every stage thread and releases all frames. A stage still stuck in a
+     * grab or a slow frame after the timeout could still be using a frame, so
+     * then the frames are released by the last stage thread to exit instead.
+     */
+    public void stop() {
+        stopping.set(true);
+        for (Stage stage : stages) {
+            stage.thread.interrupt();
+        }
+        for (Stage stage : stages) {
+            try {
+                stage.thread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (stage.thread.isAlive()) {
+                System.out.println("Vision " + stage.name + " stage did not stop in time, its frames are released"
+                        + " when it exits.");
+            }
+        }
+
+        if (runningStages.get() == 0) {
+            releaseFrames();
+        }
+    }
+
+    /**
+     * Releases every frame, once.
+     */
+    private void releaseFrames() {
+        if (!framesReleased.compareAndSet(false, true)) {
+            return;
+        }
+        for (VisionFrame frame : frames) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Publishes the fps, input queue depth, and dropped frame count of every
+     * stage to SmartDashboard.
+     */
+    public void publishStats() {
+        long now = System.nanoTime();
+        double seconds = (now - lastStatsNanos) / 1e9;
+        lastStatsNanos = now;
+
+        for (Stage stage : stages) {
+            long processed = stage.processed.get();
+            double fps = seconds > 0 ? (processed - stage.lastProcessed) / seconds : 0;
+            stage.lastProcessed = processed;
+
+            SmartDashboard.putNumber("Vision/" + stage.name + " FPS", fps);
+            SmartDashboard.putNumber("Vision/" + stage.name + " Queue Depth", stage.input.size());
+            SmartDashboard.putNumber("Vision/" + stage.name + " Dropped", stage.dropped.get());
+        }
+    }
+
+    /**
+     * Moves a frame back to the free pool.
+     */
+    private void recycle(VisionFrame frame) {
+        freeFrames.offer(frame);
+    }
+
+    /**
+     * One pipeline stage: takes frames from its input queue, processes them, and
+     * passes them to its output queue, dropping the oldest queued frame if the
+     * output is full.
+     */
+    private class Stage implements Runnable {
+        private final String name;
+        private final BlockingQueue<VisionFrame> input;
+        private final BlockingQueue<VisionFrame> output;
+        // returns false if the frame should be recycled instead of passed on
+        private final Predicate<VisionFrame> work;
+        private final Thread thread;
+
+        private final AtomicLong processed = new AtomicLong();
+        // frames dropped from this stage's output queue
+        private final AtomicLong dropped = new AtomicLong();
+        // processed count at the last publishStats() call
+        private long lastProcessed = 0;
+
+        Stage(String name, BlockingQueue<VisionFrame> input, BlockingQueue<VisionFrame> output,
+                Predicate<VisionFrame> work) {
+            this.name = name;
+            this.input = input;
+            this.output = output;
+            this.work = work;
+            this.thread = new Thread(this, "Vision " + name);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                process();
+            } finally {
+                // the last stage out releases the frames if stop() gave up waiting
+                if (runningStages.decrementAndGet() == 0 && stopping.get()) {
+                    releaseFrames();
+                }
+            }
+        }
+
+        /**
+         * Processes frames until the thread is interrupted.
+         */
+        private void process() {
+            while (!Thread.currentThread().isInterrupted()) {
+                VisionFrame frame;
+                try {
+                    frame = input.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                boolean keep;
+                try {
+                    keep = work.test(frame);
+                } catch (Exception e) {
+                    System.out.println("Vision " + name + " stage failed on a frame.");
+                    e.printStackTrace();
+                    keep = false;
+                }
+
+                if (keep) {
+                    processed.incrementAndGet();
+                    push(frame);
+                } else {
+                    recycle(frame);
+                }
+            }
+        }
+
+        /**
+         * Adds a frame to the output queue, dropping the oldest queued frames until
+         * it fits.
+         */
+        private void push(VisionFrame frame) {
+            while (!output.offer(frame)) {
+                VisionFrame oldest = output.poll();
+                if (oldest != null) {
+                    dropped.incrementAndGet();
+                    recycle(oldest);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package frc.robot.commands.vision;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * The detector's full-resolution preprocessing, as a configurable chain of
+ * {@link PreprocessStage}s: blur, threshold, morphology and (for the contour
+ * search) edges, in any order that makes sense, with their parameters. The
+ * chain for each search mode is read from {@link #CONFIG_FILE_PATH}, so it can
+ * be changed without rebuilding the robot code.
+ *
+ * <p>
+ * When the chain is built, each stage is assigned the buffers it reads and
+ * writes: stages that keep the kind of image alternate between two buffers of
+ * that kind, and the last mask stage writes the clean mask for blob analysis.
+ * Running the chain only looks up views of those buffers, so it never
+ * allocates. A chain belongs to one detector and runs on one thread at a time.
+ *
+ * <p>
+ * Config structure: { blob_analysis: [ stage, ... ], contours: [ stage, ... ]
+ * }, where each stage is { stage: name, enabled: true, param: value, ... }.
+ * Stages: blur {kernel_size, sigma}, threshold, color_mask, dilate/erode
+ * {kernel_size, iterations}, fused_morphology {dilate_before, erode,
+ * dilate_after}, canny {low_threshold, high_threshold, aperture_size}.
+ */
+public class PreprocessChain {
+
+    // filepath to the preprocessing chains
+    public static final String CONFIG_FILE_PATH = "src/main/java/frc/robot/commands/vision/vision_pipeline.json";
+
+    /**
+     * Thresholds a BGR image for the detector's HSV range.
+     */
+    public interface Thresholder {
+        /**
+         * @param bgr  the color image
+         * @param hsv  scratch space for the HSV conversion, same size as bgr
+         * @param mask single-channel output mask, same size as bgr
+         */
+        void threshold(Mat bgr, Mat hsv, Mat mask);
+    }
+
+    /**
+     * What a stage can see of the frame besides its own input and output.
+     */
+    public static class Context {
+        private Thresholder thresholder;
+        private Mat hsv;
+        private Mat colorSource;
+
+        /**
+         * Thresholds the color image for the HSV range.
+         *
+         * @param bgr  the color image
+         * @param mask the output mask
+         */
+        public void threshold(Mat bgr, Mat mask) {
+            thresholder.threshold(bgr, hsv, mask);
+        }
+
+        /**
+         * Returns the color image that was thresholded.
+         *
+         * @return a view of the threshold stage's input
+         */
+        public Mat getColorSource() {
+            return colorSource;
+        }
+    }
+
+    // the enabled stages, in order
+    private final PreprocessStage[] stages;
+    // whether the chain ends with a mask for blob analysis, or edges
+    private final boolean blobAnalysis;
+    // the image the threshold stage reads
+    private final PreprocessStage.Buffer colorSource;
+    // the buffer the chain's result is in
+    private final PreprocessStage.Buffer result;
+
+    // the published timing keys, built once
+    private final String[] keys;
+
+    // views of each buffer for the region being processed
+    private final Mat[] views = new Mat[PreprocessStage.Buffer.values().length];
+    private final Context context = new Context();
+
+    /**
+     * Builds a chain and assigns each stage its buffers.
+     *
+     * @param stages       the stages, in order
+     * @param blobAnalysis whether the chain feeds blob analysis (and must end
+     *                     with a mask) rather than the contour search (and must
+     *                     end with canny)
+     * @throws IllegalArgumentException if the stages don't make a valid chain
+     */
+    public PreprocessChain(List<PreprocessStage> stages, boolean blobAnalysis) {
+        this.stages = stages.toArray(new PreprocessStage[0]);
+        this.blobAnalysis = blobAnalysis;
+
+        // find the last stage that writes the mask, and check every stage gets a
+        // kind of image it can take
+        PreprocessStage.Kind kind = PreprocessStage.Kind.COLOR;
+        int thresholds = 0;
+        int lastMaskStage = -1;
+        for (int i = 0; i < this.stages.length; i++) {
+            PreprocessStage stage = this.stages[i];
+            kind = stage.getOutputKind(kind);
+            if (stage instanceof PreprocessStages.Threshold) {
+                thresholds++;
+            }
+            if (kind == PreprocessStage.Kind.MASK) {
+                lastMaskStage = i;
+            }
+        }
+        if (thresholds != 1) {
+            throw new IllegalArgumentException("The chain needs exactly one threshold stage, found " + thresholds);
+        }
+        if (blobAnalysis && kind != PreprocessStage.Kind.MASK) {
+            throw new IllegalArgumentException("The blob analysis chain must end with the mask, not " + kind);
+        }
+        if (!blobAnalysis && kind != PreprocessStage.Kind.EDGES) {
+            throw new IllegalArgumentException("The contour chain must end with canny");
+        }
+
+        // assign the buffers, alternating within each kind
+        PreprocessStage.Buffer current = PreprocessStage.Buffer.IMAGE;
+        PreprocessStage.Buffer thresholdInput = null;
+        kind = PreprocessStage.Kind.COLOR;
+        for (int i = 0; i < this.stages.length; i++) {
+            PreprocessStage stage = this.stages[i];
+            kind = stage.getOutputKind(kind);
+            stage.input = current;
+            if (blobAnalysis && i == lastMaskStage) {
+                stage.output = PreprocessStage.Buffer.CLEAN_MASK;
+            } else {
+                stage.output = nextBuffer(kind, current);
+            }
+            if (stage instanceof PreprocessStages.Threshold) {
+                thresholdInput = current;
+            }
+            current = stage.output;
+        }
+        colorSource = thresholdInput;
+        result = current;
+
+        keys = new String[this.stages.length];
+        for (int i = 0; i < this.stages.length; i++) {
+            keys[i] = "Vision/Stage " + (i + 1) + " " + this.stages[i].getName() + " ms";
+        }
+    }
+
+    /**
+     * Picks the buffer a stage writes: the first buffer of the output's kind
+     * that the stage isn't reading.
+     */
+    private static PreprocessStage.Buffer nextBuffer(PreprocessStage.Kind kind, PreprocessStage.Buffer input) {
+        PreprocessStage.Buffer first;
+        PreprocessStage.Buffer second;
+        switch (kind) {
+        case COLOR:
+            first = PreprocessStage.Buffer.BLUR;
+            second = PreprocessStage.Buffer.TEMP;
+            break;
+        case MASK:
+            first = PreprocessStage.Buffer.THRESHOLD;
+            second = PreprocessStage.Buffer.MASK_TEMP;
+            break;
+        case MASKED_COLOR:
+            first = PreprocessStage.Buffer.COLOR_MASKED;
+            second = PreprocessStage.Buffer.TEMP;
+            break;
+        default:
+            return PreprocessStage.Buffer.CANNY;
+        }
+        return input != first ? first : second;
+    }
+
+    /**
+     * Returns the chain the detector always used: a 3x3 blur, the threshold,
+     * then a dilate, a six-pass erode and a dilate to remove specks (on the mask
+     * for blob analysis, or on the masked color image followed by 200/300 Canny
+     * for the contour search).
+     *
+     * @param blobAnalysis whether the chain feeds blob analysis
+     * @return the chain
+     */
+    public static PreprocessChain createDefault(boolean blobAnalysis) {
+        List<PreprocessStage> stages = new ArrayList<PreprocessStage>();
+        stages.add(new PreprocessStages.Blur(3, 0));
+        stages.add(new PreprocessStages.Threshold());
+        if (!blobAnalysis) {
+            stages.add(new PreprocessStages.ColorMask());
+        }
+        stages.add(new PreprocessStages.Dilate(3, 1));
+        stages.add(new PreprocessStages.Erode(3, 6));
+        stages.add(new PreprocessStages.Dilate(3, 1));
+        if (!blobAnalysis) {
+            stages.add(new PreprocessStages.Canny(200, 300, 3));
+        }
+        return new PreprocessChain(stages, blobAnalysis);
+    }
+
+    /**
+     * Reads the chain for one search mode from a config file, or returns the
+     * default chain if the file is missing or the chain is invalid.
+     *
+     * @param filepath     path to the json config file
+     * @param blobAnalysis whether to read the blob analysis chain or the
+     *                     contour chain
+     * @return the chain
+     */
+    public static PreprocessChain load(String filepath, boolean blobAnalysis) {
+        String section = blobAnalysis ? "blob_analysis" : "contours";
+        JSONParser parser = new JSONParser();
+
+        try (FileReader reader = new FileReader(new File(filepath))) {
+            JSONObject jsonObj = (JSONObject) parser.parse(reader);
+            JSONArray stageList = (JSONArray) jsonObj.get(section);
+            if (stageList == null) {
+                System.out.println("No " + section + " chain in the pipeline config, using the default.");
+                return createDefault(blobAnalysis);
+            }
+
+            List<PreprocessStage> stages = new ArrayList<PreprocessStage>();
+            for (Object entry : stageList) {
+                JSONObject stageObj = (JSONObject) entry;
+                if (!Boolean.FALSE.equals(stageObj.get("enabled"))) {
+                    stages.add(createStage(stageObj));
+                }
+            }
+            return new PreprocessChain(stages, blobAnalysis);
+        } catch (IOException e) {
+            System.out.println("IO error while reading pipeline config file, using the default chain.");
+            e.printStackTrace();
+        } catch (ParseException e) {
+            System.out.println("Could not parse pipeline config file, using the default chain.");
+            e.printStackTrace();
+        } catch (IllegalArgumentException | ClassCastException e) {
+            System.out.println("Invalid " + section + " chain in the pipeline config, using the default: "
+                    + e.getMessage());
+        }
+        return createDefault(blobAnalysis);
+    }
+
+    /**
+     * Creates one stage from its config.
+     */
+    private static PreprocessStage createStage(JSONObject stageObj) {
+        String name = String.valueOf(stageObj.get("stage"));
+        switch (name) {
+        case "blur":
+            return new PreprocessStages.Blur(getInt(stageObj, "kernel_size", 3), getDouble(stageObj, "sigma", 0));
+        case "threshold":
+            return new PreprocessStages.Threshold();
+        case "color_mask":
+            return new PreprocessStages.ColorMask();
+        case "dilate":
+            return new PreprocessStages.Dilate(getInt(stageObj, "kernel_size", 3), getInt(stageObj, "iterations", 1));
+        case "erode":
+            return new PreprocessStages.Erode(getInt(stageObj, "kernel_size", 3), getInt(stageObj, "iterations", 1));
+        case "fused_morphology":
+            return new PreprocessStages.FusedMorphology(getInt(stageObj, "dilate_before", 1),
+                    getInt(stageObj, "erode", 6), getInt(stageObj, "dilate_after", 1));
+        case "canny":
+            return new PreprocessStages.Canny(getDouble(stageObj, "low_threshold", 200),
+                    getDouble(stageObj, "high_threshold", 300), getInt(stageObj, "aperture_size", 3));
+        default:
+            throw new IllegalArgumentException("Unknown stage: " + name);
+        }
+    }
+
+    private static double getDouble(JSONObject stageObj, String key, double defaultValue) {
+        Object value = stageObj.get(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    private static int getInt(JSONObject stageObj, String key, int defaultValue) {
+        Object value = stageObj.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    /**
+     * Returns whether the chain feeds blob analysis.
+     *
+     * @return true if the chain ends with the clean mask, false if with edges
+     */
+    public boolean isBlobAnalysis() {
+        return blobAnalysis;
+    }
+
+    /**
+     * Returns the buffer holding the color image that was thresholded.
+     *
+     * @return the threshold stage's input
+     */
+    public PreprocessStage.Buffer getColorSource() {
+        return colorSource;
+    }
+
+    /**
+     * Returns the buffer the chain's result is written to: the clean mask for
+     * blob analysis, otherwise the edge image.
+     *
+     * @return the last stage's output
+     */
+    public PreprocessStage.Buffer getResult() {
+        return result;
+    }
+
+    public int getStageCount() {
+        return stages.length;
+    }
+
+    public PreprocessStage getStage(int i) {
+        return stages[i];
+    }
+
+    /**
+     * Halves the iterations of every morphology stage (at least one pass each),
+     * or restores them. Takes effect from the next region processed.
+     *
+     * @param reduced whether to run fewer morphology passes
+     */
+    public void setReducedMorphology(boolean reduced) {
+        for (PreprocessStage stage : stages) {
+            stage.setReduced(reduced);
+        }
+    }
+
+    /**
+     * Runs every stage on one region of the frame.
+     *
+     * @param buffers     the frame's buffers
+     * @param region      the region to process
+     * @param thresholder thresholds for the detector's HSV range
+     */
+    public void run(VisionBuffers buffers, Rect region, Thresholder thresholder) {
+        for (int i = 0; i < views.length; i++) {
+            views[i] = null;
+        }
+        context.thresholder = thresholder;
+        context.hsv = view(buffers, PreprocessStage.Buffer.HSV, region);
+        context.colorSource = view(buffers, colorSource, region);
+
+        for (PreprocessStage stage : stages) {
+            stage.run(view(buffers, stage.input, region), view(buffers, stage.output, region), context);
+        }
+    }
+
+    /**
+     * Returns the view of a buffer for the region, creating it the first time
+     * it's needed.
+     */
+    private Mat view(VisionBuffers buffers, PreprocessStage.Buffer buffer, Rect region) {
+        int index = buffer.ordinal();
+        if (views[index] == null) {
+            views[index] = buffers.view(buffer.get(buffers), region);
+        }
+        return views[index];
+    }
+
+    /**
+     * Publishes each stage's average time per run since the last call to
+     * SmartDashboard. Call from one thread.
+     */
+    public void publishStats() {
+        for (int i = 0; i < stages.length; i++) {
+            SmartDashboard.putNumber(keys[i], stages[i].takeAverageMillis());
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (PreprocessStage stage : stages) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(stage);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package frc.robot.commands.vision;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+
+/**
+ * One step of the {@link PreprocessChain}: a blur, threshold, morphology pass
+ * or edge detection. A stage reads one of the frame's buffers and writes
+ * another; the chain picks both when it is built, so stages never allocate or
+ * work in place. Every stage times itself.
+ */
+public abstract class PreprocessStage {
+
+    /**
+     * What kind of image a stage reads or writes.
+     */
+    public enum Kind {
+        // the BGR frame (blurred or not)
+        COLOR,
+        // the single-channel threshold mask
+        MASK,
+        // the BGR frame with everything outside the mask blacked out
+        MASKED_COLOR,
+        // the single-channel edge image
+        EDGES
+    }
+
+    /**
+     * The frame buffers a stage can read or write.
+     */
+    public enum Buffer {
+        IMAGE, BLUR, HSV, THRESHOLD, MASK_TEMP, CLEAN_MASK, COLOR_MASKED, TEMP, CANNY;
+
+        /**
+         * Returns this buffer's full-frame mat.
+         *
+         * @param buffers the frame's buffers
+         * @return the mat
+         */
+        public Mat get(VisionBuffers buffers) {
+            switch (this) {
+            case IMAGE:
+                return buffers.image;
+            case BLUR:
+                return buffers.blurImg;
+            case HSV:
+                return buffers.hsvImg;
+            case THRESHOLD:
+                return buffers.colorThreshImg;
+            case MASK_TEMP:
+                return buffers.maskTemp;
+            case CLEAN_MASK:
+                return buffers.cleanMask;
+            case COLOR_MASKED:
+                return buffers.colorMaskedImg;
+            case TEMP:
+                return buffers.temp;
+            default:
+                return buffers.cannyEdgeImg;
+            }
+        }
+    }
+
+    private final String name;
+
+    // the buffers read and written, picked by the chain
+    Buffer input;
+    Buffer output;
+
+    // total time spent in the stage and number of runs, and their values at the
+    // last publish
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLong runs = new AtomicLong();
+    private long publishedNanos = 0;
+    private long publishedRuns = 0;
+
+    /**
+     * @param name name of the stage in the config and on the dashboard
+     */
+    protected PreprocessStage(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the kind of image the stage writes.
+     *
+     * @param input the kind of image the stage is given
+     * @return the kind of its output
+     * @throws IllegalArgumentException if the stage can't take that kind of
+     *                                  image
+     */
+    public abstract Kind getOutputKind(Kind input);
+
+    /**
+     * Switches the stage to a cheaper version of itself, or back. Only stages
+     * with a cheaper version do anything.
+     *
+     * @param reduced whether to run the cheaper version
+     */
+    public void setReduced(boolean reduced) {
+    }
+
+    /**
+     * Runs the stage on one region of the frame.
+     *
+     * @param src     view of the input buffer
+     * @param dst     view of the output buffer
+     * @param context views of the other buffers the stage may need
+     */
+    protected abstract void apply(Mat src, Mat dst, PreprocessChain.Context context);
+
+    /**
+     * Runs and times the stage.
+     */
+    void run(Mat src, Mat dst, PreprocessChain.Context context) {
+        long start = System.nanoTime();
+        apply(src, dst, context);
+        nanos.addAndGet(System.nanoTime() - start);
+        runs.incrementAndGet();
+    }
+
+    /**
+     * Returns the total time spent in the stage.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return nanos.get();
+    }
+
+    /**
+     * Returns how many times the stage has run (once per search window).
+     *
+     * @return the run count
+     */
+    public long getRunCount() {
+        return runs.get();
+    }
+
+    /**
+     * Returns the average time per run since the last call, and starts a new
+     * interval. Only call from one thread.
+     *
+     * @return the average time in milliseconds, or 0 if the stage hasn't run
+     */
+    double takeAverageMillis() {
+        long totalNanos = nanos.get();
+        long totalRuns = runs.get();
+        long intervalRuns = totalRuns - publishedRuns;
+        double average = intervalRuns > 0 ? (totalNanos - publishedNanos) / 1e6 / intervalRuns : 0;
+        publishedNanos = totalNanos;
+        publishedRuns = totalRuns;
+        return average;
+    }
+
+    /**
+     * Returns a description of the stage's settings and buffers.
+     */
+    @Override
+    public String toString() {
+        return name + " (" + input + " -> " + output + ")";
+    }
+}
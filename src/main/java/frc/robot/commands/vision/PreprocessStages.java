@@ -0,0 +1,302 @@
+package frc.robot.commands.vision;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * The standard {@link PreprocessStage}s.
+ */
+public final class PreprocessStages {
+
+    // 3x3 kernel used when reducing image noise (shared by every stage and the
+    // coarse search, to save memory); every element is set, so OpenCV runs
+    // iterations of it as one pass with a bigger square
+    static final Mat DEFAULT_KERNEL = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(3, 3));
+
+    private static final Point DEFAULT_ANCHOR = new Point(-1, -1);
+
+    private PreprocessStages() {
+    }
+
+    /**
+     * Returns the square kernel for a morphology stage, allocated once when the
+     * stage is built.
+     */
+    private static Mat kernel(int size) {
+        if (size == 3) {
+            return DEFAULT_KERNEL;
+        }
+        return Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(size, size));
+    }
+
+    /**
+     * Gaussian blur. Keeps the kind of image it is given.
+     */
+    public static class Blur extends PreprocessStage {
+        private final Size size;
+        private final double sigma;
+
+        /**
+         * @param kernelSize width and height of the kernel (odd)
+         * @param sigma      standard deviation (0 to derive it from the size)
+         */
+        public Blur(int kernelSize, double sigma) {
+            super("blur");
+            this.size = new Size(kernelSize, kernelSize);
+            this.sigma = sigma;
+        }
+
+        @Override
+        public Kind getOutputKind(Kind input) {
+            if (input == Kind.EDGES) {
+                throw new IllegalArgumentException("blur can't follow canny");
+            }
+            return input;
+        }
+
+        @Override
+        protected void apply(Mat src, Mat dst, PreprocessChain.Context context) {
+            Imgproc.GaussianBlur(src, dst, size, sigma);
+        }
+    }
+
+    /**
+     * Filters the color image for the HSV range (through the lookup table when
+     * the detector has one). Every chain has exactly one.
+     */
+    public static class Threshold extends PreprocessStage {
+
+        public Threshold() {
+            super("threshold");
+        }
+
+        @Override
+        public Kind getOutputKind(Kind input) {
+            if (input != Kind.COLOR) {
+                throw new IllegalArgumentException("threshold needs the color image");
+            }
+            return Kind.MASK;
+        }
+
+        @Override
+        protected void apply(Mat src, Mat dst, PreprocessChain.Context context) {
+            context.threshold(src, dst);
+        }
+    }
+
+    /**
+     * Blacks out everything outside the mask in the color image the mask was
+     * thresholded from.
+     */
+    public static class ColorMask extends PreprocessStage {
+
+        public ColorMask() {
+            super("color_mask");
+        }
+
+        @Override
+        public Kind getOutputKind(Kind input) {
+            if (input != Kind.MASK) {
+                throw new IllegalArgumentException("color_mask needs the threshold mask");
+            }
+            return Kind.MASKED_COLOR;
+        }
+
+        @Override
+        protected void apply(Mat src, Mat dst, PreprocessChain.Context context) {
+            Mat color = context.getColorSource();
+            Core.bitwise_and(color, color, dst, src);
+        }
+    }
+
+    /**
+     * Grows the bright parts of the image. Keeps the kind of image it is given.
+     */
+    public static class Dilate extends PreprocessStage {
+        private final Mat kernel;
+        private final int iterations;
+        // iterations actually run (fewer when reduced)
+        private volatile int activeIterations;
+
+        /**
+         * @param kernelSize width and height of the square kernel
+         * @param iterations number of times to dilate
+         */
+        public Dilate(int kernelSize, int iterations) {
+            super("dilate");
+            this.kernel = kernel(kernelSize);
+            this.iterations = iterations;
+            this.activeIterations = iterations;
+        }
+
+        @Override
+        public void setReduced(boolean reduced) {
+            activeIterations = reduced ? Math.max(1, iterations / 2) : iterations;
+        }
+
+        @Override
+        public Kind getOutputKind(Kind input) {
+            if (input == Kind.EDGES) {
+                throw new IllegalArgumentException("dilate can't follow canny");
+            }
+            return input;
+        }
+
+        @Override
+        protected void apply(Mat src, Mat dst, PreprocessChain.Context context) {
+            Imgproc.dilate(src, dst, kernel, DEFAULT_ANCHOR, activeIterations, Core.BORDER_DEFAULT);
+        }
+    }
+
+    /**
+     * Shrinks the bright parts of the image, removing specks smaller than the
+     * kernel. Keeps the kind of image it is given.
+     */
+    public static class Erode extends PreprocessStage {
+        private final Mat kernel;
+        private final int iterations;
+        // iterations actually run (fewer when reduced)
+        private volatile int activeIterations;
+
+        /**
+         * @param kernelSize width and height of the square kernel
+         * @param iterations number of times to erode
+         */
+        public Erode(int kernelSize, int iterations) {
+            super("erode");
+            this.kernel = kernel(kernelSize);
+            this.iterations = iterations;
+            this.activeIterations = iterations;
+        }
+
+        @Override
+        public void setReduced(boolean reduced) {
+            activeIterations = reduced ? Math.max(1, iterations / 2) : iterations;
+        }
+
+        @Override
+        public Kind getOutputKind(Kind input) {
+            if (input == Kind.EDGES) {
+                throw new IllegalArgumentException("erode can't follow canny");
+            }
+            return input;
+        }
+
+        @Override
+        protected void apply(Mat src, Mat dst, PreprocessChain.Context context) {
+            Imgproc.erode(src, dst, kernel, DEFAULT_ANCHOR, activeIterations);
+        }
+    }
+
+    /**
+     * A dilate, an erode and another dilate with 3x3 squares, fused into one
+     * stage: n passes of a 3x3 square are the same as one pass of a (2n + 1)
+     * square, so each step is a single pass with a kernel built once, and the
+     * erode and second dilate run in place in the output. This removes specks
+     * exactly like the separate dilate, erode and dilate stages with the same
+     * iteration counts, without the intermediate buffers. Keeps the kind of
+     * image it is given.
+     */
+    public static class FusedMorphology extends PreprocessStage {
+        // kernels for each step at full and reduced quality (null to skip a step)
+        private final Mat[] fullKernels;
+        private final Mat[] reducedKernels;
+        private volatile Mat[] activeKernels;
+
+        /**
+         * @param dilateBefore 3x3 dilate passes before the erode
+         * @param erode        3x3 erode passes
+         * @param dilateAfter  3x3 dilate passes after the erode
+         */
+        public FusedMorphology(int dilateBefore, int erode, int dilateAfter) {
+            super("fused_morphology");
+            fullKernels = new Mat[] { square(dilateBefore), square(erode), square(dilateAfter) };
+            // halved like the separate stages (at least one pass each)
+            reducedKernels = new Mat[] { square(reduce(dilateBefore)), square(reduce(erode)),
+                    square(reduce(dilateAfter)) };
+            activeKernels = fullKernels;
+        }
+
+        private static int reduce(int passes) {
+            return passes > 0 ? Math.max(1, passes / 2) : 0;
+        }
+
+        /**
+         * Returns the square equivalent to a number of 3x3 passes.
+         */
+        private static Mat square(int passes) {
+            return passes > 0 ? kernel(2 * passes + 1) : null;
+        }
+
+        @Override
+        public void setReduced(boolean reduced) {
+            activeKernels = reduced ? reducedKernels : fullKernels;
+        }
+
+        @Override
+        public Kind getOutputKind(Kind input) {
+            if (input == Kind.EDGES) {
+                throw new IllegalArgumentException("fused_morphology can't follow canny");
+            }
+            return input;
+        }
+
+        @Override
+        protected void apply(Mat src, Mat dst, PreprocessChain.Context context) {
+            Mat[] kernels = activeKernels;
+            Mat current = src;
+            if (kernels[0] != null) {
+                Imgproc.dilate(current, dst, kernels[0], DEFAULT_ANCHOR, 1, Core.BORDER_DEFAULT);
+                current = dst;
+            }
+            if (kernels[1] != null) {
+                Imgproc.erode(current, dst, kernels[1], DEFAULT_ANCHOR, 1);
+                current = dst;
+            }
+            if (kernels[2] != null) {
+                Imgproc.dilate(current, dst, kernels[2], DEFAULT_ANCHOR, 1, Core.BORDER_DEFAULT);
+                current = dst;
+            }
+            if (current != dst) {
+                src.copyTo(dst);
+            }
+        }
+    }
+
+    /**
+     * Canny edge detection, for the contour search.
+     */
+    public static class Canny extends PreprocessStage {
+        private final double lowThreshold;
+        private final double highThreshold;
+        private final int apertureSize;
+
+        /**
+         * @param lowThreshold  gradient below which a pixel is never an edge
+         * @param highThreshold gradient above which a pixel is always an edge
+         * @param apertureSize  size of the Sobel kernel (3, 5 or 7)
+         */
+        public Canny(double lowThreshold, double highThreshold, int apertureSize) {
+            super("canny");
+            this.lowThreshold = lowThreshold;
+            this.highThreshold = highThreshold;
+            this.apertureSize = apertureSize;
+        }
+
+        @Override
+        public Kind getOutputKind(Kind input) {
+            if (input == Kind.EDGES) {
+                throw new IllegalArgumentException("canny can't follow canny");
+            }
+            return Kind.EDGES;
+        }
+
+        @Override
+        protected void apply(Mat src, Mat dst, PreprocessChain.Context context) {
+            Imgproc.Canny(src, dst, lowThreshold, highThreshold, apertureSize);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package frc.robot.commands.vision;
+
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+
+/**
+ * Holds one camera's frame time under a budget by trading detection quality
+ * for speed. When frames run over the budget for a few frames in a row, the
+ * controller steps down one {@link Level}; when they run well under it for
+ * many frames in a row, it steps back up. Stepping down is quick and stepping
+ * up is slow, and a step up that overruns again right away doubles the wait
+ * before the next one, so the level doesn't oscillate around the budget.
+ *
+ * <p>
+ * Each level keeps the degradations of the levels above it. The frame times
+ * are reported by the thread processing the frames, and the stats are
+ * published from the scheduler thread.
+ */
+public class QualityController {
+
+    /**
+     * Quality levels, from full quality to the cheapest.
+     */
+    public enum Level {
+        // everything on
+        FULL,
+        // no frames are put on the debug streams (and none are annotated)
+        NO_DEBUG_STREAMS,
+        // fewer erode/dilate passes in the preprocessing chain
+        REDUCED_MORPHOLOGY,
+        // full frames are searched at low resolution first (the pyramid search)
+        LOW_RESOLUTION,
+        // only the tracked windows are searched, with a full-frame search only
+        // every few frames (only used if the detector has a tracker)
+        ROI_ONLY
+    }
+
+    private static final Level[] LEVELS = Level.values();
+
+    // the most frames to wait before stepping up after repeated failed steps up
+    private static final int MAX_STEP_UP_FRAMES = 1000;
+
+    private final LemonDetector detector;
+
+    // the frame time to stay under, in nanoseconds
+    private final long budgetNanos;
+    // frame time below which there is room to step up, in nanoseconds
+    private final long headroomNanos;
+    // frames in a row over the budget before stepping down
+    private final int stepDownFrames;
+    // frames in a row with headroom before stepping up (doubles after a failed
+    // step up)
+    private final int baseStepUpFrames;
+    private int stepUpFrames;
+
+    // whether the detector searches at low resolution even at full quality
+    private final boolean coarseSearchByDefault;
+
+    // the cheapest level to step down to (ROI_ONLY needs the detector's tracker)
+    private final Level lowestLevel;
+
+    private volatile Level level = Level.FULL;
+    // frames in a row over budget, and with headroom
+    private int overBudgetRun = 0;
+    private int headroomRun = 0;
+    // frames since the level last changed, and whether that was a step up
+    private int framesAtLevel = 0;
+    private boolean steppedUp = false;
+
+    // stats, written by the processing thread and read by publishStats()
+    private volatile long frames = 0;
+    private volatile long overruns = 0;
+    private long lastFrames = 0;
+    private long lastOverruns = 0;
+
+    /**
+     * Creates a controller for a detector and sets the detector to full quality.
+     * Set up the detector's pyramid and tracker first, since the low-resolution
+     * level uses the pyramid and the ROI-only level is left out without a
+     * tracker.
+     *
+     * @param detector       the detector whose quality is adjusted
+     * @param budgetMillis   the frame time to stay under, in milliseconds
+     * @param headroom       fraction of the budget a frame must stay under to
+     *                       count towards stepping up (e.g. 0.7)
+     * @param stepDownFrames frames in a row over budget before stepping down
+     * @param stepUpFrames   frames in a row with headroom before stepping up
+     */
+    public QualityController(LemonDetector detector, double budgetMillis, double headroom, int stepDownFrames,
+            int stepUpFrames) {
+        this.detector = detector;
+        this.budgetNanos = (long) (budgetMillis * 1e6);
+        this.headroomNanos = (long) (budgetMillis * headroom * 1e6);
+        this.stepDownFrames = Math.max(1, stepDownFrames);
+        this.baseStepUpFrames = Math.max(1, stepUpFrames);
+        this.stepUpFrames = this.baseStepUpFrames;
+        this.coarseSearchByDefault = detector.isCoarseSearch();
+        this.lowestLevel = detector.hasRoiTracker() ? Level.ROI_ONLY : Level.LOW_RESOLUTION;
+        apply(Level.FULL);
+    }
+
+    /**
+     * Records how long a frame took and changes the level if needed. Only call
+     * from one thread.
+     *
+     * @param frameNanos time to process the frame (and put it on the debug
+     *                   streams), in nanoseconds
+     */
+    public void update(long frameNanos) {
+        frames++;
+        framesAtLevel++;
+        if (frameNanos > budgetNanos) {
+            overruns++;
+            overBudgetRun++;
+            headroomRun = 0;
+        } else if (frameNanos < headroomNanos) {
+            headroomRun++;
+            overBudgetRun = 0;
+        } else {
+            overBudgetRun = 0;
+            headroomRun = 0;
+        }
+
+        // a level that has held for a long time has earned quick steps up again
+        if (framesAtLevel > 10 * baseStepUpFrames) {
+            stepUpFrames = baseStepUpFrames;
+        }
+
+        Level current = level;
+        if (overBudgetRun >= stepDownFrames && current.compareTo(lowestLevel) < 0) {
+            // stepping straight back down after a step up: wait longer next time
+            if (steppedUp && framesAtLevel <= stepUpFrames) {
+                stepUpFrames = Math.min(stepUpFrames * 2, MAX_STEP_UP_FRAMES);
+            }
+            changeLevel(LEVELS[current.ordinal() + 1], false);
+        } else if (headroomRun >= stepUpFrames && current.ordinal() > 0) {
+            changeLevel(LEVELS[current.ordinal() - 1], true);
+        }
+    }
+
+    /**
+     * Moves to a new level and applies it to the detector.
+     */
+    private void changeLevel(Level newLevel, boolean up) {
+        apply(newLevel);
+        level = newLevel;
+        steppedUp = up;
+        framesAtLevel = 0;
+        overBudgetRun = 0;
+        headroomRun = 0;
+    }
+
+    /**
+     * Sets the detector's options for a level.
+     */
+    private void apply(Level newLevel) {
+        detector.setReducedMorphology(newLevel.compareTo(Level.REDUCED_MORPHOLOGY) >= 0);
+        detector.setCoarseSearch(coarseSearchByDefault || newLevel.compareTo(Level.LOW_RESOLUTION) >= 0);
+        detector.setRoiOnly(newLevel.compareTo(Level.ROI_ONLY) >= 0);
+    }
+
+    /**
+     * Returns the current quality level.
+     *
+     * @return the level
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns whether frames may be annotated and put on the debug streams at
+     * the current level.
+     *
+     * @return false once the debug streams have been given up
+     */
+    public boolean allowsDebugStreams() {
+        return level == Level.FULL;
+    }
+
+    /**
+     * Publishes the quality level, the total number of frames over budget, and
+     * the share of frames over budget since the last call to SmartDashboard.
+     * Call from one thread.
+     */
+    public void publishStats() {
+        long totalFrames = frames;
+        long totalOverruns = overruns;
+        long intervalFrames = totalFrames - lastFrames;
+        double overrunPercent = intervalFrames > 0 ? 100.0 * (totalOverruns - lastOverruns) / intervalFrames : 0;
+        lastFrames = totalFrames;
+        lastOverruns = totalOverruns;
+
+        Level current = level;
+        SmartDashboard.putNumber("Vision/Quality Level", current.ordinal());
+        SmartDashboard.putString("Vision/Quality", current.name());
+        SmartDashboard.putNumber("Vision/Budget Overruns", totalOverruns);
+        SmartDashboard.putNumber("Vision/Budget Overrun %", overrunPercent);
+    }
+}
@@ -0,0 +1,176 @@
+package frc.robot.commands.vision;
+
+import java.util.List;
+
+import org.opencv.core.Rect;
+
+/**
+ * Follows a single lemon from frame to frame so that only a small search
+ * window around its predicted position has to be processed. The position and
+ * velocity of the last target are filtered with a
+ * {@link ConstantVelocityFilter}; the search window is centered on the
+ * predicted position and padded by the target's size and the filter's
+ * uncertainty. After too many frames without a target in the window, the
+ * tracker gives up and the next frame is searched in full.
+ *
+ * <p>
+ * The pipelined executor selects regions and updates the tracker from
+ * different threads, so every public method is synchronized.
+ */
+public class RoiTracker {
+
+    // filter tuning: acceleration variance (pixels^2 / s^4) and measurement noise
+    // (pixels^2)
+    private static final double PROCESS_NOISE = 5e5;
+    private static final double MEASUREMENT_NOISE = 4;
+
+    // smallest half-width of the search window, in pixels
+    private static final int MIN_HALF_SIZE = 24;
+
+    private final int frameWidth;
+    private final int frameHeight;
+
+    // frames in a row without a target before falling back to a full search
+    private final int maxMisses;
+    // half-width of the search window, in multiples of the target radius
+    private final double padding;
+
+    private final ConstantVelocityFilter filter = new ConstantVelocityFilter(PROCESS_NOISE, MEASUREMENT_NOISE);
+
+    private boolean tracking = false;
+    private int misses = 0;
+    // radius of the tracked target, in pixels
+    private double radius = 0;
+    // capture time of the last frame the tracker was updated with
+    private long lastTimeMicros = 0;
+
+    /**
+     * Creates a tracker.
+     *
+     * @param frameWidth  width of the full frame, in pixels
+     * @param frameHeight height of the full frame, in pixels
+     * @param maxMisses   frames in a row without a target before falling back to a
+     *                    full-frame search
+     * @param padding     half-width of the search window, in multiples of the
+     *                    target radius
+     */
+    public RoiTracker(int frameWidth, int frameHeight, int maxMisses, double padding) {
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.maxMisses = maxMisses;
+        this.padding = padding;
+    }
+
+    /**
+     * Sets the region of the frame captured at the given time that should be
+     * searched: a window around the predicted target position while tracking,
+     * otherwise the full frame.
+     *
+     * @param timeMicros capture time of the frame, in microseconds
+     * @param region     rect that is filled with the region to search
+     */
+    public synchronized void selectRegion(long timeMicros, Rect region) {
+        if (!tracking) {
+            setFullFrame(region);
+            return;
+        }
+
+        // predict where the target is now, without committing the prediction
+        double dt = Math.max(0, (timeMicros - lastTimeMicros) / 1e6);
+        double x = filter.getX() + filter.getVelocityX() * dt;
+        double y = filter.getY() + filter.getVelocityY() * dt;
+
+        // pad by the target size and the filter's uncertainty, and widen the
+        // window for every frame the target has been missing
+        double sigma = Math.max(filter.getSigmaX(), filter.getSigmaY());
+        double halfSize = Math.max(MIN_HALF_SIZE, radius * padding + 3 * sigma) * (1 + misses);
+
+        int left = clamp((int) Math.floor(x - halfSize), 0, frameWidth);
+        int top = clamp((int) Math.floor(y - halfSize), 0, frameHeight);
+        int right = clamp((int) Math.ceil(x + halfSize), 0, frameWidth);
+        int bottom = clamp((int) Math.ceil(y + halfSize), 0, frameHeight);
+
+        // the prediction left the frame; search everything
+        if (right - left < 2 || bottom - top < 2) {
+            setFullFrame(region);
+            return;
+        }
+
+        region.x = left;
+        region.y = top;
+        region.width = right - left;
+        region.height = bottom - top;
+    }
+
+    /**
+     * Updates the tracker with the targets found in a frame.
+     *
+     * @param timeMicros capture time of the frame, in microseconds
+     * @param targets    the targets found in the frame, in full-frame coordinates
+     */
+    public synchronized void update(long timeMicros, List<Target> targets) {
+        if (!tracking) {
+            // lock on to the biggest target
+            Target biggest = null;
+            for (Target target : targets) {
+                if (biggest == null || target.getArea() > biggest.getArea()) {
+                    biggest = target;
+                }
+            }
+
+            if (biggest != null) {
+                filter.reset(biggest.getX(), biggest.getY());
+                radius = Math.sqrt(biggest.getArea() / Math.PI);
+                tracking = true;
+                misses = 0;
+            }
+            lastTimeMicros = timeMicros;
+            return;
+        }
+
+        double dt = Math.max(0, (timeMicros - lastTimeMicros) / 1e6);
+        lastTimeMicros = timeMicros;
+        filter.predict(dt);
+
+        // follow the target closest to the prediction
+        Target closest = null;
+        double closestDistance = Double.MAX_VALUE;
+        for (Target target : targets) {
+            double dx = target.getX() - filter.getX();
+            double dy = target.getY() - filter.getY();
+            double distance = dx * dx + dy * dy;
+            if (distance < closestDistance) {
+                closest = target;
+                closestDistance = distance;
+            }
+        }
+
+        if (closest != null) {
+            filter.correct(closest.getX(), closest.getY());
+            radius = Math.sqrt(closest.getArea() / Math.PI);
+            misses = 0;
+        } else if (++misses > maxMisses) {
+            tracking = false;
+        }
+    }
+
+    /**
+     * Returns whether the tracker is locked on to a target.
+     *
+     * @return true if the next frame will only be searched in a window
+     */
+    public synchronized boolean isTracking() {
+        return tracking;
+    }
+
+    private void setFullFrame(Rect region) {
+        region.x = 0;
+        region.y = 0;
+        region.width = frameWidth;
+        region.height = frameHeight;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
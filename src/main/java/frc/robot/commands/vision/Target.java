@@ -0,0 +1,199 @@
+package frc.robot.commands.vision;
+
+import org.opencv.core.Rect;
+
+/**
+ * A lemon found in a single camera frame.
+ *
+ * <p>
+ * The detector recycles its targets from frame to frame (see
+ * {@link VisionFrame#addTarget()}), so a target taken from a frame is only
+ * valid until the frame is reused. Targets handed out in a
+ * {@link VisionResult} are copies and never change.
+ */
+public class Target {
+
+    // center of the target in pixel coordinates
+    private double x;
+    private double y;
+
+    // center of the target with lens distortion removed, in pixels
+    private double undistortedX;
+    private double undistortedY;
+
+    // area of the target's contour, in pixels
+    private double area;
+
+    // bounding box of the target, in pixels
+    private int left;
+    private int top;
+    private int width;
+    private int height;
+
+    // where the lemon is relative to the camera (NaN if the camera is not
+    // calibrated): horizontal range and offsets in inches, angles in degrees
+    private double range;
+    private double azimuth;
+    private double elevation;
+    private double relativeX;
+    private double relativeY;
+
+    // camera the target was seen by, and the capture time of its frame in
+    // microseconds
+    private int cameraId;
+    private long captureTimeMicros;
+
+    /**
+     * Creates a target.
+     * 
+     * @param x                 x coordinate of the center, in pixels
+     * @param y                 y coordinate of the center, in pixels
+     * @param undistortedX      x coordinate of the center without lens
+     *                          distortion
+     * @param undistortedY      y coordinate of the center without lens
+     *                          distortion
+     * @param area              contour area, in pixels
+     * @param box               bounding box, in pixels (copied)
+     * @param position          where the lemon is relative to the camera,
+     *                          indexed as in {@link TargetGeometry} (copied), or
+     *                          null if it is unknown
+     * @param cameraId          camera the target was seen by
+     * @param captureTimeMicros capture time of the frame, in microseconds
+     */
+    public Target(double x, double y, double undistortedX, double undistortedY, double area, Rect box,
+            double[] position, int cameraId, long captureTimeMicros) {
+        set(x, y, undistortedX, undistortedY, area, box, position, cameraId, captureTimeMicros);
+    }
+
+    /**
+     * Creates a copy of a target.
+     *
+     * @param other the target to copy
+     */
+    public Target(Target other) {
+        this.x = other.x;
+        this.y = other.y;
+        this.undistortedX = other.undistortedX;
+        this.undistortedY = other.undistortedY;
+        this.area = other.area;
+        this.left = other.left;
+        this.top = other.top;
+        this.width = other.width;
+        this.height = other.height;
+        this.range = other.range;
+        this.azimuth = other.azimuth;
+        this.elevation = other.elevation;
+        this.relativeX = other.relativeX;
+        this.relativeY = other.relativeY;
+        this.cameraId = other.cameraId;
+        this.captureTimeMicros = other.captureTimeMicros;
+    }
+
+    /**
+     * Creates an empty target to be filled in with
+     * {@link #set(double, double, double, double, double, Rect, double[], int, long)}.
+     */
+    Target() {
+    }
+
+    /**
+     * Overwrites the target, taking the same arguments as the constructor. Only
+     * used to recycle the targets of a {@link VisionFrame}.
+     */
+    void set(double x, double y, double undistortedX, double undistortedY, double area, Rect box,
+            double[] position, int cameraId, long captureTimeMicros) {
+        this.x = x;
+        this.y = y;
+        this.undistortedX = undistortedX;
+        this.undistortedY = undistortedY;
+        this.area = area;
+        this.left = box.x;
+        this.top = box.y;
+        this.width = box.width;
+        this.height = box.height;
+        if (position != null) {
+            this.range = position[TargetGeometry.RANGE];
+            this.azimuth = position[TargetGeometry.AZIMUTH];
+            this.elevation = position[TargetGeometry.ELEVATION];
+            this.relativeX = position[TargetGeometry.X];
+            this.relativeY = position[TargetGeometry.Y];
+        } else {
+            this.range = Double.NaN;
+            this.azimuth = Double.NaN;
+            this.elevation = Double.NaN;
+            this.relativeX = Double.NaN;
+            this.relativeY = Double.NaN;
+        }
+        this.cameraId = cameraId;
+        this.captureTimeMicros = captureTimeMicros;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getUndistortedX() {
+        return undistortedX;
+    }
+
+    public double getUndistortedY() {
+        return undistortedY;
+    }
+
+    public double getArea() {
+        return area;
+    }
+
+    public int getLeft() {
+        return left;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double getRange() {
+        return range;
+    }
+
+    public double getAzimuth() {
+        return azimuth;
+    }
+
+    public double getElevation() {
+        return elevation;
+    }
+
+    public double getRelativeX() {
+        return relativeX;
+    }
+
+    public double getRelativeY() {
+        return relativeY;
+    }
+
+    public int getCameraId() {
+        return cameraId;
+    }
+
+    public long getCaptureTimeMicros() {
+        return captureTimeMicros;
+    }
+
+    @Override
+    public String toString() {
+        return x + ", " + y;
+    }
+}
@@ -0,0 +1,129 @@
+package frc.robot.commands.vision;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Works out where a lemon is relative to the camera from its undistorted
+ * center and apparent size. The camera matrix is inverted once, so each
+ * estimate is a few multiplications and two arctangents on doubles, with no
+ * allocation.
+ *
+ * <p>
+ * The center's pixel is turned into a ray through the inverse camera matrix,
+ * which gives the azimuth and elevation. A lemon of known diameter that
+ * appears d pixels wide is f * diameter / d in front of the camera (f being
+ * the focal length in pixels), which places it along the ray. The camera is
+ * assumed to be level, so the horizontal range ignores the lemon's height.
+ */
+public class TargetGeometry {
+
+    // indices of the estimate in the output array
+    public static final int RANGE = 0;
+    public static final int AZIMUTH = 1;
+    public static final int X = 2;
+    public static final int Y = 3;
+    public static final int ELEVATION = 4;
+    public static final int SIZE = 5;
+
+    // average diameter of a lemon seen from any side, in inches
+    public static final double DEFAULT_LEMON_DIAMETER = 2.5;
+
+    // the inverse camera matrix, row by row
+    private final double[] inverse = new double[9];
+    // focal length in pixels (the geometric mean of fx and fy)
+    private final double focalLength;
+    // diameter of the lemon, in inches
+    private final double lemonDiameter;
+
+    /**
+     * Inverts the camera matrix.
+     *
+     * @param cameraMatrix  the 3x3 camera matrix from calibration
+     * @param lemonDiameter diameter of the lemon, in the unit the range should be
+     *                      in (inches)
+     */
+    public TargetGeometry(Mat cameraMatrix, double lemonDiameter) {
+        this.lemonDiameter = lemonDiameter;
+
+        double[] k = new double[9];
+        if (cameraMatrix.type() == CvType.CV_64FC1) {
+            cameraMatrix.get(0, 0, k);
+        } else {
+            Mat converted = new Mat();
+            cameraMatrix.convertTo(converted, CvType.CV_64F);
+            converted.get(0, 0, k);
+            converted.release();
+        }
+        focalLength = Math.sqrt(k[0] * k[4]);
+
+        // inverse by cofactors
+        double c00 = k[4] * k[8] - k[5] * k[7];
+        double c01 = k[5] * k[6] - k[3] * k[8];
+        double c02 = k[3] * k[7] - k[4] * k[6];
+        double determinant = k[0] * c00 + k[1] * c01 + k[2] * c02;
+        if (determinant == 0) {
+            throw new IllegalArgumentException("Camera matrix is singular");
+        }
+        inverse[0] = c00 / determinant;
+        inverse[1] = (k[2] * k[7] - k[1] * k[8]) / determinant;
+        inverse[2] = (k[1] * k[5] - k[2] * k[4]) / determinant;
+        inverse[3] = c01 / determinant;
+        inverse[4] = (k[0] * k[8] - k[2] * k[6]) / determinant;
+        inverse[5] = (k[2] * k[3] - k[0] * k[5]) / determinant;
+        inverse[6] = c02 / determinant;
+        inverse[7] = (k[1] * k[6] - k[0] * k[7]) / determinant;
+        inverse[8] = (k[0] * k[4] - k[1] * k[3]) / determinant;
+    }
+
+    /**
+     * Estimates where a lemon is. The results are the values
+     * {@link frc.robot.BigData#updateCamera} takes, plus the elevation:
+     * <ul>
+     * <li>{@link #RANGE}: horizontal distance to the lemon, in inches</li>
+     * <li>{@link #AZIMUTH}: horizontal angle to the lemon in degrees, positive
+     * when the camera is pointed to the left of it</li>
+     * <li>{@link #X}: how far the lemon is to the right of the camera's axis, in
+     * inches</li>
+     * <li>{@link #Y}: how far the lemon is in front of the camera, in inches</li>
+     * <li>{@link #ELEVATION}: vertical angle to the lemon in degrees, positive
+     * above the camera's axis</li>
+     * </ul>
+     * The distances are NaN if the apparent diameter isn't positive.
+     *
+     * @param undistortedX   x coordinate of the center without lens distortion,
+     *                       in pixels
+     * @param undistortedY   y coordinate of the center without lens distortion,
+     *                       in pixels
+     * @param diameterPixels apparent diameter of the lemon, in pixels
+     * @param out            array of at least {@link #SIZE} the estimate is
+     *                       written to
+     */
+    public void estimate(double undistortedX, double undistortedY, double diameterPixels, double[] out) {
+        // the ray through the pixel, scaled to one unit in front of the camera
+        double w = inverse[6] * undistortedX + inverse[7] * undistortedY + inverse[8];
+        double rayX = (inverse[0] * undistortedX + inverse[1] * undistortedY + inverse[2]) / w;
+        double rayY = (inverse[3] * undistortedX + inverse[4] * undistortedY + inverse[5]) / w;
+        double horizontal = Math.sqrt(1 + rayX * rayX);
+
+        double depth = diameterPixels > 0 ? focalLength * lemonDiameter / diameterPixels : Double.NaN;
+        out[RANGE] = depth * horizontal;
+        out[AZIMUTH] = Math.toDegrees(Math.atan(rayX));
+        out[X] = depth * rayX;
+        out[Y] = depth;
+        // image y points down
+        out[ELEVATION] = Math.toDegrees(Math.atan2(-rayY, horizontal));
+    }
+
+    /**
+     * Returns the diameter of the circle with the same area as a blob, which
+     * doesn't depend on which way the lemon is turned as much as its bounding
+     * box does.
+     *
+     * @param area the blob's area, in pixels
+     * @return the diameter, in pixels
+     */
+    public static double equivalentDiameter(double area) {
+        return 2 * Math.sqrt(area / Math.PI);
+    }
+}
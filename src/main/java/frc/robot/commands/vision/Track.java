@@ -0,0 +1,135 @@
+package frc.robot.commands.vision;
+
+/**
+ * One lemon followed across frames by the {@link MultiTargetTracker}. Tracks
+ * are mutable so the tracker and its readers can reuse them instead of
+ * allocating new ones every frame; use {@link #copyFrom(Track)} to take a
+ * snapshot.
+ */
+public class Track {
+
+    // identifies the lemon for as long as it is tracked; never reused
+    private long id;
+
+    // frames since the track was started, and how many of them matched a target
+    private int age;
+    private int hits;
+    // frames in a row without a matching target
+    private int misses;
+
+    // capture time of the last frame with a matching target, in microseconds
+    private long lastSeenMicros;
+
+    // filtered center and velocity, in pixels and pixels per second
+    private double x;
+    private double y;
+    private double velocityX;
+    private double velocityY;
+
+    // area of the last matching target, in pixels
+    private double area;
+
+    /**
+     * Starts the track from its first target.
+     */
+    void start(long id, long timeMicros, Target target) {
+        this.id = id;
+        age = 1;
+        hits = 1;
+        misses = 0;
+        lastSeenMicros = timeMicros;
+        area = target.getArea();
+    }
+
+    /**
+     * Records a frame with a matching target.
+     */
+    void hit(long timeMicros, Target target) {
+        age++;
+        hits++;
+        misses = 0;
+        lastSeenMicros = timeMicros;
+        area = target.getArea();
+    }
+
+    /**
+     * Records a frame without a matching target.
+     */
+    void miss() {
+        age++;
+        misses++;
+    }
+
+    /**
+     * Sets the filtered state.
+     */
+    void setState(double x, double y, double velocityX, double velocityY) {
+        this.x = x;
+        this.y = y;
+        this.velocityX = velocityX;
+        this.velocityY = velocityY;
+    }
+
+    /**
+     * Copies another track into this one.
+     *
+     * @param other the track to copy
+     */
+    public void copyFrom(Track other) {
+        id = other.id;
+        age = other.age;
+        hits = other.hits;
+        misses = other.misses;
+        lastSeenMicros = other.lastSeenMicros;
+        x = other.x;
+        y = other.y;
+        velocityX = other.velocityX;
+        velocityY = other.velocityY;
+        area = other.area;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getAge() {
+        return age;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    public long getLastSeenMicros() {
+        return lastSeenMicros;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getVelocityX() {
+        return velocityX;
+    }
+
+    public double getVelocityY() {
+        return velocityY;
+    }
+
+    public double getArea() {
+        return area;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + ": " + x + ", " + y + " (" + velocityX + ", " + velocityY + " px/s, age " + age + ")";
+    }
+}
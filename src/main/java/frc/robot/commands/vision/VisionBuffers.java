@@ -0,0 +1,285 @@
+package frc.robot.commands.vision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+
+/**
+ * Frame-scoped pool of the intermediate mats used by the lemon detection
+ * pipeline. Every mat is allocated once at the stream resolution and reused
+ * for each frame, so OpenCV never has to reallocate them as long as the frame
+ * size and type stay the same. The owner must call {@link #release()} when it
+ * is done with the buffers.
+ */
+public class VisionBuffers {
+
+    // number of mats currently allocated by all buffer pools
+    private static final AtomicInteger liveMats = new AtomicInteger();
+    // number of native bytes currently allocated by all buffer pools
+    private static final AtomicLong nativeBytes = new AtomicLong();
+
+    // the frame grabbed from the camera stream; the same mat as image unless the
+    // frame is undistorted into image
+    public final Mat rawImage;
+
+    // the frame that is processed (annotated in place)
+    public final Mat image;
+
+    // preprocessing intermediates
+    public final Mat blurImg;
+    public final Mat hsvImg;
+    public final Mat colorThreshImg;
+    public final Mat colorMaskedImg;
+    public final Mat temp;
+    public final Mat cannyEdgeImg;
+
+    // scratch mask for morphology on the threshold mask
+    public final Mat maskTemp;
+
+    // blob analysis: the cleaned-up threshold mask and the connected-component
+    // outputs (null if it is not used)
+    public final Mat cleanMask;
+    public final Mat labels;
+    public final Mat stats;
+    public final Mat centroids;
+
+    // contour search outputs
+    public final Mat hierarchy;
+    public final List<MatOfPoint> contours;
+    // contours of the window currently being searched, moved to contours after
+    public final List<MatOfPoint> regionContours;
+    // contours of the accepted targets, for drawing (owned by contours)
+    public final List<MatOfPoint> targetContours;
+
+    // coarse search: each level of the downscaled image (half size, then
+    // quarter...), and the intermediates at the smallest level
+    public final List<Mat> pyramid;
+    public final Mat coarseHsv;
+    public final Mat coarseThresh;
+    public final Mat coarseTemp;
+    public final List<MatOfPoint> coarseContours;
+
+    // per-contour scratch space, reused for every contour in the frame
+    public final MatOfPoint2f contour2f;
+    public final MatOfPoint2f approx;
+
+    // submat headers handed out by view() for the current frame
+    private final List<Mat> views = new ArrayList<Mat>();
+
+    // every mat owned by this pool, in allocation order
+    private final List<Mat> owned = new ArrayList<Mat>();
+    // native bytes counted for this pool when it was allocated
+    private long ownedBytes;
+
+    private boolean released = false;
+
+    /**
+     * Allocates every intermediate mat for frames of the given size.
+     *
+     * @param width  frame width in pixels
+     * @param height frame height in pixels
+     */
+    public VisionBuffers(int width, int height) {
+        this(width, height, 0, false, false);
+    }
+
+    /**
+     * Allocates every intermediate mat for frames of the given size, including
+     * the downscaled levels used by the coarse search.
+     *
+     * @param width         frame width in pixels
+     * @param height        frame height in pixels
+     * @param pyramidLevels number of times the frame is halved for the coarse
+     *                      search (0 if it is not used)
+     * @param separateRaw   whether the grabbed frame needs its own mat (when it is
+     *                      undistorted into image)
+     * @param blobAnalysis  whether targets are found by connected-component
+     *                      analysis instead of edges and contours
+     */
+    public VisionBuffers(int width, int height, int pyramidLevels, boolean separateRaw, boolean blobAnalysis) {
+        image = allocate(new Mat(height, width, CvType.CV_8UC3));
+        rawImage = separateRaw ? allocate(new Mat(height, width, CvType.CV_8UC3)) : image;
+
+        blurImg = allocate(new Mat(height, width, CvType.CV_8UC3));
+        hsvImg = allocate(new Mat(height, width, CvType.CV_8UC3));
+        colorThreshImg = allocate(new Mat(height, width, CvType.CV_8UC1));
+        colorMaskedImg = allocate(new Mat(height, width, CvType.CV_8UC3));
+        temp = allocate(new Mat(height, width, CvType.CV_8UC3));
+        cannyEdgeImg = allocate(new Mat(height, width, CvType.CV_8UC1));
+        maskTemp = allocate(new Mat(height, width, CvType.CV_8UC1));
+
+        if (blobAnalysis) {
+            cleanMask = allocate(new Mat(height, width, CvType.CV_8UC1));
+            labels = allocate(new Mat(height, width, CvType.CV_32SC1));
+            // one row per blob, so these are resized whenever the blob count changes
+            stats = allocate(new Mat());
+            centroids = allocate(new Mat());
+        } else {
+            cleanMask = null;
+            labels = null;
+            stats = null;
+            centroids = null;
+        }
+
+        hierarchy = allocate(new Mat());
+        contours = new ArrayList<MatOfPoint>();
+        regionContours = new ArrayList<MatOfPoint>();
+        targetContours = new ArrayList<MatOfPoint>();
+
+        // pyrDown rounds odd sizes up
+        pyramid = new ArrayList<Mat>();
+        int coarseWidth = width;
+        int coarseHeight = height;
+        for (int i = 0; i < pyramidLevels; i++) {
+            coarseWidth = (coarseWidth + 1) / 2;
+            coarseHeight = (coarseHeight + 1) / 2;
+            pyramid.add(allocate(new Mat(coarseHeight, coarseWidth, CvType.CV_8UC3)));
+        }
+        if (pyramidLevels > 0) {
+            coarseHsv = allocate(new Mat(coarseHeight, coarseWidth, CvType.CV_8UC3));
+            coarseThresh = allocate(new Mat(coarseHeight, coarseWidth, CvType.CV_8UC1));
+            coarseTemp = allocate(new Mat(coarseHeight, coarseWidth, CvType.CV_8UC1));
+        } else {
+            coarseHsv = null;
+            coarseThresh = null;
+            coarseTemp = null;
+        }
+        coarseContours = new ArrayList<MatOfPoint>();
+
+        contour2f = allocate(new MatOfPoint2f());
+        approx = allocate(new MatOfPoint2f());
+    }
+
+    /**
+     * Registers a mat with this pool so that it is counted and released along
+     * with the rest of the buffers.
+     */
+    private <T extends Mat> T allocate(T mat) {
+        owned.add(mat);
+        long bytes = mat.total() * mat.elemSize();
+        ownedBytes += bytes;
+
+        liveMats.incrementAndGet();
+        nativeBytes.addAndGet(bytes);
+        return mat;
+    }
+
+    /**
+     * Releases the contours in one of this pool's contour lists. findContours()
+     * wraps each contour in a new MatOfPoint, so these have to be freed
+     * explicitly before the list is refilled.
+     *
+     * @param list the list to release and clear
+     */
+    public void releaseContours(List<MatOfPoint> list) {
+        for (MatOfPoint contour : list) {
+            contour.release();
+        }
+        list.clear();
+    }
+
+    /**
+     * Returns the part of one of this pool's mats covered by a region. Processing
+     * a view writes straight into the preallocated mat, so OpenCV doesn't
+     * reallocate it for the smaller size. Only a submat header is created, and
+     * it is released by the next {@link #releaseViews()}.
+     *
+     * @param mat    a full-frame mat owned by this pool
+     * @param region the region of the frame
+     * @return the mat itself if the region covers it, otherwise a submat
+     */
+    public Mat view(Mat mat, Rect region) {
+        if (region.x == 0 && region.y == 0 && region.width == mat.cols() && region.height == mat.rows()) {
+            return mat;
+        }
+        Mat view = mat.submat(region);
+        views.add(view);
+        return view;
+    }
+
+    /**
+     * Releases the submat headers created by {@link #view(Mat, Rect)}.
+     */
+    public void releaseViews() {
+        for (Mat view : views) {
+            view.release();
+        }
+        views.clear();
+    }
+
+    /**
+     * Releases every mat owned by this pool. The pool cannot be used afterwards.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+
+        releaseViews();
+        releaseContours(contours);
+        targetContours.clear();
+        releaseContours(regionContours);
+        releaseContours(coarseContours);
+        for (Mat mat : owned) {
+            mat.release();
+        }
+
+        liveMats.addAndGet(-owned.size());
+        nativeBytes.addAndGet(-ownedBytes);
+        owned.clear();
+    }
+
+    /**
+     * Returns whether {@link #release()} has been called on this pool.
+     *
+     * @return true if the pool has been released
+     */
+    public boolean isReleased() {
+        return released;
+    }
+
+    /**
+     * Returns the number of native bytes currently held by this pool's mats. If
+     * this grows after the first frame, some stage is reallocating its output.
+     *
+     * @return the current native size of every owned mat, in bytes
+     */
+    public long currentBytes() {
+        long bytes = 0;
+        for (Mat mat : owned) {
+            bytes += mat.total() * mat.elemSize();
+        }
+        for (MatOfPoint contour : contours) {
+            bytes += contour.total() * contour.elemSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of mats currently allocated by all buffer pools.
+     *
+     * @return the live mat count
+     */
+    public static int getLiveMatCount() {
+        return liveMats.get();
+    }
+
+    /**
+     * Returns the number of native bytes allocated by all buffer pools when
+     * they were created. Compare against {@link #currentBytes()} to spot
+     * reallocations.
+     *
+     * @return the allocated native byte count
+     */
+    public static long getNativeBytes() {
+        return nativeBytes.get();
+    }
+}
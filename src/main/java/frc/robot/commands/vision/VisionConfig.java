@@ -0,0 +1,106 @@
+package frc.robot.commands.vision;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Detector options stored in the lemon config file alongside the HSV ranges.
+ * Options are grouped into sections, e.g. { roi_tracking: { enabled: true,
+ * max_misses: 5 } }. Missing sections or keys fall back to the given defaults,
+ * so older config files keep working.
+ */
+public class VisionConfig {
+
+    // json object representing the config file
+    private final JSONObject jsonObj;
+
+    private VisionConfig(JSONObject jsonObj) {
+        this.jsonObj = jsonObj;
+    }
+
+    /**
+     * Reads the config file.
+     *
+     * @param filepath path to json config file
+     * @return the config, or an empty config if the file could not be read
+     */
+    public static VisionConfig load(String filepath) {
+        JSONParser parser = new JSONParser();
+
+        try (FileReader reader = new FileReader(new File(filepath))) {
+            return new VisionConfig((JSONObject) parser.parse(reader));
+        } catch (IOException e) {
+            System.out.println("IO error while reading vision config file, using defaults.");
+            e.printStackTrace();
+        } catch (ParseException e) {
+            System.out.println("Could not parse vision config file, using defaults.");
+            e.printStackTrace();
+        }
+        return new VisionConfig(new JSONObject());
+    }
+
+    /**
+     * Returns a number from a section of the config.
+     *
+     * @param section      name of the section
+     * @param key          name of the option
+     * @param defaultValue value used if the option is missing
+     * @return the option's value
+     */
+    public double getDouble(String section, String key, double defaultValue) {
+        Object value = get(section, key);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    /**
+     * Returns an integer from a section of the config.
+     *
+     * @param section      name of the section
+     * @param key          name of the option
+     * @param defaultValue value used if the option is missing
+     * @return the option's value
+     */
+    public int getInt(String section, String key, int defaultValue) {
+        Object value = get(section, key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    /**
+     * Returns a boolean from a section of the config.
+     *
+     * @param section      name of the section
+     * @param key          name of the option
+     * @param defaultValue value used if the option is missing
+     * @return the option's value
+     */
+    public boolean getBoolean(String section, String key, boolean defaultValue) {
+        Object value = get(section, key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    /**
+     * Returns a string from a section of the config.
+     *
+     * @param section      name of the section
+     * @param key          name of the option
+     * @param defaultValue value used if the option is missing
+     * @return the option's value
+     */
+    public String getString(String section, String key, String defaultValue) {
+        Object value = get(section, key);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    private Object get(String section, String key) {
+        Object obj = jsonObj.get(section);
+        if (!(obj instanceof JSONObject)) {
+            return null;
+        }
+        return ((JSONObject) obj).get(key);
+    }
+}
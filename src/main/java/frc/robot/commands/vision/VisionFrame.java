@@ -0,0 +1,200 @@
+package frc.robot.commands.vision;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Rect;
+
+/**
+ * One frame moving through the vision pipeline: the preallocated buffers it is
+ * processed in and the targets found in it so far. Frames are allocated once
+ * and recycled, so a frame must be {@link #reset()} before it is reused.
+ */
+public class VisionFrame {
+
+    // most full-resolution windows searched in one frame; further candidates are
+    // merged into the last window
+    public static final int MAX_SEARCH_WINDOWS = 16;
+
+    // the frame image and its intermediates
+    public final VisionBuffers buffers;
+
+    // targets found in the frame, in full-frame pixel coordinates (recycled
+    // from targetPool, see addTarget())
+    public final List<Target> targets = new ArrayList<Target>();
+
+    // the part of the frame that is processed (the full frame unless a tracker
+    // narrowed it down)
+    public final Rect region = new Rect();
+
+    // camera the frame was grabbed from
+    public int cameraId = 0;
+
+    // capture time reported by the camera, in microseconds
+    public long captureTimeMicros;
+
+    // when processing started and finished, on the same clock as the capture time
+    public long processStartMicros;
+    public long processEndMicros;
+
+    // time spent working on the frame in every pipeline stage but capture, in
+    // nanoseconds (PIPELINED mode only, where the stages run on different
+    // threads and the frame waits in queues between them)
+    public long workNanos;
+
+    // whether the annotation stage should draw on the frame (false while nobody
+    // is watching the annotated stream)
+    public boolean annotate = true;
+
+    // whether the color image is masked for the original stream (false while
+    // nobody is watching it, since the detector only needs the mask)
+    public boolean maskColor = true;
+
+    // whether the detector skipped the frame without searching it (to hold its
+    // frame time budget)
+    public boolean skipped = false;
+
+    // the windows inside the region that are processed at full resolution
+    private final Rect[] searchWindows = new Rect[MAX_SEARCH_WINDOWS];
+    private int searchWindowCount = 0;
+
+    // target objects reused from frame to frame; grows to the most targets seen
+    // in one frame
+    private Target[] targetPool = new Target[0];
+
+    /**
+     * Creates a frame around a set of buffers.
+     * 
+     * @param buffers the buffers the frame is processed in
+     */
+    public VisionFrame(VisionBuffers buffers) {
+        this.buffers = buffers;
+        for (int i = 0; i < MAX_SEARCH_WINDOWS; i++) {
+            searchWindows[i] = new Rect();
+        }
+    }
+
+    /**
+     * Clears the results of the previous frame.
+     */
+    public void reset() {
+        targets.clear();
+        captureTimeMicros = 0;
+        processStartMicros = 0;
+        processEndMicros = 0;
+        workNanos = 0;
+        annotate = true;
+        maskColor = true;
+        skipped = false;
+        searchWindowCount = 0;
+
+        region.x = 0;
+        region.y = 0;
+        region.width = buffers.image.cols();
+        region.height = buffers.image.rows();
+    }
+
+    /**
+     * Adds a target to the frame and returns it to be filled in. The target is
+     * recycled from an earlier use of the frame where possible, so it must be
+     * copied if it is kept after the frame is reset.
+     * 
+     * @return the added target
+     */
+    public Target addTarget() {
+        int index = targets.size();
+        if (index == targetPool.length) {
+            targetPool = Arrays.copyOf(targetPool, Math.max(4, index * 2));
+        }
+        if (targetPool[index] == null) {
+            targetPool[index] = new Target();
+        }
+        Target target = targetPool[index];
+        targets.add(target);
+        return target;
+    }
+
+    /**
+     * Returns whether the whole frame is processed.
+     * 
+     * @return true if the region covers the full frame
+     */
+    public boolean isFullFrame() {
+        return region.x == 0 && region.y == 0 && region.width == buffers.image.cols()
+                && region.height == buffers.image.rows();
+    }
+
+    /**
+     * Releases the frame's buffers. The frame cannot be used afterwards.
+     */
+    public void release() {
+        buffers.release();
+    }
+
+    /**
+     * Adds a window to process at full resolution. A window that overlaps one
+     * already added is merged into it, so no pixel is processed twice.
+     * 
+     * @param window the window to add (copied)
+     */
+    public void addSearchWindow(Rect window) {
+        int left = window.x;
+        int top = window.y;
+        int right = window.x + window.width;
+        int bottom = window.y + window.height;
+
+        // grow the new window over every window it touches, removing them; when
+        // out of slots, fold in the window that grows it least instead, and keep
+        // merging, since the grown window may now touch others
+        while (true) {
+            int index = -1;
+            long leastGrowth = Long.MAX_VALUE;
+            for (int i = 0; i < searchWindowCount; i++) {
+                Rect other = searchWindows[i];
+                if (left < other.x + other.width && other.x < right && top < other.y + other.height
+                        && other.y < bottom) {
+                    index = i;
+                    break;
+                }
+                if (searchWindowCount == MAX_SEARCH_WINDOWS) {
+                    long growth = (long) (Math.max(right, other.x + other.width) - Math.min(left, other.x))
+                            * (Math.max(bottom, other.y + other.height) - Math.min(top, other.y));
+                    if (growth < leastGrowth) {
+                        leastGrowth = growth;
+                        index = i;
+                    }
+                }
+            }
+            if (index < 0) {
+                break;
+            }
+
+            Rect other = searchWindows[index];
+            left = Math.min(left, other.x);
+            top = Math.min(top, other.y);
+            right = Math.max(right, other.x + other.width);
+            bottom = Math.max(bottom, other.y + other.height);
+
+            // move the last window into this slot
+            searchWindowCount--;
+            Rect last = searchWindows[searchWindowCount];
+            searchWindows[searchWindowCount] = other;
+            searchWindows[index] = last;
+        }
+
+        Rect slot = searchWindows[searchWindowCount++];
+        slot.x = left;
+        slot.y = top;
+        slot.width = right - left;
+        slot.height = bottom - top;
+    }
+
+    public int getSearchWindowCount() {
+        return searchWindowCount;
+    }
+
+    public Rect getSearchWindow(int i) {
+        return searchWindows[i];
+    }
+}
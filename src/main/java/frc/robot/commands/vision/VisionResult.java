@@ -0,0 +1,98 @@
+package frc.robot.commands.vision;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The targets found in one processed frame, and when the frame was captured,
+ * processed and published. Results are immutable so they can be handed from
+ * the vision thread to any number of readers without copying.
+ *
+ * <p>
+ * All times are in microseconds on the camera's frame clock, which on the
+ * robot is the FPGA clock ({@code RobotController.getFPGATime()}), so the age
+ * of a result can be worked out when it is used.
+ */
+public class VisionResult {
+
+    // increases by one for every published result
+    private final long sequence;
+
+    private final List<Target> targets;
+
+    // when the frame was captured, when processing started and finished, and
+    // when the result was published
+    private final long captureTimeMicros;
+    private final long processStartMicros;
+    private final long processEndMicros;
+    private final long publishTimeMicros;
+
+    /**
+     * Creates a result.
+     * 
+     * @param sequence           the sequence number of the result
+     * @param targets            the targets found in the frame (copied)
+     * @param captureTimeMicros  capture time of the frame
+     * @param processStartMicros time processing of the frame started
+     * @param processEndMicros   time processing of the frame finished
+     * @param publishTimeMicros  time the result was published
+     */
+    public VisionResult(long sequence, List<Target> targets, long captureTimeMicros, long processStartMicros,
+            long processEndMicros, long publishTimeMicros) {
+        this.sequence = sequence;
+        // the frame's targets are recycled, so copy them out
+        List<Target> copies = new ArrayList<Target>(targets.size());
+        for (Target target : targets) {
+            copies.add(new Target(target));
+        }
+        this.targets = Collections.unmodifiableList(copies);
+        this.captureTimeMicros = captureTimeMicros;
+        this.processStartMicros = processStartMicros;
+        this.processEndMicros = processEndMicros;
+        this.publishTimeMicros = publishTimeMicros;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public List<Target> getTargets() {
+        return targets;
+    }
+
+    public long getCaptureTimeMicros() {
+        return captureTimeMicros;
+    }
+
+    public long getProcessStartMicros() {
+        return processStartMicros;
+    }
+
+    public long getProcessEndMicros() {
+        return processEndMicros;
+    }
+
+    public long getPublishTimeMicros() {
+        return publishTimeMicros;
+    }
+
+    /**
+     * Returns how long ago the frame was captured.
+     *
+     * @param nowMicros the current time on the same clock
+     * @return the age of the result, in microseconds
+     */
+    public long getAgeMicros(long nowMicros) {
+        return nowMicros - captureTimeMicros;
+    }
+
+    /**
+     * Returns whether any targets were found in the frame.
+     * 
+     * @return true if there is at least one target
+     */
+    public boolean hasTargets() {
+        return !targets.isEmpty();
+    }
+}
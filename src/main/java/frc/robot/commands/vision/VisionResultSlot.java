@@ -0,0 +1,88 @@
+package frc.robot.commands.vision;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.wpi.first.wpilibj.RobotController;
+
+/**
+ * Lock-free hand-off of the newest vision result from a single writer (the
+ * vision thread) to any number of readers (commands on the scheduler thread).
+ * Readers never block the writer; they only ever see the most recently
+ * completed result and can use its sequence number to tell whether anything
+ * new has arrived since they last looked.
+ */
+public class VisionResultSlot {
+
+    // the newest completed result, or null if nothing has been published yet
+    private final AtomicReference<VisionResult> latest = new AtomicReference<VisionResult>();
+
+    // sequence number of the last published result (only touched by the writer)
+    private long writeSequence = 0;
+
+    // latency breakdown of the published results
+    private final LatencyStats latency = new LatencyStats();
+
+    /**
+     * Publishes the targets found in a frame as the newest result, stamped with
+     * the frame's capture and processing times and the current time. Must only
+     * be called from one thread.
+     * 
+     * @param frame the processed frame
+     * @return the published result
+     */
+    public VisionResult publish(VisionFrame frame) {
+        return publish(frame.targets, frame.captureTimeMicros, frame.processStartMicros, frame.processEndMicros);
+    }
+
+    /**
+     * Publishes a list of targets as the newest result, stamped with the current
+     * time. Must only be called from one thread.
+     * 
+     * @param targets            the targets
+     * @param captureTimeMicros  capture time of the frame they were found in
+     * @param processStartMicros time processing of the frame started
+     * @param processEndMicros   time processing of the frame finished
+     * @return the published result
+     */
+    public VisionResult publish(List<Target> targets, long captureTimeMicros, long processStartMicros,
+            long processEndMicros) {
+        VisionResult result = new VisionResult(++writeSequence, targets, captureTimeMicros, processStartMicros,
+                processEndMicros, RobotController.getFPGATime());
+        latest.set(result);
+        latency.record(result);
+        return result;
+    }
+
+    /**
+     * Returns the latency breakdown of the results published so far.
+     *
+     * @return the latency stats
+     */
+    public LatencyStats getLatencyStats() {
+        return latency;
+    }
+
+    /**
+     * Returns the newest result, or null if nothing has been published yet.
+     * 
+     * @return the newest result
+     */
+    public VisionResult getLatest() {
+        return latest.get();
+    }
+
+    /**
+     * Returns the newest result if it is newer than the given sequence number.
+     * 
+     * @param sequence the sequence number of the last result the caller read
+     * @return the newest result, or null if nothing new has arrived
+     */
+    public VisionResult getNewerThan(long sequence) {
+        VisionResult result = latest.get();
+        if (result == null || result.getSequence() <= sequence) {
+            return null;
+        }
+        return result;
+    }
+}
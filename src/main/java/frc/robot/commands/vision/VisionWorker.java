@@ -0,0 +1,134 @@
+package frc.robot.commands.vision;
+
+import edu.wpi.cscore.CvSink;
+import edu.wpi.first.wpilibj.RobotController;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+import frc.robot.subsystems.VisionSubsystem;
+
+/**
+ * Grabs frames from the vision subsystem's camera, runs them through a
+ * {@link LemonDetector}, and publishes the results. Can either be stepped one
+ * frame at a time with {@link #runOnce()} or run in a loop on its own thread.
+ */
+public class VisionWorker implements Runnable {
+
+    private final VisionSubsystem visionSubsystem;
+    private final LemonDetector detector;
+    private final VisionResultSlot resultSlot;
+
+    // camera the worker grabs from
+    private final int camera;
+    // whether this worker's frames are put on the debug streams
+    private final boolean debugStreams;
+
+    // the frame owned by this worker, reused for every grab
+    private final VisionFrame frame;
+
+    /**
+     * Creates a worker and allocates its frame buffers.
+     *
+     * @param visionSubsystem the subsystem providing the camera and output streams
+     * @param detector        the detector to run on each frame
+     * @param resultSlot      where the results of each frame are published
+     */
+    public VisionWorker(VisionSubsystem visionSubsystem, LemonDetector detector, VisionResultSlot resultSlot) {
+        this(visionSubsystem, 0, detector, resultSlot, true);
+    }
+
+    /**
+     * Creates a worker for one of the subsystem's cameras and allocates its frame
+     * buffers.
+     *
+     * @param visionSubsystem the subsystem providing the camera and output streams
+     * @param camera          index of the camera to grab from
+     * @param detector        the detector to run on each frame (not shared with
+     *                        other workers)
+     * @param resultSlot      where the results of each frame are published
+     * @param debugStreams    whether to put the frames on the debug streams (only
+     *                        one worker may)
+     */
+    public VisionWorker(VisionSubsystem visionSubsystem, int camera, LemonDetector detector,
+            VisionResultSlot resultSlot, boolean debugStreams) {
+        this.visionSubsystem = visionSubsystem;
+        this.camera = camera;
+        this.detector = detector;
+        this.resultSlot = resultSlot;
+        this.debugStreams = debugStreams;
+        this.frame = new VisionFrame(detector.createBuffers());
+        this.frame.cameraId = camera;
+    }
+
+    /**
+     * Grabs and processes one frame.
+     *
+     * @return true if a frame was processed, false if no frame was available or
+     *         the detector skipped it
+     */
+    public boolean runOnce() {
+        CvSink cvSink = visionSubsystem.getCvSink(camera);
+        VisionBuffers buffers = frame.buffers;
+
+        // grab image from camera stream; the buffers are preallocated, so check the
+        // frame time rather than image.empty() (0 means the grab failed or timed out,
+        // which happens while the camera stream is still loading)
+        long captureTime = cvSink.grabFrame(buffers.rawImage);
+        if (captureTime == 0) {
+            return false;
+        }
+
+        // the quality controller gives up the debug streams first when frames run
+        // over budget
+        QualityController quality = detector.getQualityController();
+        boolean debug = debugStreams && (quality == null || quality.allowsDebugStreams());
+        long startNanos = System.nanoTime();
+
+        frame.reset();
+        frame.captureTimeMicros = captureTime;
+        frame.annotate = debug && visionSubsystem.wantsAnnotatedFrame();
+        frame.maskColor = debug && visionSubsystem.wantsMaskedFrame();
+        frame.processStartMicros = RobotController.getFPGATime();
+        detector.process(frame);
+        frame.processEndMicros = RobotController.getFPGATime();
+
+        // a skipped frame has no result, so the last one stands
+        if (!frame.skipped) {
+            resultSlot.publish(frame);
+            if (debug) {
+                visionSubsystem.putDebugFrames(frame);
+            }
+        }
+        if (quality != null) {
+            quality.update(System.nanoTime() - startNanos);
+        }
+
+        // report buffer usage so we can confirm the steady state allocates nothing
+        SmartDashboard.putNumber("Vision Live Mats", VisionBuffers.getLiveMatCount());
+        SmartDashboard.putNumber("Vision Native Bytes", buffers.currentBytes());
+        return !frame.skipped;
+    }
+
+    /**
+     * Processes frames until the thread is interrupted, then releases the frame
+     * buffers.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                runOnce();
+            }
+        } catch (Exception e) {
+            System.out.println("Vision thread stopped by an unexpected error.");
+            e.printStackTrace();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Releases the frame buffers. The worker cannot be used afterwards.
+     */
+    public void release() {
+        frame.release();
+    }
+}
@@ -3,18 +3,86 @@ package frc.robot.subsystems;
 import edu.wpi.first.cameraserver.CameraServer;
 import edu.wpi.first.wpilibj2.command.CommandScheduler;
 import edu.wpi.first.wpilibj2.command.SubsystemBase;
+import frc.robot.commands.vision.DebugStream;
+import frc.robot.commands.vision.LemonDetector;
+import frc.robot.commands.vision.MultiCameraExecutor;
+import frc.robot.commands.vision.PipelinedVisionExecutor;
+import frc.robot.commands.vision.VisionBuffers;
+import frc.robot.commands.vision.VisionFrame;
+import frc.robot.commands.vision.VisionResultSlot;
+import frc.robot.commands.vision.VisionWorker;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import edu.wpi.cscore.CvSink;
-import edu.wpi.cscore.CvSource;
+import edu.wpi.cscore.UsbCamera;
 
 public class VisionSubsystem extends SubsystemBase {
+    // resolution of the camera and output streams
+    public static final int STREAM_WIDTH = 640;
+    public static final int STREAM_HEIGHT = 480;
+
+    // names of the debug output streams
+    public static final String ORIGINAL_STREAM = "Original Stream";
+    public static final String EDGE_STREAM = "Canny Edge Stream";
+    public static final String ANNOTATED_STREAM = "Undistorted Stream";
+
+    // limits for debug streams that haven't been configured
+    private static final double DEFAULT_STREAM_FPS = 15;
+    private static final int DEFAULT_STREAM_SCALE = 1;
+    private static final int DEFAULT_STREAM_QUALITY = 50;
+
+    // how long to wait for the vision thread to finish when stopping it
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    /**
+     * Where frame capture and processing run.
+     */
+    public enum ProcessingMode {
+        // on the scheduler thread, one frame per call to processFrame()
+        SCHEDULER,
+        // on a dedicated vision thread, as fast as the camera delivers frames
+        DEDICATED_THREAD,
+        // on one thread per stage, with consecutive frames overlapping
+        PIPELINED,
+        // every camera at once, each with its own detector, on a shared thread pool
+        MULTI_CAMERA
+    }
+
     private CvSink cvSink;
-    private Map<String, CvSource> outputStreamMap;
+    // one sink per camera, in camera order (the first is cvSink)
+    private final List<CvSink> cameraSinks = new ArrayList<CvSink>();
+    private Map<String, DebugStream> outputStreamMap;
+
+    private final ProcessingMode mode;
+
+    // newest vision result, written by the worker and read by commands
+    private final VisionResultSlot resultSlot = new VisionResultSlot();
+
+    // the active worker and (in DEDICATED_THREAD mode) the thread running it
+    private VisionWorker worker;
+    private Thread processingThread;
+
+    // the active executor in PIPELINED mode
+    private PipelinedVisionExecutor pipeline;
+
+    // the active executor in MULTI_CAMERA mode
+    private MultiCameraExecutor multiCamera;
+
+    // the detectors being run (one per camera in MULTI_CAMERA mode), empty when
+    // stopped
+    private List<LemonDetector> detectors = Collections.emptyList();
 
     public VisionSubsystem() {
+        this(ProcessingMode.DEDICATED_THREAD);
+    }
+
+    public VisionSubsystem(ProcessingMode mode) {
+        this.mode = mode;
         CommandScheduler.getInstance().registerSubsystem(this); // allows periodic
         // function to be called by scheduler
         startStreams();
@@ -24,24 +92,66 @@ public class VisionSubsystem extends SubsystemBase {
     public void periodic() {
         // This method will be called once per scheduler run
 
+        if (pipeline != null) {
+            pipeline.publishStats();
+        }
+        for (LemonDetector detector : detectors) {
+            detector.publishStats();
+        }
+
+        publishStreamStats();
+        resultSlot.getLatencyStats().publish();
     }
 
     public CvSink getCvSink() {
         return cvSink;
     }
 
+    /**
+     * Returns the sink attached to one of the cameras.
+     *
+     * @param camera index of the camera
+     * @return the camera's sink
+     */
+    public CvSink getCvSink(int camera) {
+        return cameraSinks.get(camera);
+    }
+
+    /**
+     * Returns the number of cameras that were started.
+     *
+     * @return the camera count
+     */
+    public int getCameraCount() {
+        return cameraSinks.size();
+    }
+
+    public ProcessingMode getProcessingMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the slot holding the newest vision result.
+     *
+     * @return the result slot
+     */
+    public VisionResultSlot getResultSlot() {
+        return resultSlot;
+    }
+
     /**
      * Returns the desired output stream or creates one if it doesn't already exist.
-     * 
+     *
      * @param name name of the output stream
-     * @return a CvSource object representing the stream
+     * @return the stream
      */
-    public CvSource getOutputStream(String name) {
+    public synchronized DebugStream getOutputStream(String name) {
 
         // if no camera stream with specified name exists
         if (outputStreamMap.get(name) == null) {
             // create a new stream and update the map
-            CvSource newStream = CameraServer.getInstance().putVideo(name, 640, 480);
+            DebugStream newStream = new DebugStream(name, STREAM_WIDTH, STREAM_HEIGHT, DEFAULT_STREAM_FPS,
+                    DEFAULT_STREAM_SCALE, DEFAULT_STREAM_QUALITY);
             outputStreamMap.put(name, newStream);
 
             return newStream;
@@ -51,6 +161,190 @@ public class VisionSubsystem extends SubsystemBase {
         return outputStreamMap.get(name);
     }
 
+    /**
+     * Sets the limits of an output stream, creating it if it doesn't exist yet.
+     * The downscale factor can only be set before the stream is first used.
+     *
+     * @param name    name of the output stream
+     * @param maxFps  most frames streamed per second
+     * @param scale   factor the frames are shrunk by before streaming
+     * @param quality jpeg quality, 0-100
+     */
+    public synchronized void configureOutputStream(String name, double maxFps, int scale, int quality) {
+        DebugStream stream = outputStreamMap.get(name);
+        if (stream == null) {
+            outputStreamMap.put(name, new DebugStream(name, STREAM_WIDTH, STREAM_HEIGHT, maxFps, scale, quality));
+            return;
+        }
+
+        stream.setMaxFps(maxFps);
+        stream.setQuality(quality);
+        if (stream.getScale() != Math.max(1, scale)) {
+            System.out.println("Output stream " + name + " already exists, so its scale can't be changed.");
+        }
+    }
+
+    /**
+     * Returns whether the annotated stream will take the next frame, so the
+     * annotation can be skipped while nobody is watching.
+     *
+     * @return true if the next processed frame should be annotated
+     */
+    public boolean wantsAnnotatedFrame() {
+        return getOutputStream(ANNOTATED_STREAM).wantsFrame();
+    }
+
+    /**
+     * Returns whether the original stream will take the next frame, so the
+     * masked color image can be skipped while nobody is watching.
+     *
+     * @return true if the next processed frame should mask the color image
+     */
+    public boolean wantsMaskedFrame() {
+        return getOutputStream(ORIGINAL_STREAM).wantsFrame();
+    }
+
+    /**
+     * Puts the intermediate and annotated images of a processed frame on the
+     * debug output streams. Streams that nobody is watching, or that have hit
+     * their frame rate limit, skip the frame. Unannotated frames are never put on
+     * the annotated stream, nor frames without the masked color image on the
+     * original stream.
+     *
+     * @param frame the processed frame
+     */
+    public void putDebugFrames(VisionFrame frame) {
+        VisionBuffers buffers = frame.buffers;
+        if (frame.maskColor) {
+            getOutputStream(ORIGINAL_STREAM).putFrame(buffers.colorMaskedImg);
+        }
+        // with blob analysis there are no edges, so show the mask that was labelled
+        getOutputStream(EDGE_STREAM).putFrame(buffers.cleanMask != null ? buffers.cleanMask : buffers.cannyEdgeImg);
+        if (frame.annotate) {
+            getOutputStream(ANNOTATED_STREAM).putFrame(buffers.image); // the stream with annotated
+                                                                       // coordinates
+        }
+    }
+
+    /**
+     * Releases the buffers of every output stream. The streams stay up and
+     * allocate them again when the next frame is put.
+     */
+    private synchronized void releaseStreams() {
+        for (DebugStream stream : outputStreamMap.values()) {
+            stream.release();
+        }
+    }
+
+    /**
+     * Publishes the stats of every output stream to SmartDashboard.
+     */
+    private synchronized void publishStreamStats() {
+        for (DebugStream stream : outputStreamMap.values()) {
+            stream.publishStats();
+        }
+    }
+
+    /**
+     * Starts processing frames with the given detector. In DEDICATED_THREAD mode
+     * this starts the vision thread and in PIPELINED mode the stage threads; in
+     * SCHEDULER mode frames are processed by calls to {@link #processFrame()}.
+     *
+     * @param detector the detector to run on each frame
+     */
+    public void startProcessing(LemonDetector detector) {
+        stopProcessing();
+        this.detectors = Collections.singletonList(detector);
+
+        if (mode == ProcessingMode.PIPELINED) {
+            pipeline = new PipelinedVisionExecutor(this, detector, resultSlot,
+                    PipelinedVisionExecutor.DEFAULT_QUEUE_CAPACITY);
+            pipeline.start();
+            return;
+        }
+
+        worker = new VisionWorker(this, detector, resultSlot);
+        if (mode == ProcessingMode.DEDICATED_THREAD) {
+            processingThread = new Thread(worker, "Vision");
+            processingThread.setDaemon(true);
+            processingThread.start();
+        }
+    }
+
+    /**
+     * Starts processing every camera in parallel, each with its own detector, and
+     * merging their targets into one result. Only in MULTI_CAMERA mode; in any
+     * other mode only the first detector is run, on the first camera.
+     *
+     * @param detectors one detector per camera, in camera order
+     */
+    public void startProcessing(List<LemonDetector> detectors) {
+        if (mode != ProcessingMode.MULTI_CAMERA) {
+            startProcessing(detectors.get(0));
+            return;
+        }
+
+        stopProcessing();
+        this.detectors = new ArrayList<LemonDetector>(detectors);
+
+        // one thread per camera, but no more than there are cores
+        int threads = Math.min(detectors.size(), Runtime.getRuntime().availableProcessors());
+        multiCamera = new MultiCameraExecutor(this, detectors, resultSlot, threads);
+        multiCamera.start();
+    }
+
+    /**
+     * Grabs and processes one frame on the calling thread. Does nothing unless
+     * processing was started in SCHEDULER mode.
+     */
+    public void processFrame() {
+        if (mode == ProcessingMode.SCHEDULER && worker != null) {
+            worker.runOnce();
+        }
+    }
+
+    /**
+     * Stops processing frames and releases the frame buffers and the debug
+     * streams' buffers.
+     */
+    public void stopProcessing() {
+        detectors = Collections.emptyList();
+        if (pipeline != null) {
+            pipeline.stop();
+            pipeline = null;
+        }
+        if (multiCamera != null) {
+            multiCamera.stop();
+            multiCamera = null;
+        }
+
+        if (worker != null) {
+            stopWorker();
+        }
+
+        // nothing puts frames anymore
+        releaseStreams();
+    }
+
+    /**
+     * Stops the single-camera worker and releases its buffers.
+     */
+    private void stopWorker() {
+        if (processingThread != null) {
+            // the worker releases its own buffers once its loop exits
+            processingThread.interrupt();
+            try {
+                processingThread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            processingThread = null;
+        } else {
+            worker.release();
+        }
+        worker = null;
+    }
+
     @Override
     public void simulationPeriodic() {
         // This method will be called once per scheduler run during simulation
@@ -62,13 +356,20 @@ public class VisionSubsystem extends SubsystemBase {
     public void startStreams() {
 
         CameraServer.getInstance().startAutomaticCapture(); // webcam
-        CameraServer.getInstance().startAutomaticCapture(1); // leftside usb
+        UsbCamera leftside = CameraServer.getInstance().startAutomaticCapture(1); // leftside usb
 
         // Creates the CvSink and connects it to the UsbCamera
         cvSink = CameraServer.getInstance().getVideo();
+        cameraSinks.add(cvSink);
+
+        // the other cameras only get a sink in MULTI_CAMERA mode, since an attached
+        // sink makes the camera decode every frame
+        if (mode == ProcessingMode.MULTI_CAMERA) {
+            cameraSinks.add(CameraServer.getInstance().getVideo(leftside));
+        }
 
         // initialize output stream map, which will contain all created output streams
-        outputStreamMap = new HashMap<String, CvSource>();
+        outputStreamMap = new HashMap<String, DebugStream>();
 
     }
 